@@ -0,0 +1,10 @@
+-- -----------------------------------------------------
+-- Execution slots of the workers
+-- For databases created with a pod.sql older than the slots and busy_slots columns
+-- A new database created with pod.sql already has them, don't run this on it
+-- -----------------------------------------------------
+USE `pod` ;
+
+ALTER TABLE `pod`.`workers`
+  ADD COLUMN `slots` INT(11) NOT NULL DEFAULT 1 AFTER `last_time_alive` ,
+  ADD COLUMN `busy_slots` INT(11) NOT NULL DEFAULT 0 AFTER `slots` ;
@@ -32,6 +32,8 @@ CREATE  TABLE IF NOT EXISTS `pod`.`workers` (
   `is_manager` INT(1) NOT NULL DEFAULT 0 ,
   `last_time_worked` TIMESTAMP NULL DEFAULT NULL ,
   `last_time_alive` TIMESTAMP NULL DEFAULT NULL ,
+  `slots` INT(11) NOT NULL DEFAULT 1 ,
+  `busy_slots` INT(11) NOT NULL DEFAULT 0 ,
   PRIMARY KEY (`id`) )
 ENGINE = InnoDB
 AUTO_INCREMENT = 433
@@ -265,62 +265,22 @@ public class ActivityDAO {
 	 */
 	public Activity select ( String name ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		ResultSet rs = null;
-		Activity activity = null;
-		
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "SELECT * FROM activities WHERE name = ?";
-			
-			statement = con.prepareStatement(searchQuery);
-			statement.setString(1, name );
-			
-			rs = statement.executeQuery();
-			
-			while (rs.next()) {
-				
-				activity = new Activity();
-				activity.setId( rs.getInt("id") );
-				activity.setName( name );
-				activity.setInstallationScriptLocation( rs.getString("installationScriptLocation") );
-				activity.setStatus( rs.getString("status") );
-				break;
-				
-			}
-			
+			return DAOHelper.queryFirst("SELECT * FROM activities WHERE name = ?", new DAOHelper.RowMapper<Activity>() {
+				public Activity map ( ResultSet rs ) throws SQLException {
+					Activity activity = new Activity();
+					activity.setId( rs.getInt("id") );
+					activity.setName( rs.getString("name") );
+					activity.setInstallationScriptLocation( rs.getString("installationScriptLocation") );
+					activity.setStatus( rs.getString("status") );
+					return activity;
+				}
+			}, name);
 		} catch (SQLException e) {
 			error = e.toString();
 			e.printStackTrace();
+			return null;
 		}
-		
-		finally {
-			if (rs != null)	{
-			    try {
-			     	rs.close();
-			    } catch (Exception e) { System.err.println(e); }
-			        rs = null;
-			    }
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
-		
-		        con = null;
-		     }
-		}
-		return activity;
 	}
 	
 	/**
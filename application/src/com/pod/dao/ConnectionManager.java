@@ -2,41 +2,156 @@ package com.pod.dao;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.sql.DataSource;
+import main.resources.PodLogger;
 
 import org.apache.commons.dbcp.BasicDataSource;
 
+import com.eclipsesource.json.JsonObject;
+
 /**
  * This class provides a getConnection method to allow efficient use of connections to the database, using a pool of connections
+ *
+ * The pool is configured with the db* properties of the server.properties file (see configure). Idle connections are validated
+ * by the evictor in the background instead of on every borrow, and the MySQL driver keeps a cache of prepared statements
+ * per connection, so preparing the same query again on a pooled connection doesn't reach the database
  */
 public class ConnectionManager {
-	
-	public static DataSource dataSource;
-	
+
+	public static PodLogger log = new PodLogger("ConnectionManager");
+
+	public static int DEFAULT_MAX_ACTIVE = 20;
+	public static int DEFAULT_MAX_IDLE = 10;
+	public static int DEFAULT_MIN_IDLE = 2;
+	public static int DEFAULT_MAX_WAIT = 10*1000; // 10 secs
+	public static int DEFAULT_EVICTION_INTERVAL = 60*1000; // every min
+	public static int DEFAULT_MIN_EVICTABLE_IDLE_TIME = 5*60*1000; // 5 mins
+	public static int DEFAULT_STATEMENT_CACHE_SIZE = 250;
+
+	private static volatile BasicDataSource dataSource;
+
+	// Time spent by the threads waiting for a connection
+	private static final AtomicLong borrows = new AtomicLong();
+	private static final AtomicLong totalWaitTime = new AtomicLong();
+	private static final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * Creates the pool with the settings in the given properties
+	 * If the pool was already created, it's replaced
+	 * @param properties server properties
+	 */
+	public static synchronized void configure ( Properties properties ) {
+
+		BasicDataSource basicDataSource = new BasicDataSource();
+		basicDataSource.setDriverClassName("com.mysql.jdbc.Driver");
+		basicDataSource.setUsername( properties.getProperty("dbUser", "root") );
+		basicDataSource.setPassword( properties.getProperty("dbPassword", "kaerus_123") );
+		basicDataSource.setUrl( properties.getProperty("dbUrl", "jdbc:mysql://localhost:3306/pod") );
+
+		// Sizing
+		basicDataSource.setMaxActive( getInt(properties, "dbPoolMaxActive", DEFAULT_MAX_ACTIVE) );
+		basicDataSource.setMaxIdle( getInt(properties, "dbPoolMaxIdle", DEFAULT_MAX_IDLE) );
+		basicDataSource.setMinIdle( getInt(properties, "dbPoolMinIdle", DEFAULT_MIN_IDLE) );
+		basicDataSource.setMaxWait( getInt(properties, "dbPoolMaxWait", DEFAULT_MAX_WAIT) );
+
+		// SQL sentence that allows BasicDataSource to check if the connection is right
+		// It's run by the evictor on idle connections, not every time a connection is borrowed
+		basicDataSource.setValidationQuery("select 1");
+		basicDataSource.setTestOnBorrow(false);
+		basicDataSource.setTestWhileIdle(true);
+		basicDataSource.setTimeBetweenEvictionRunsMillis( getInt(properties, "dbPoolEvictionInterval", DEFAULT_EVICTION_INTERVAL) );
+		basicDataSource.setMinEvictableIdleTimeMillis( getInt(properties, "dbPoolMinEvictableIdleTime", DEFAULT_MIN_EVICTABLE_IDLE_TIME) );
+		basicDataSource.setNumTestsPerEvictionRun( getInt(properties, "dbPoolMaxActive", DEFAULT_MAX_ACTIVE) );
+
+		// Prepared statement cache of the driver, kept per connection
+		int cacheSize = getInt(properties, "dbStatementCacheSize", DEFAULT_STATEMENT_CACHE_SIZE);
+		if ( cacheSize > 0 ) {
+			basicDataSource.addConnectionProperty("cachePrepStmts", "true");
+			basicDataSource.addConnectionProperty("useServerPrepStmts", "true");
+			basicDataSource.addConnectionProperty("prepStmtCacheSize", String.valueOf(cacheSize));
+			basicDataSource.addConnectionProperty("prepStmtCacheSqlLimit", "2048");
+		}
+		
+		// Batches of statements are sent to the server in a single round trip
+		basicDataSource.addConnectionProperty("rewriteBatchedStatements", "true");
+
+		BasicDataSource previous = dataSource;
+		dataSource = basicDataSource;
+
+		if ( previous != null ) {
+			try {
+				previous.close();
+			} catch (SQLException e) {
+				log.e("Error closing the previous pool: "+e.toString());
+			}
+		}
+
+		log.i("Connection pool configured. maxActive="+basicDataSource.getMaxActive()+" maxIdle="+basicDataSource.getMaxIdle()
+				+" minIdle="+basicDataSource.getMinIdle()+" statementCacheSize="+cacheSize);
+	}
+
 	/**
 	 * Retrieves a connection from a pool
+	 * If the pool hasn't been configured yet, it's created with the default settings
 	 * @return Connection
 	 * @throws SQLException
 	 */
 	public static Connection getConnection() throws SQLException {
-		
-		if ( dataSource == null ) {
-			BasicDataSource basicDataSource = new BasicDataSource();
-			basicDataSource.setDriverClassName("com.mysql.jdbc.Driver");
-			basicDataSource.setUsername("root");
-			basicDataSource.setPassword("kaerus_123");
-			basicDataSource.setUrl("jdbc:mysql://localhost:3306/pod");
-			
-			// Optional. SQL sentence that allows BasicDataSource
-			// to check if the connection is right.
-			basicDataSource.setValidationQuery("select 1");
-			
-			dataSource = basicDataSource;
+
+		BasicDataSource pool = dataSource;
+		if ( pool == null ) {
+			synchronized (ConnectionManager.class) {
+				if ( dataSource == null )
+					configure( new Properties() );
+				pool = dataSource;
+			}
 		}
 
-		return dataSource.getConnection();
-		
+		long start = System.nanoTime();
+		Connection con = pool.getConnection();
+		long wait = System.nanoTime() - start;
+
+		borrows.incrementAndGet();
+		totalWaitTime.addAndGet(wait);
+		long max = maxWaitTime.get();
+		while ( wait > max && !maxWaitTime.compareAndSet(max, wait) )
+			max = maxWaitTime.get();
+
+		return con;
+	}
+
+	/**
+	 * Returns the current state of the pool: active and idle connections, and the time waited to get a connection
+	 * @return json with the metrics, times in milliseconds
+	 */
+	public static JsonObject getPoolMetrics () {
+
+		JsonObject metrics = new JsonObject();
+		BasicDataSource pool = dataSource;
+		metrics.add("active", pool != null ? pool.getNumActive() : 0);
+		metrics.add("idle", pool != null ? pool.getNumIdle() : 0);
+		metrics.add("maxActive", pool != null ? pool.getMaxActive() : 0);
+
+		long count = borrows.get();
+		metrics.add("borrows", count);
+		metrics.add("averageWaitTime", count > 0 ? totalWaitTime.get() / count / 1000000.0 : 0);
+		metrics.add("maxWaitTime", maxWaitTime.get() / 1000000.0);
+
+		return metrics;
+	}
+
+	private static int getInt ( Properties properties , String name , int defaultValue ) {
+		String value = properties.getProperty(name);
+		if ( value == null || value.trim().equals("") )
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch ( NumberFormatException e ) {
+			log.e("Invalid "+name+" property "+value);
+			return defaultValue;
+		}
 	}
 
 }
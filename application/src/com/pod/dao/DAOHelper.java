@@ -0,0 +1,153 @@
+package com.pod.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared helper to run queries from the DAOs
+ *
+ * It takes a connection from the pool, prepares the statement, sets the parameters and closes everything afterwards,
+ * so the DAO methods only contain the query and how to read the rows
+ * Closing a statement returns it to the prepared statement cache of the connection (see ConnectionManager),
+ * so the same query run again on a pooled connection reuses the statement already prepared
+ */
+public class DAOHelper {
+
+	/**
+	 * Reads one row of a result set into an object
+	 */
+	public interface RowMapper<T> {
+		public T map ( ResultSet rs ) throws SQLException;
+	}
+
+	/**
+	 * Runs an INSERT, UPDATE or DELETE sentence
+	 * @param query
+	 * @param parameters values for the ? in the query, in order
+	 * @return number of rows affected
+	 * @throws SQLException
+	 */
+	public static int update ( String query , Object... parameters ) throws SQLException {
+
+		Connection con = null;
+		PreparedStatement statement = null;
+
+		try {
+			con = ConnectionManager.getConnection();
+			statement = con.prepareStatement(query);
+			setParameters(statement, parameters);
+			return statement.executeUpdate();
+		}
+		finally {
+			close(null, statement, con);
+		}
+	}
+
+	/**
+	 * Runs the same INSERT, UPDATE or DELETE sentence once for each set of parameters, sending all of them in one batch
+	 * @param query
+	 * @param parameters list of values for the ? in the query, one array per execution
+	 * @return number of rows affected by each execution
+	 * @throws SQLException
+	 */
+	public static int[] batchUpdate ( String query , List<Object[]> parameters ) throws SQLException {
+
+		Connection con = null;
+		PreparedStatement statement = null;
+
+		try {
+			con = ConnectionManager.getConnection();
+			statement = con.prepareStatement(query);
+			for ( Object [] row : parameters ) {
+				setParameters(statement, row);
+				statement.addBatch();
+			}
+			return statement.executeBatch();
+		}
+		finally {
+			close(null, statement, con);
+		}
+	}
+
+	/**
+	 * Runs a SELECT sentence and reads all the rows with the given mapper
+	 * @param query
+	 * @param mapper
+	 * @param parameters values for the ? in the query, in order
+	 * @return list of objects, empty if there weren't rows
+	 * @throws SQLException
+	 */
+	public static <T> List<T> query ( String query , RowMapper<T> mapper , Object... parameters ) throws SQLException {
+
+		Connection con = null;
+		PreparedStatement statement = null;
+		ResultSet rs = null;
+		List<T> result = new ArrayList<T>();
+
+		try {
+			con = ConnectionManager.getConnection();
+			statement = con.prepareStatement(query);
+			setParameters(statement, parameters);
+			rs = statement.executeQuery();
+			while (rs.next())
+				result.add( mapper.map(rs) );
+		}
+		finally {
+			close(rs, statement, con);
+		}
+		return result;
+	}
+
+	/**
+	 * Runs a SELECT sentence and reads the first row with the given mapper
+	 * @param query
+	 * @param mapper
+	 * @param parameters values for the ? in the query, in order
+	 * @return the object or null if there weren't rows
+	 * @throws SQLException
+	 */
+	public static <T> T queryFirst ( String query , RowMapper<T> mapper , Object... parameters ) throws SQLException {
+		List<T> result = query(query, mapper, parameters);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	private static void setParameters ( PreparedStatement statement , Object [] parameters ) throws SQLException {
+		for ( int i = 0; i < parameters.length; i++ ) {
+			Object parameter = parameters[i];
+			if ( parameter == null ) statement.setNull(i+1, Types.NULL);
+			else if ( parameter instanceof Integer ) statement.setInt(i+1, (Integer) parameter);
+			else if ( parameter instanceof Long ) statement.setLong(i+1, (Long) parameter);
+			else if ( parameter instanceof String ) statement.setString(i+1, (String) parameter);
+			else if ( parameter instanceof Boolean ) statement.setBoolean(i+1, (Boolean) parameter);
+			else if ( parameter instanceof Timestamp ) statement.setTimestamp(i+1, (Timestamp) parameter);
+			else statement.setObject(i+1, parameter);
+		}
+	}
+
+	private static void close ( ResultSet rs , PreparedStatement statement , Connection con ) {
+
+		if (rs != null) {
+			try {
+				rs.close();
+			} catch (Exception e) { System.err.println(e); }
+		}
+
+		if (statement != null) {
+			try {
+				statement.close();
+			} catch (Exception e) { System.err.println(e); }
+		}
+
+		if (con != null) {
+			try {
+				con.close();
+			} catch (Exception e) { System.err.println(e); }
+		}
+	}
+}
@@ -105,6 +105,30 @@ public class InstallationDAO {
 		return insert(activityId, workerId, status, null);
 	}
 	
+	/**
+	 * Inserts an installation record of the activity for each one of the given workers, all in one batch
+	 * The workers that already had a record for the activity keep it as it was
+	 * @param activityId
+	 * @param workerIds
+	 * @param status of the installations
+	 * @return true if success, false otherwise
+	 */
+	public boolean insertAll ( int activityId, int [] workerIds, String status ) {
+		
+		List<Object[]> parameters = new ArrayList<Object[]>();
+		for ( int workerId : workerIds )
+			parameters.add( new Object [] { activityId, workerId, status } );
+		
+		try {
+			DAOHelper.batchUpdate("INSERT IGNORE INTO installations ( activityId , workerId , status , errorDescription ) VALUES ( ? , ? , ? , NULL )", parameters);
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			error = e.toString();
+			return false;
+		}
+	}
+	
 	/**
 	 * Updates the installation record with a new status
 	 * @param activityId
@@ -411,56 +435,23 @@ public class InstallationDAO {
 	 */
 	public int[] selectInstalledActivityIdsByWorker ( int workerId ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		ResultSet rs = null;
-		List<Integer> ids = new ArrayList<Integer>();
+		String searchQuery = "SELECT activities.id "
+				+ "FROM activities, installations WHERE activities.id = installations.activityId AND installations.workerId = ? "
+				+ "AND installations.status = 'installed'";
 		
+		List<Integer> ids;
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "SELECT activities.id "
-					+ "FROM activities, installations WHERE activities.id = installations.activityId AND installations.workerId = ? "
-					+ "AND installations.status = 'installed'";
-			
-			statement = con.prepareStatement(searchQuery);
-			statement.setInt(1, workerId );
-			
-			rs = statement.executeQuery();
-			
-			while (rs.next()) {
-				ids.add(rs.getInt("activities.id"));
-			}
-			
+			ids = DAOHelper.query(searchQuery, new DAOHelper.RowMapper<Integer>() {
+				public Integer map ( ResultSet rs ) throws SQLException {
+					return rs.getInt("activities.id");
+				}
+			}, workerId);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			error = e.toString();
+			ids = new ArrayList<Integer>();
 		}
 		
-		finally {
-			if (rs != null)	{
-			    try {
-			     	rs.close();
-			    } catch (Exception e) { System.err.println(e); }
-			        rs = null;
-			    }
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
-		
-		        con = null;
-		     }
-		}
 		int [] result = new int [ids.size()];
 		for ( int i = 0; i<ids.size(); i++) {
 			result[i] = ids.get(i);
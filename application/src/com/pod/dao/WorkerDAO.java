@@ -20,6 +20,24 @@ public class WorkerDAO {
 	
 	private String error;
 	
+	// Reads a row of the workers table
+	private static final DAOHelper.RowMapper<Worker> WORKER_MAPPER = new DAOHelper.RowMapper<Worker>() {
+		public Worker map ( ResultSet rs ) throws SQLException {
+			Worker worker = new Worker();
+			worker.setId( rs.getInt("id") );
+			worker.setStatus( rs.getString("status") );
+			worker.setLocalIp( rs.getString("local_ip") );
+			worker.setPublicIp( rs.getString("public_ip") );
+			worker.setInstanceId( rs.getString("instance_id") );
+			worker.setManager( rs.getBoolean("is_manager") );
+			worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
+			worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
+			worker.setSlots( rs.getInt("slots") );
+			worker.setBusySlots( rs.getInt("busy_slots") );
+			return worker;
+		}
+	};
+	
 	public WorkerDAO(){
 		error = "";
 	}
@@ -47,7 +65,7 @@ public class WorkerDAO {
 		try {
 			con = ConnectionManager.getConnection();
 			
-			String searchQuery = "INSERT INTO workers ( status , local_ip, public_ip, instance_id, is_manager, last_time_worked ) VALUES ( ?,?,?,?,?,? )";
+			String searchQuery = "INSERT INTO workers ( status , local_ip, public_ip, instance_id, is_manager, last_time_worked, slots, busy_slots ) VALUES ( ?,?,?,?,?,?,?,? )";
 			
 			statement = con.prepareStatement(searchQuery, Statement.RETURN_GENERATED_KEYS);
 			statement.setString(1, worker.getStatus() );
@@ -56,6 +74,8 @@ public class WorkerDAO {
 			statement.setString(4, worker.getInstanceId() );
 			statement.setBoolean(5, worker.isManager() );
 			statement.setTimestamp(6, new java.sql.Timestamp( new Date().getTime() ) );
+			statement.setInt(7, worker.getSlots() );
+			statement.setInt(8, worker.getBusySlots() );
 			
 			statement.executeUpdate();
 			
@@ -107,7 +127,7 @@ public class WorkerDAO {
 			
 			con = ConnectionManager.getConnection();
 			
-			String searchQuery = "UPDATE workers SET status=?, local_ip=?, public_ip=?, instance_id=?, is_manager=? WHERE id = ?";
+			String searchQuery = "UPDATE workers SET status=?, local_ip=?, public_ip=?, instance_id=?, is_manager=?, slots=?, busy_slots=? WHERE id = ?";
 			
 			statement = con.prepareStatement(searchQuery);
 			statement.setString(1, worker.getStatus() );
@@ -115,7 +135,9 @@ public class WorkerDAO {
 			statement.setString(3, worker.getPublicIp() );
 			statement.setString(4, worker.getInstanceId() );
 			statement.setBoolean(5, worker.isManager() );
-			statement.setInt(6, worker.getId() );
+			statement.setInt(6, worker.getSlots() );
+			statement.setInt(7, worker.getBusySlots() );
+			statement.setInt(8, worker.getId() );
 
 			int rows = statement.executeUpdate();
 			
@@ -146,6 +168,33 @@ public class WorkerDAO {
 		return updated;
 	}
 	
+	/**
+	 * Updates the records of all the given workers, including the last time worked and alive, in one batch
+	 * @param workers workers with a valid id
+	 * @return true if updated, false otherwise
+	 */
+	public boolean updateAll ( Worker [] workers ) {
+		
+		List<Object[]> parameters = new ArrayList<Object[]>();
+		for ( Worker worker : workers ) {
+			parameters.add( new Object [] { worker.getStatus(), worker.getLocalIp(), worker.getPublicIp(), worker.getInstanceId(), worker.isManager(),
+					worker.getSlots(), worker.getBusySlots(),
+					worker.getLastTimeWorked() != null ? new java.sql.Timestamp( worker.getLastTimeWorked().getTime() ) : null,
+					worker.getLastTimeAlive() != null ? new java.sql.Timestamp( worker.getLastTimeAlive().getTime() ) : null,
+					worker.getId() } );
+		}
+		
+		try {
+			DAOHelper.batchUpdate("UPDATE workers SET status=?, local_ip=?, public_ip=?, instance_id=?, is_manager=?, slots=?, busy_slots=?, "
+					+ "last_time_worked=IFNULL(?, last_time_worked), last_time_alive=IFNULL(?, last_time_alive) WHERE id = ?", parameters);
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			error = e.toString();
+			return false;
+		}
+	}
+	
 	/**
 	 * Updates the worker's status
 	 * @param workerId
@@ -154,47 +203,50 @@ public class WorkerDAO {
 	 */
 	public boolean updateStatus ( int workerId , String status ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		boolean updated = false;
-		
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "UPDATE workers SET status=? WHERE id = ?";
-			
-			statement = con.prepareStatement(searchQuery);
-			statement.setString(1, status );
-			statement.setInt(2, workerId );
-
-			int rows = statement.executeUpdate();
-			
-			updated = rows > 0 ? true : false;
-			
+			return DAOHelper.update("UPDATE workers SET status=? WHERE id = ?", status, workerId) > 0;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			error = e.toString();
+			return false;
 		}
+	}
+	
+	
+	/**
+	 * Marks one more execution slot of the worker as used
+	 * The status of the worker is set to working if all its slots are used, or ready otherwise
+	 * @param workerId
+	 * @return true if success, false otherwise
+	 */
+	public boolean acquireSlot ( int workerId ) {
 		
-		finally {
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
+		try {
+			// MySQL applies the assignments from left to right, so the status is computed with the incremented busy_slots
+			return DAOHelper.update("UPDATE workers SET busy_slots = busy_slots + 1, status = IF(busy_slots >= slots, 'working', 'ready') WHERE id = ?", workerId) > 0;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			error = e.toString();
+			return false;
+		}
+	}
+	
+	
+	/**
+	 * Frees one execution slot of the worker and sets its status
+	 * @param workerId
+	 * @param status
+	 * @return true if success, false otherwise
+	 */
+	public boolean releaseSlot ( int workerId , String status ) {
 		
-		        con = null;
-		     }
+		try {
+			return DAOHelper.update("UPDATE workers SET busy_slots = GREATEST(busy_slots - 1, 0), status=? WHERE id = ?", status, workerId) > 0;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			error = e.toString();
+			return false;
 		}
-		return updated;
 	}
 	
 	
@@ -205,65 +257,13 @@ public class WorkerDAO {
 	 */
 	public Worker select ( int id ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		ResultSet rs = null;
-		Worker worker = null;
-		
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "SELECT * FROM workers WHERE id = ?";
-			
-			statement = con.prepareStatement(searchQuery);
-			statement.setInt(1, id );
-			
-			rs = statement.executeQuery();
-			
-			while (rs.next()) {
-				
-				worker = new Worker();
-				worker.setId( id );
-				worker.setStatus( rs.getString("status") );
-				worker.setLocalIp( rs.getString("local_ip") );
-				worker.setPublicIp( rs.getString("public_ip") );
-				worker.setInstanceId( rs.getString("instance_id") );
-				worker.setManager( rs.getBoolean("is_manager") );
-				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
-				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
-				
-			}
-			
+			return DAOHelper.queryFirst("SELECT * FROM workers WHERE id = ?", WORKER_MAPPER, id);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			error = e.toString();
+			return null;
 		}
-		
-		finally {
-			if (rs != null)	{
-			    try {
-			     	rs.close();
-			    } catch (Exception e) { System.err.println(e); }
-			        rs = null;
-			    }
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
-		
-		        con = null;
-		     }
-		}
-		return worker;
 	}
 	
 	/**
@@ -300,6 +300,8 @@ public class WorkerDAO {
 				worker.setManager( rs.getBoolean("is_manager") );
 				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
 				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
+				worker.setSlots( rs.getInt("slots") );
+				worker.setBusySlots( rs.getInt("busy_slots") );
 				break;
 				
 			}
@@ -368,6 +370,8 @@ public class WorkerDAO {
 				worker.setManager( rs.getBoolean("is_manager") );
 				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
 				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
+				worker.setSlots( rs.getInt("slots") );
+				worker.setBusySlots( rs.getInt("busy_slots") );
 				workers.add(worker);
 			}
 			
@@ -476,7 +480,7 @@ public class WorkerDAO {
 			
 			con = ConnectionManager.getConnection();
 			
-			String searchQuery = "SELECT workers.id, workers.status, workers.local_ip, workers.public_ip, workers.instance_id, workers.is_manager, workers.last_time_worked, workers.last_time_alive FROM workers, installations WHERE workers.id = installations.workerId AND installations.activityId = ?";
+			String searchQuery = "SELECT workers.id, workers.status, workers.local_ip, workers.public_ip, workers.instance_id, workers.is_manager, workers.last_time_worked, workers.last_time_alive, workers.slots, workers.busy_slots FROM workers, installations WHERE workers.id = installations.workerId AND installations.activityId = ?";
 			
 			statement = con.prepareStatement(searchQuery);
 			statement.setInt(1, activityId );
@@ -494,6 +498,8 @@ public class WorkerDAO {
 				worker.setManager( rs.getBoolean("is_manager") );
 				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
 				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
+				worker.setSlots( rs.getInt("slots") );
+				worker.setBusySlots( rs.getInt("busy_slots") );
 				workers.add(worker);
 			}
 			
@@ -545,7 +551,7 @@ public class WorkerDAO {
 			
 			con = ConnectionManager.getConnection();
 			
-			String searchQuery = "SELECT workers.id, workers.status, workers.local_ip, workers.public_ip, workers.instance_id, workers.is_manager, workers.last_time_worked, workers.last_time_alive FROM workers, installations, activities WHERE workers.id = installations.workerId AND installations.activityId = activities.id AND activities.name = ?";
+			String searchQuery = "SELECT workers.id, workers.status, workers.local_ip, workers.public_ip, workers.instance_id, workers.is_manager, workers.last_time_worked, workers.last_time_alive, workers.slots, workers.busy_slots FROM workers, installations, activities WHERE workers.id = installations.workerId AND installations.activityId = activities.id AND activities.name = ?";
 			
 			statement = con.prepareStatement(searchQuery);
 			statement.setString(1, activityName );
@@ -563,6 +569,8 @@ public class WorkerDAO {
 				worker.setManager( rs.getBoolean("is_manager") );
 				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
 				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
+				worker.setSlots( rs.getInt("slots") );
+				worker.setBusySlots( rs.getInt("busy_slots") );
 				workers.add(worker);
 			}
 			
@@ -630,6 +638,8 @@ public class WorkerDAO {
 				worker.setManager( rs.getBoolean("is_manager") );
 				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
 				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
+				worker.setSlots( rs.getInt("slots") );
+				worker.setBusySlots( rs.getInt("busy_slots") );
 				workers.add(worker);
 			}
 			
@@ -672,68 +682,18 @@ public class WorkerDAO {
 	 */
 	public Worker getAvailableByActivityAndStatus ( int activityId , String status ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		ResultSet rs = null;
-		Worker worker = null;
+		String searchQuery = "SELECT workers.id, workers.status, workers.local_ip, workers.public_ip, workers.instance_id, workers.is_manager, workers.last_time_worked, workers.last_time_alive, workers.slots, workers.busy_slots FROM workers, installations "
+				+ "WHERE workers.id = installations.workerId AND installations.activityId = ? "
+				+ "AND installations.status = 'installed'"
+				+ "AND workers.status = ? LIMIT 1";
 		
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "SELECT workers.id, workers.status, workers.local_ip, workers.public_ip, workers.instance_id, workers.is_manager, workers.last_time_worked, workers.last_time_alive FROM workers, installations "
-					+ "WHERE workers.id = installations.workerId AND installations.activityId = ? "
-					+ "AND installations.status = 'installed'"
-					+ "AND workers.status = ?";
-			
-			statement = con.prepareStatement(searchQuery);
-			statement.setInt(1, activityId );
-			statement.setString(2, status );
-			
-			rs = statement.executeQuery();
-			
-			while (rs.next()) {
-				
-				worker = new Worker();
-				worker.setId( rs.getInt("id") );
-				worker.setStatus( rs.getString("status") );
-				worker.setLocalIp( rs.getString("local_ip") );
-				worker.setPublicIp( rs.getString("public_ip") );
-				worker.setInstanceId( rs.getString("instance_id") );
-				worker.setManager( rs.getBoolean("is_manager") );
-				worker.setLastTimeWorked( rs.getTimestamp("last_time_worked"));
-				worker.setLastTimeAlive( rs.getTimestamp("last_time_alive"));
-			}
-			
+			return DAOHelper.queryFirst(searchQuery, WORKER_MAPPER, activityId, status);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			error = e.toString();
+			return null;
 		}
-		
-		finally {
-			if (rs != null)	{
-			    try {
-			     	rs.close();
-			    } catch (Exception e) { System.err.println(e); }
-			        rs = null;
-			    }
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
-		
-		        con = null;
-		     }
-		}
-		return worker;
 	}
 	
 	/**
@@ -800,49 +760,15 @@ public class WorkerDAO {
 	 */
 	public boolean updateLastTimeWorked ( int workerId ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		boolean updated = false;
+		java.sql.Timestamp now = new java.sql.Timestamp( new Date().getTime() );
 		
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "UPDATE workers SET last_time_worked=?, last_time_alive=? WHERE id = ?";
-			
-			statement = con.prepareStatement(searchQuery);
-			
-			statement.setTimestamp(1, new java.sql.Timestamp( new Date().getTime() ) );
-			statement.setTimestamp(2, new java.sql.Timestamp( new Date().getTime() ) );
-			statement.setInt(3, workerId );
-
-			int rows = statement.executeUpdate();
-			
-			updated = rows > 0 ? true : false;
-			
+			return DAOHelper.update("UPDATE workers SET last_time_worked=?, last_time_alive=? WHERE id = ?", now, now, workerId) > 0;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			error = e.toString();
+			return false;
 		}
-		
-		finally {
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
-		
-		        con = null;
-		     }
-		}
-		return updated;
 	}
 	
 	
@@ -853,48 +779,34 @@ public class WorkerDAO {
 	 */
 	public boolean updateLastTimeAlive ( int workerId ) {
 		
-		Connection con = null;
-		PreparedStatement statement = null;
-		boolean updated = false;
-		
 		try {
-			
-			con = ConnectionManager.getConnection();
-			
-			String searchQuery = "UPDATE workers SET last_time_alive=? WHERE id = ?";
-			
-			statement = con.prepareStatement(searchQuery);
-			
-			statement.setTimestamp(1, new java.sql.Timestamp( new Date().getTime() ) );
-			statement.setInt(2, workerId );
-
-			int rows = statement.executeUpdate();
-			
-			updated = rows > 0 ? true : false;
-			
+			return DAOHelper.update("UPDATE workers SET last_time_alive=? WHERE id = ?", new java.sql.Timestamp( new Date().getTime() ), workerId) > 0;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			error = e.toString();
+			return false;
 		}
+	}
+	
+	/**
+	 * Updates the last time that each worker was alive, all in one batch
+	 * @param workers workers with a valid id and their last time alive
+	 * @return true if updated, false otherwise
+	 */
+	public boolean updateLastTimeAliveAll ( Worker [] workers ) {
 		
-		finally {
-		     
-		     if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (Exception e) { System.err.println(e); }
-		        	statement = null;
-		        }
-		
-		     if (con != null) {
-		        try {
-		        	con.close();
-		        } catch (Exception e) { System.err.println(e); }
+		List<Object[]> parameters = new ArrayList<Object[]>();
+		for ( Worker worker : workers )
+			parameters.add( new Object [] { new java.sql.Timestamp( worker.getLastTimeAlive().getTime() ), worker.getId() } );
 		
-		        con = null;
-		     }
+		try {
+			DAOHelper.batchUpdate("UPDATE workers SET last_time_alive=? WHERE id = ?", parameters);
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			error = e.toString();
+			return false;
 		}
-		return updated;
 	}
 	
 }
@@ -25,6 +25,9 @@ public enum Action {
 	REPORT_EXECUTION(24),     // Sent from the worker to the manager informing about a finished execution
 	TERMINATE_EXECUTION(25), // Sent by client and by manager. Its meaning is that the given execution must be terminated
 	GET_ALL_EXECUTIONS(26), // sent by the client to obtain a summary of all executions
+	REPORT_EXECUTION_OUTPUT(27), // Sent periodically from the worker to the manager with the output produced by the running executions
+	NEW_EXECUTIONS(28), // Sent from client to manager to ask for a batch of new executions
+	GET_EXECUTION_STATUSES(29), // Sent from client to manager requesting the status of many executions at once
 	
 	NEW_POLICY(30),
 	DELETE_POLICY(31),
@@ -0,0 +1,291 @@
+package com.pod.interaction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.resources.PodLogger;
+
+import com.eclipsesource.json.JsonObject;
+import com.pod.listeners.ServerProperties;
+import com.pod.manager.ExecutionMap;
+import com.pod.manager.ExecutionOutput;
+import com.pod.model.Execution;
+
+/**
+ * Stream of the output and the status changes of one execution, sent to a client as Server-Sent Events
+ *
+ * The request is processed asynchronously, so an open stream doesn't hold a thread. The stream listens to the output
+ * that the manager keeps for the execution, shared by all the clients, and to its completion. When something changes,
+ * a container thread writes the events with everything that the client doesn't have yet
+ *
+ * Events:
+ *  status: { id: id, status: "status" } when the status of the execution changes
+ *  output: { stdout: "", stderr: "" } with the new output
+ *  end: the execution in json format, without the output, when it reaches a final status. Then the stream is closed
+ *  error: { error: "description" } if the execution doesn't exist. Then the stream is closed
+ *
+ * The execution isn't removed from the map when the stream ends, so its result can still be retrieved with getExecutionStatus
+ */
+public class ExecutionStream implements ExecutionOutput.OutputListener, ExecutionMap.CompletionListener, AsyncListener {
+
+	public static PodLogger log = new PodLogger("ExecutionStream");
+
+	// Streams open at the moment, kept alive by the keepalive timer
+	private static Set<ExecutionStream> streams = Collections.newSetFromMap(new ConcurrentHashMap<ExecutionStream, Boolean>());
+	private static volatile Timer keepaliveTimer;
+
+	private AsyncContext context;
+	private long executionId;
+	private ExecutionMap map;
+	private ExecutionOutput output;
+
+	// What the client already has
+	private int stdoutSent;
+	private int stderrSent;
+	private String statusSent;
+
+	// Only one write is scheduled at a time. It sends everything new, so notifications that arrive meanwhile are merged
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	private volatile boolean keepalivePending;
+	private volatile boolean closed;
+
+	private ExecutionStream ( AsyncContext context , long executionId ) {
+		this.context = context;
+		this.executionId = executionId;
+		this.map = new ExecutionMap();
+	}
+
+	/**
+	 * Starts streaming the given execution as the response of the request
+	 * @param request
+	 * @param response
+	 * @param executionId
+	 */
+	public static void open ( HttpServletRequest request , HttpServletResponse response , long executionId ) {
+
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+
+		AsyncContext context = request.startAsync();
+		context.setTimeout(0);
+
+		ExecutionStream stream = new ExecutionStream(context, executionId);
+		context.addListener(stream);
+		streams.add(stream);
+		startKeepalive();
+
+		stream.output = stream.map.getOutput(executionId);
+		if ( stream.output != null )
+			stream.output.addListener(stream);
+
+		// Called right away if the execution doesn't exist or is already done
+		stream.map.addCompletionListener(executionId, stream);
+
+		stream.schedule();
+	}
+
+	@Override
+	public void outputAppended ( ExecutionOutput output ) {
+		schedule();
+	}
+
+	@Override
+	public void statusChanged ( ExecutionOutput output ) {
+		schedule();
+	}
+
+	@Override
+	public void executionCompleted ( long executionId ) {
+		schedule();
+	}
+
+	/**
+	 * Schedules a write in a container thread, unless there is one waiting already
+	 */
+	private void schedule () {
+		if ( closed || !writeScheduled.compareAndSet(false, true) )
+			return;
+		try {
+			context.start(new Runnable() {
+				public void run() {
+					writeScheduled.set(false);
+					write();
+				}
+			});
+		} catch (IllegalStateException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Sends the events with the changes since the last write
+	 */
+	private synchronized void write () {
+
+		if ( closed )
+			return;
+
+		try {
+			PrintWriter out = context.getResponse().getWriter();
+			boolean end = false;
+
+			Execution execution = map.get(executionId);
+			if ( execution == null ) {
+				event(out, "error", new JsonObject().add("error", "Execution with id "+executionId+" doesn't exist, its result has already been retrieved or it expired"));
+				end = true;
+			}
+			else {
+				String status = execution.getStatus();
+				boolean done = status != null && !"waiting".equals(status) && !"in progress".equals(status);
+
+				if ( !done && status != null && !status.equals(statusSent) ) {
+					event(out, "status", new JsonObject().add("id", executionId).add("status", status));
+					statusSent = status;
+				}
+
+				// New output from the shared buffer. The worker sends all the output there before its report
+				// Only a stream that never got output in the buffer, like one opened after the end, uses the final report
+				if ( output != null ) {
+					stdoutSent = Math.max( stdoutSent, output.getStdoutStart() );
+					stderrSent = Math.max( stderrSent, output.getStderrStart() );
+				}
+				String stdout = next( output, false, done ? execution.getStdout() : null, stdoutSent );
+				String stderr = next( output, true, done ? execution.getStderr() : null, stderrSent );
+				if ( stdout.length() > 0 || stderr.length() > 0 ) {
+					event(out, "output", new JsonObject().add("stdout", stdout).add("stderr", stderr));
+					stdoutSent += stdout.length();
+					stderrSent += stderr.length();
+				}
+
+				if ( done ) {
+					JsonObject executionJson = execution.toJsonObject();
+					executionJson.remove("stdout");
+					executionJson.remove("stderr");
+					event(out, "end", executionJson);
+					end = true;
+				}
+			}
+
+			if ( keepalivePending ) {
+				keepalivePending = false;
+				out.print(": keepalive\n\n");
+			}
+
+			out.flush();
+			if ( out.checkError() )
+				throw new IOException("The client closed the stream");
+
+			if ( end )
+				close();
+
+		} catch (IOException e) {
+			log.i("Stream of execution "+executionId+" closed: "+e.toString());
+			close();
+		}
+	}
+
+	private static void event ( PrintWriter out , String name , JsonObject data ) {
+		out.print("event: ");
+		out.print(name);
+		out.print("\ndata: ");
+		out.print(data.toString());
+		out.print("\n\n");
+	}
+
+	/**
+	 * Returns the output of a stream after the given offset
+	 * The offsets count the characters from the beginning of the output, in the buffer and in the final report
+	 * @param output buffer of the execution, or null
+	 * @param stderr true for the standard error, false for the standard output
+	 * @param finalText output in the final report, or null while the execution isn't done
+	 * @param offset characters already sent
+	 * @return
+	 */
+	static String next ( ExecutionOutput output , boolean stderr , String finalText , int offset ) {
+		int length = output == null ? 0 : ( stderr ? output.getStderrLength() : output.getStdoutLength() );
+		if ( length > 0 || finalText == null )
+			return output == null ? "" : ( stderr ? output.getStderr(offset) : output.getStdout(offset) );
+		return tail(finalText, offset);
+	}
+
+	private static String tail ( String text , int offset ) {
+		if ( text == null || offset >= text.length() ) return "";
+		return text.substring(offset);
+	}
+
+	/**
+	 * Ends the stream and stops listening to the execution
+	 */
+	private void close () {
+
+		if ( closed )
+			return;
+		closed = true;
+
+		streams.remove(this);
+		if ( output != null )
+			output.removeListener(this);
+		map.removeCompletionListener(executionId, this);
+
+		try {
+			context.complete();
+		} catch (IllegalStateException e) {
+			// Already completed by the container
+		}
+	}
+
+	@Override
+	public void onComplete ( AsyncEvent event ) throws IOException {
+		close();
+	}
+
+	@Override
+	public void onTimeout ( AsyncEvent event ) throws IOException {
+		close();
+	}
+
+	@Override
+	public void onError ( AsyncEvent event ) throws IOException {
+		close();
+	}
+
+	@Override
+	public void onStartAsync ( AsyncEvent event ) throws IOException {}
+
+	/**
+	 * Starts the timer that writes a comment periodically in the open streams
+	 * This keeps idle connections open through proxies, and detects the clients that went away
+	 */
+	private static void startKeepalive () {
+
+		if ( keepaliveTimer == null ) {
+			synchronized (ExecutionStream.class) {
+				if ( keepaliveTimer == null ) {
+					Timer timer = new Timer(true);
+					timer.schedule(new TimerTask() {
+						public void run() {
+							for ( ExecutionStream stream : streams ) {
+								stream.keepalivePending = true;
+								stream.schedule();
+							}
+						}
+					}, ServerProperties.STREAM_KEEPALIVE_INTERVAL, ServerProperties.STREAM_KEEPALIVE_INTERVAL);
+					keepaliveTimer = timer;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.pod.interaction;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.resources.PodLogger;
+
+import com.pod.listeners.ServerProperties;
+import com.pod.manager.WorkerRegistry;
+import com.pod.worker.ArtifactStore;
+
+/**
+ * Servlet implementation class ArtifactServlet
+ * This servlet receives the requests directed to the path /artifacts, where the manager keeps the bundles of the installed activities
+ *
+ * GET artifacts?activity=id returns the bundle of the activity, with its hash in the X-Artifact-Hash header
+ * PUT artifacts?activity=id&hash=hash stores the bundle sent in the body, after a worker installs the activity
+ *
+ * Bundles are only accepted from the addresses of the workers, up to MAX_ARTIFACT_SIZE, and only if their contents have the given hash
+ * The first bundle recorded for an activity is kept, the ones uploaded later by other workers are refused
+ */
+@WebServlet("/ArtifactServlet")
+public class HttpArtifactServlet extends HttpServlet {
+
+	public static PodLogger log = new PodLogger("HttpArtifactServlet");
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		Integer activityId = getActivityId(request);
+		if ( activityId == null ) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "no activity specified");
+			return;
+		}
+
+		ArtifactStore store = new ArtifactStore();
+		String hash = store.getActivityArtifact(activityId);
+		File bundle = store.getBundle(hash);
+		if ( bundle == null ) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		response.setContentType("application/octet-stream");
+		response.setHeader("Content-Length", Long.toString(bundle.length()));
+		response.setHeader(ArtifactStore.HASH_HEADER, hash);
+
+		// The bundle is streamed, it isn't loaded in memory
+		InputStream in = new FileInputStream(bundle);
+		try {
+			OutputStream out = response.getOutputStream();
+			byte[] buffer = new byte[64*1024];
+			int read;
+			while ( (read = in.read(buffer)) != -1 )
+				out.write(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @see HttpServlet#doPut(HttpServletRequest request, HttpServletResponse response)
+	 */
+	protected void doPut(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		Integer activityId = getActivityId(request);
+		String hash = request.getParameter("hash");
+		if ( activityId == null || !ArtifactStore.isHash(hash) ) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "no activity or hash specified");
+			return;
+		}
+
+		if ( !new WorkerRegistry().isWorkerAddress( request.getRemoteAddr() ) ) {
+			log.e("Bundle of activity "+activityId+" refused, "+request.getRemoteAddr()+" isn't a worker");
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		if ( request.getContentLength() > ServerProperties.MAX_ARTIFACT_SIZE ) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			return;
+		}
+
+		// Several workers can upload a bundle of the same activity. Only the first one is recorded
+		ArtifactStore store = new ArtifactStore();
+		String current = store.getActivityArtifact(activityId);
+		if ( current != null ) {
+			if ( current.equals(hash) )
+				response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			else
+				response.sendError(HttpServletResponse.SC_CONFLICT, "the activity has another bundle");
+			return;
+		}
+
+		if ( store.getBundle(hash) == null && !store.write(hash, request.getInputStream(), ServerProperties.MAX_ARTIFACT_SIZE) ) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "the bundle doesn't have the given hash or it's too big");
+			return;
+		}
+		if ( !store.setActivityArtifactIfAbsent(activityId, hash) ) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, "the activity has another bundle");
+			return;
+		}
+
+		log.i("Bundle "+hash+" of activity "+activityId+" stored");
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+	private static Integer getActivityId ( HttpServletRequest request ) {
+		try {
+			return Integer.valueOf(request.getParameter("activity"));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
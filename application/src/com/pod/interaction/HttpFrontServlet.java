@@ -2,24 +2,33 @@ package com.pod.interaction;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
-import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import main.resources.PodLogger;
 
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.ParseException;
 import com.pod.listeners.ServerProperties;
+import com.pod.manager.ExecutionMap;
 import com.pod.manager.ManagerRequestHandler;
 
 /**
  * Servlet implementation class FrontServlet
  * This servlet receives all requests that are directed to the root path of the application
+ *
+ * The waitForExecution action is processed asynchronously. The request is parked without holding a thread
+ * until the execution completes or the timeout expires, and then it's answered like getExecutionStatus
+ * The streamExecution action sends the output and status changes of an execution as Server-Sent Events (see ExecutionStream)
  */
-@WebServlet("/HttpFrontServlet")
 public class HttpFrontServlet extends HttpServlet {
 
 	public static PodLogger log = new PodLogger("HttpFrontServlet");
@@ -99,14 +108,46 @@ public class HttpFrontServlet extends HttpServlet {
 			// End logging
 		}
 		
+		// A batch of new executions is requested
+		// The executions come in the executions parameter or in the body, as a json array of { name: "name", input: "input" }
+		else if ( action.equals("newExecutions") ) {
+			
+			JsonArray executionsJson;
+			try {
+				if ( request.getParameter("executions") != null )
+					executionsJson = JsonArray.readFrom( request.getParameter("executions") );
+				else {
+					if ( request.getCharacterEncoding() == null ) request.setCharacterEncoding("UTF-8");
+					executionsJson = JsonArray.readFrom( request.getReader() );
+				}
+			} catch ( ParseException | UnsupportedOperationException e ) {
+				jsonResponse.add("error", "Parameter executions isn't a json array");
+				// Send response
+				response.setContentType("application/json");
+				PrintWriter out = response.getWriter();
+				out.print( jsonResponse.toString() );
+				out.close();	
+				return;
+			}
+			
+			// Prepare json object to pass to the request handler
+			json = new JsonObject();
+			json.add("action", Action.NEW_EXECUTIONS.getId());
+			json.add("executions", executionsJson);
+			
+			// Logging
+			log.i("Message log. From outside. action:"+action+", executions:"+executionsJson.size());
+			// End logging
+		}
+		
 		// The status of a previous started execution is requested
 		else if ( action.equals("getExecutionStatus") ) {
 			
 			// Convert HTTP parameter into int
 			String executionIdS = request.getParameter("executionId");
-			int executionId;
+			long executionId;
 			try {
-				executionId = Integer.parseInt(executionIdS);
+				executionId = Long.parseLong(executionIdS);
 			} catch ( NumberFormatException e ){
 				jsonResponse.add("error", "Parameter executionId is not an integer");
 				// Send response
@@ -122,6 +163,20 @@ public class HttpFrontServlet extends HttpServlet {
 			json.add("action", Action.GET_EXECUTION_STATUS.getId());
 			JsonObject executionJson = new JsonObject();
 			executionJson.add("id", executionId);
+			
+			// Optional offsets of the output that the client already has
+			try {
+				if ( request.getParameter("stdoutOffset") != null ) executionJson.add("stdoutOffset", Integer.parseInt(request.getParameter("stdoutOffset")));
+				if ( request.getParameter("stderrOffset") != null ) executionJson.add("stderrOffset", Integer.parseInt(request.getParameter("stderrOffset")));
+			} catch ( NumberFormatException e ){
+				jsonResponse.add("error", "Parameters stdoutOffset and stderrOffset must be integers");
+				// Send response
+				response.setContentType("application/json");
+				PrintWriter out = response.getWriter();
+				out.print( jsonResponse.toString() );
+				out.close();	
+				return;
+			}
 			json.add("execution", executionJson);
 			
 			// Logging
@@ -129,6 +184,75 @@ public class HttpFrontServlet extends HttpServlet {
 			// End logging
 		}
 		
+		// The client waits until the execution is done, instead of polling its status
+		else if ( action.equals("waitForExecution") ) {
+			
+			// Logging
+			log.i("Message log. From outside. action:"+action+", executionId:"+request.getParameter("executionId"));
+			// End logging
+			
+			waitForExecution(request, response);
+			return;
+		}
+		
+		// The client receives the output of the execution as it's produced
+		else if ( action.equals("streamExecution") ) {
+			
+			long executionId;
+			try {
+				executionId = Long.parseLong(request.getParameter("executionId"));
+			} catch ( NumberFormatException e ){
+				jsonResponse.add("error", "Parameter executionId is not an integer");
+				// Send response
+				response.setContentType("application/json");
+				PrintWriter out = response.getWriter();
+				out.print( jsonResponse.toString() );
+				out.close();	
+				return;
+			}
+			
+			// Logging
+			log.i("Message log. From outside. action:"+action+", executionId:"+executionId);
+			// End logging
+			
+			ExecutionStream.open(request, response, executionId);
+			return;
+		}
+		
+		// The status of many executions is requested, by a list of ids separated by commas or by a range of ids
+		else if ( action.equals("getExecutionStatuses") ) {
+			
+			// Prepare json object to pass to the request handler
+			json = new JsonObject();
+			json.add("action", Action.GET_EXECUTION_STATUSES.getId());
+			
+			try {
+				if ( request.getParameter("ids") != null ) {
+					JsonArray ids = new JsonArray();
+					for ( String id : request.getParameter("ids").split(",") )
+						if ( !id.trim().equals("") ) ids.add( Long.parseLong(id.trim()) );
+					json.add("ids", ids);
+				}
+				else if ( request.getParameter("from") != null && request.getParameter("to") != null ) {
+					json.add("from", Long.parseLong(request.getParameter("from")));
+					json.add("to", Long.parseLong(request.getParameter("to")));
+				}
+			} catch ( NumberFormatException e ){
+				jsonResponse.add("error", "Parameters ids, from and to must be integers");
+				// Send response
+				response.setContentType("application/json");
+				PrintWriter out = response.getWriter();
+				out.print( jsonResponse.toString() );
+				out.close();	
+				return;
+			}
+			json.add("output", "true".equals(request.getParameter("output")));
+			
+			// Logging
+			log.i("Message log. From outside. action:"+action+", ids:"+request.getParameter("ids")+", from:"+request.getParameter("from")+", to:"+request.getParameter("to"));
+			// End logging
+		}
+		
 		// A new activity with new code to process is given
 		else if ( action.equals("newActivity") ) {
 			
@@ -179,9 +303,9 @@ public class HttpFrontServlet extends HttpServlet {
 			
 			// Convert HTTP parameter into int
 			String executionIdS = request.getParameter("executionId");
-			int executionId;
+			long executionId;
 			try {
-				executionId = Integer.parseInt(executionIdS);
+				executionId = Long.parseLong(executionIdS);
 			} catch ( NumberFormatException e ){
 				jsonResponse.add("error", "Parameter executionId is not an integer");
 				// Send response
@@ -336,5 +460,89 @@ public class HttpFrontServlet extends HttpServlet {
 
 		return;
 	}
+	
+	/**
+	 * Parks the request until the execution reaches a final status or the timeout expires
+	 * Then it's answered with the status of the execution, like a getExecutionStatus request
+	 * @param request with the executionId parameter and optionally the timeout in milliseconds
+	 * @param response
+	 * @throws IOException
+	 */
+	private void waitForExecution(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		
+		final long executionId;
+		long timeout = ServerProperties.DEFAULT_WAIT_FOR_EXECUTION_TIMEOUT;
+		try {
+			executionId = Long.parseLong(request.getParameter("executionId"));
+			if ( request.getParameter("timeout") != null )
+				timeout = Math.min( Long.parseLong(request.getParameter("timeout")), ServerProperties.MAX_WAIT_FOR_EXECUTION_TIMEOUT );
+		} catch ( NumberFormatException e ){
+			JsonMessages.write( response, new JsonObject().add("error", "Parameters executionId and timeout must be integers") );
+			return;
+		}
+		
+		// Message used to answer when the wait is over
+		final JsonObject json = new JsonObject();
+		json.add("action", Action.GET_EXECUTION_STATUS.getId());
+		json.add("execution", new JsonObject().add("id", executionId));
+		
+		final AsyncContext context = request.startAsync();
+		context.setTimeout( Math.max(timeout, 1) );
+		final AtomicBoolean answered = new AtomicBoolean(false);
+		final ExecutionMap map = new ExecutionMap();
+		
+		// Called by the thread that completes the execution, so the response is written from a container thread
+		final ExecutionMap.CompletionListener listener = new ExecutionMap.CompletionListener() {
+			public void executionCompleted(long id) {
+				context.start(new Runnable() {
+					public void run() {
+						answerStatus(context, json, answered);
+					}
+				});
+			}
+		};
+		
+		context.addListener(new AsyncListener() {
+			public void onTimeout(AsyncEvent event) throws IOException {
+				map.removeCompletionListener(executionId, listener);
+				answerStatus(context, json, answered);
+			}
+			public void onError(AsyncEvent event) throws IOException {
+				map.removeCompletionListener(executionId, listener);
+				if ( answered.compareAndSet(false, true) )
+					context.complete();
+			}
+			public void onComplete(AsyncEvent event) throws IOException {
+				map.removeCompletionListener(executionId, listener);
+			}
+			public void onStartAsync(AsyncEvent event) throws IOException {}
+		});
+		
+		map.addCompletionListener(executionId, listener);
+	}
+	
+	/**
+	 * Answers a parked request with the current status of the execution, only the first time it's called
+	 * @param context
+	 * @param json GET_EXECUTION_STATUS message
+	 * @param answered
+	 */
+	private void answerStatus(AsyncContext context, JsonObject json, AtomicBoolean answered) {
+		
+		if ( !answered.compareAndSet(false, true) )
+			return;
+		
+		try {
+			ManagerRequestHandler handler = new ManagerRequestHandler();
+			JsonObject jsonResponse = handler.doManagerRequest(json);
+			
+			// Send response
+			JsonMessages.write( (HttpServletResponse) context.getResponse(), jsonResponse );
+		} catch (IOException e) {
+			log.e("Couldn't answer the wait for execution: "+e.toString());
+		} finally {
+			context.complete();
+		}
+	}
 
 }
@@ -1,7 +1,6 @@
 package com.pod.interaction;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -49,34 +48,31 @@ public class HttpManagerServlet extends HttpServlet {
 	 */
 	private void doManagerFromWorker(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 	
-		String jsonRaw = request.getParameter("json");
+		// The message comes as the body of the request, or in the json parameter from servers not updated yet
+		JsonObject message = JsonMessages.read(request);
 		
 		// In case no action parameter was provided
-		if ( jsonRaw == null ) {
+		if ( message == null ) {
 			JsonObject jsonResponse = new JsonObject();
 			jsonResponse.add("error", "no message");
-			PrintWriter out = response.getWriter();
-			out.print(jsonResponse.toString());
-			out.close();
+			JsonMessages.write(response, jsonResponse);
 			return;
 		}
 		
 		// Logging
-		log.i("Message log. For Manager. "+jsonRaw); System.out.println();
+		log.i("Message log. For Manager. "+JsonMessages.summary(message));
 		// End logging
 		
 		// Create worker instance and attend request internally
 		ManagerRequestHandler worker = new ManagerRequestHandler();
-		JsonObject jsonResponse = worker.doManagerRequest(JsonObject.readFrom( jsonRaw ));
+		JsonObject jsonResponse = worker.doManagerRequest(message);
 		
 		// Logging
-		log.i("Message log. Response from Manager. "+jsonResponse); System.out.println();
+		log.i("Message log. Response from Manager. "+JsonMessages.summary(jsonResponse));
 		// End logging
 		
 		// Send response
-		PrintWriter out = response.getWriter();
-		out.print(jsonResponse.toString());
-		out.close();
+		JsonMessages.write(response, jsonResponse);
 		return;
 		
 	}
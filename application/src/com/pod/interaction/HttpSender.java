@@ -1,16 +1,42 @@
 package com.pod.interaction;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.logging.Logger;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import main.resources.PodLogger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
 import com.eclipsesource.json.JsonObject;
 import com.pod.listeners.ServerProperties;
 import com.pod.manager.ManagerRequestHandler;
@@ -19,15 +45,38 @@ import com.pod.worker.WorkerRequestHandler;
 /**
  * This class abstracts the communication details between servers inside the cloud
  * It also abstracts the complexity of communicating with the same machine (but another role) or another one
+ *
+ * Remote messages are sent with a pooled HTTP client shared by all senders, so the connections to each server are kept alive
+ * and reused. The JSON message is written directly as the body of the request (application/json)
+ * The timeouts and the size of the pool are taken from the server properties
+ *
+ * Messages can also be sent asynchronously with sendAsync. The request is made by a shared pool of threads
+ * and the result is given to a callback, so the calling thread doesn't wait for the destination server
+ *
+ * Files are transferred with download and upload, streamed through the same pool of connections
  */
 public class HttpSender {
 
 	public static PodLogger log = new PodLogger("HttpSender");
 	
+	private static volatile CloseableHttpClient client;
+	private static volatile ExecutorService executor;
+	
+	/**
+	 * Receives the result of a message sent with sendAsync
+	 */
+	public interface Callback {
+		public void completed ( String response );
+		public void failed ( IOException e );
+	}
+	
 	private String destinationIP;
 	private String destinationRole; // can be "worker" or "manager"
 	private JsonObject message;
 	
+	// Last time a message reached the manager from this server. Every message to the manager also tells it that this worker is alive
+	private static volatile long lastTimeSentToManager;
+	
 	public HttpSender() {
 	}
 	
@@ -40,12 +89,12 @@ public class HttpSender {
 	public String send() throws MalformedURLException, IOException {
 		
 		if ( "manager".equals(destinationRole) )
-			this.message.add("workerId", ServerProperties.getWorkerId());
+			this.message.set("workerId", ServerProperties.getWorkerId());
 		
 		// Logging
 			int i = (int)(Math.random() * 1000);
 			log.i("Message log. To "+destinationRole+" ("+destinationIP+"/"+destinationRole+")");
-			log.i("Req ("+i+"): "+message);
+			log.i("Req ("+i+"): "+JsonMessages.summary(message));
 		// End logging
 		
 		String response = null;
@@ -58,13 +107,66 @@ public class HttpSender {
 		else
 			response = sendToRemote();
 		
+		if ( "manager".equals(destinationRole) )
+			lastTimeSentToManager = System.currentTimeMillis();
+		
 		// Logging
-			log.i("Res ("+i+"): "+response);
+			log.i("Res ("+i+"): "+( response != null ? response.length()+" chars" : "null" ));
 		// End logging
 			
 		return response;
 	}
 	
+	/**
+	 * Returns the last time that a message was sent to the manager successfully
+	 * @return time in milliseconds, 0 if no message has been sent
+	 */
+	public static long getLastTimeSentToManager() {
+		return lastTimeSentToManager;
+	}
+	
+	/**
+	 * Returns true if the exception means that the message never reached the destination server
+	 * Any other failure, like a read timeout, can happen after the destination has received and handled the message
+	 *
+	 * A NoHttpResponseException is taken as possibly delivered. It's usually a kept-alive connection closed by the server
+	 * before the request was read, but it's also what a server that handled the message and died before answering produces,
+	 * and the POST isn't retried. The stale connection check of the client makes the first case rare, and the callers verify
+	 * the rest with the destination
+	 * @param e exception thrown by send
+	 * @return
+	 */
+	public static boolean isNotDelivered ( IOException e ) {
+		return e instanceof ConnectException
+				|| e instanceof ConnectTimeoutException
+				|| e instanceof ConnectionPoolTimeoutException // no connection was free in the pool, so nothing was sent
+				|| e instanceof UnknownHostException;
+	}
+	
+	/**
+	 * Send the message in another thread, without waiting for the response
+	 * The callback is called from that thread when the response arrives or the message couldn't be sent
+	 * @param callback
+	 */
+	public void sendAsync ( final Callback callback ) {
+		
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				String response;
+				try {
+					response = send();
+				} catch (IOException e) {
+					if ( callback != null ) callback.failed(e);
+					return;
+				} catch (RuntimeException e) {
+					if ( callback != null ) callback.failed(new IOException(e));
+					return;
+				}
+				if ( callback != null ) callback.completed(response);
+			}
+		});
+	}
+	
 	/**
 	 * Send message internally, which means, execute the result of receiving the given message
 	 * @return String response
@@ -111,40 +213,184 @@ public class HttpSender {
 	 */
 	public String sendToRemote () throws MalformedURLException, IOException {
 		
-		String urlParameters = "";
-		if ( message != null )
-		    urlParameters = "json="+message.toString();
-		
 		// Prepare destination. eg: http://123-45-67-89/worker
 		String destination = destinationIP;
 		if ( destinationRole != null ) destination += "/"+destinationRole;
 		
-		// Open connection
-		URL obj = new URL("http://"+destination);
-		HttpURLConnection con = (HttpURLConnection) obj.openConnection();
-		
-		// Set HTTP method
-		con.setRequestMethod("POST");
-		
-		// Send post request
-		con.setDoOutput(true);
-		DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-		wr.writeBytes(urlParameters);
-		wr.flush();
-		wr.close();
-		
-		// Read response
-		BufferedReader in = new BufferedReader(
-		        new InputStreamReader(con.getInputStream()));
-		String inputLine;
-		StringBuffer response = new StringBuffer();
- 
-		while ((inputLine = in.readLine()) != null) {
-			response.append(inputLine);
+		HttpPost post = new HttpPost("http://"+destination);
+		post.setEntity( jsonEntity(message) );
+		
+		CloseableHttpResponse response = getClient().execute(post);
+		try {
+			HttpEntity entity = response.getEntity();
+			String body = entity == null ? "" : EntityUtils.toString(entity, "UTF-8");
+			
+			if ( response.getStatusLine().getStatusCode() >= 400 )
+				throw new IOException("Server returned HTTP response code: "+response.getStatusLine().getStatusCode()+" for URL: http://"+destination);
+			
+			return body;
+		} finally {
+			// The connection goes back to the pool
+			response.close();
 		}
-		in.close();
+	}
+	
+	/**
+	 * Downloads a file from another server, writing the body of the response straight into the target file
+	 * @param destinationIP
+	 * @param path of the file in the server, eg: artifacts?activity=1
+	 * @param target
+	 * @return the headers of the response, or null if the server doesn't have the file
+	 * @throws IOException
+	 */
+	public static Map<String, String> download ( String destinationIP , String path , File target ) throws IOException {
+		
+		HttpGet get = new HttpGet("http://"+destinationIP+"/"+path);
 		
-		return response.toString();
+		CloseableHttpResponse response = getClient().execute(get);
+		try {
+			HttpEntity entity = response.getEntity();
+			int code = response.getStatusLine().getStatusCode();
+			
+			if ( code == 404 ) {
+				EntityUtils.consume(entity);
+				return null;
+			}
+			if ( code >= 400 || entity == null )
+				throw new IOException("Server returned HTTP response code: "+code+" for URL: http://"+destinationIP+"/"+path);
+			
+			OutputStream out = new FileOutputStream(target);
+			try {
+				entity.writeTo(out);
+			} finally {
+				out.close();
+			}
+			
+			Map<String, String> headers = new HashMap<String, String>();
+			for ( Header header : response.getAllHeaders() )
+				headers.put(header.getName(), header.getValue());
+			return headers;
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Uploads a file to another server, as the body of a PUT request
+	 * @param destinationIP
+	 * @param path where the file is sent in the server, eg: artifacts?activity=1&hash=...
+	 * @param source
+	 * @throws IOException
+	 */
+	public static void upload ( String destinationIP , String path , File source ) throws IOException {
+		
+		HttpPut put = new HttpPut("http://"+destinationIP+"/"+path);
+		put.setEntity( new FileEntity(source, ContentType.APPLICATION_OCTET_STREAM) );
+		
+		CloseableHttpResponse response = getClient().execute(put);
+		try {
+			EntityUtils.consume(response.getEntity());
+			if ( response.getStatusLine().getStatusCode() >= 400 )
+				throw new IOException("Server returned HTTP response code: "+response.getStatusLine().getStatusCode()+" for URL: http://"+destinationIP+"/"+path);
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Creates the body of a request with the message, written straight into the connection
+	 * @param message
+	 * @return
+	 */
+	private static HttpEntity jsonEntity ( final JsonObject message ) {
+		
+		EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+			public void writeTo(OutputStream out) throws IOException {
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				if ( message != null ) message.writeTo(writer);
+				writer.flush();
+			}
+		});
+		entity.setContentType("application/json; charset=UTF-8");
+		return entity;
+	}
+	
+	/**
+	 * Returns the HTTP client shared by all senders, creating it the first time
+	 * @return
+	 */
+	private static CloseableHttpClient getClient () {
+		
+		if ( client == null ) {
+			synchronized (HttpSender.class) {
+				if ( client == null ) {
+					
+					// Each destination server is a route, and it has its own limit of connections
+					PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+					connectionManager.setMaxTotal( ServerProperties.getHttpMaxConnections() );
+					connectionManager.setDefaultMaxPerRoute( ServerProperties.getHttpMaxConnectionsPerRoute() );
+					
+					// Without timeouts, a server that doesn't answer would block the calling thread forever
+					// Pooled connections closed by the server are detected before sending, so a POST doesn't fail on them
+					RequestConfig requestConfig = RequestConfig.custom()
+							.setConnectTimeout( ServerProperties.getHttpConnectTimeout() )
+							.setConnectionRequestTimeout( ServerProperties.getHttpConnectTimeout() )
+							.setSocketTimeout( ServerProperties.getHttpReadTimeout() )
+							.setStaleConnectionCheckEnabled(true)
+							.build();
+					
+					client = HttpClients.custom()
+							.setConnectionManager(connectionManager)
+							.setDefaultRequestConfig(requestConfig)
+							.build();
+				}
+			}
+		}
+		return client;
+	}
+	
+	/**
+	 * Returns the pool of threads used to send asynchronous messages, creating it the first time
+	 * There are as many threads as connections in the HTTP pool. They end when they've been idle for a while
+	 * @return
+	 */
+	private static ExecutorService getExecutor () {
+		
+		if ( executor == null ) {
+			synchronized (HttpSender.class) {
+				if ( executor == null ) {
+					int threads = ServerProperties.getHttpMaxConnections();
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "HttpSender");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * Closes the shared HTTP client and its connections
+	 */
+	public static synchronized void shutdown () {
+		if ( executor != null ) {
+			executor.shutdown();
+			executor = null;
+		}
+		if ( client != null ) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				log.e("Error closing the HTTP client: "+e.toString());
+			}
+			client = null;
+		}
 	}
 	
 	public String getDestinationIP() {
@@ -1,7 +1,6 @@
 package com.pod.interaction;
 
 import java.io.IOException;
-import java.io.PrintWriter;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -9,6 +8,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import main.resources.PodLogger;
+
 import com.eclipsesource.json.JsonObject;
 import com.pod.worker.WorkerRequestHandler;
 
@@ -19,6 +20,8 @@ import com.pod.worker.WorkerRequestHandler;
  */
 @WebServlet("/HttpWorkerServlet")
 public class HttpWorkerServlet extends HttpServlet {
+
+	public static PodLogger log = new PodLogger("HttpWorkerServlet");
 	private static final long serialVersionUID = 1L;
        
 
@@ -46,26 +49,27 @@ public class HttpWorkerServlet extends HttpServlet {
 	 */
 	private void doWorkerRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 		
-		String jsonRaw = request.getParameter("json");
+		// The message comes as the body of the request, or in the json parameter from servers not updated yet
+		JsonObject message = JsonMessages.read(request);
 		
 		// In case no action parameter was provided
-		if ( jsonRaw == null ) {
+		if ( message == null ) {
 			JsonObject jsonResponse = new JsonObject();
 			jsonResponse.add("error", "no message");
-			PrintWriter out = response.getWriter();
-			out.print(jsonResponse.toString());
-			out.close();
+			JsonMessages.write(response, jsonResponse);
 			return;
 		}
 		
+		// Logging
+		log.i("Message log. For Worker. "+JsonMessages.summary(message));
+		// End logging
+		
 		// Create worker instance and attend request internally
 		WorkerRequestHandler worker = new WorkerRequestHandler();
-		JsonObject jsonResponse = worker.doWorkerRequest(JsonObject.readFrom( jsonRaw ));
+		JsonObject jsonResponse = worker.doWorkerRequest(message);
 		
 		// Send response
-		PrintWriter out = response.getWriter();
-		out.print(jsonResponse.toString());
-		out.close();
+		JsonMessages.write(response, jsonResponse);
 		return;
 	}
 }
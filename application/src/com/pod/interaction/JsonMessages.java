@@ -0,0 +1,97 @@
+package com.pod.interaction;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.ParseException;
+
+/**
+ * Reads and writes the JSON messages exchanged between servers
+ *
+ * Messages come as an application/json body, which is parsed straight from the reader of the request,
+ * or in the json form parameter from servers that haven't been updated yet
+ * Responses are written directly into the response stream instead of building the whole string first
+ * The messages are logged with summary, because the output of the executions they carry can be big
+ */
+public class JsonMessages {
+
+	/**
+	 * Reads the message of the request
+	 * @param request
+	 * @return the message, or null if the request doesn't have one or it isn't valid JSON
+	 * @throws IOException
+	 */
+	public static JsonObject read ( HttpServletRequest request ) throws IOException {
+		
+		try {
+			String contentType = request.getContentType();
+			if ( contentType != null && contentType.startsWith("application/json") ) {
+				if ( request.getCharacterEncoding() == null ) request.setCharacterEncoding("UTF-8");
+				return JsonObject.readFrom( request.getReader() );
+			}
+			
+			String jsonRaw = request.getParameter("json");
+			return jsonRaw != null ? JsonObject.readFrom( jsonRaw ) : null;
+		} catch (ParseException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the action and the ids of a message, to be logged instead of the whole message
+	 * @param message
+	 * @return eg: "action:REPORT_EXECUTION, workerId:433, execution:1520"
+	 */
+	public static String summary ( JsonObject message ) {
+		
+		if ( message == null )
+			return "null";
+		
+		StringBuilder summary = new StringBuilder();
+		JsonValue action = message.get("action");
+		if ( action != null ) {
+			Action known = action.isNumber() ? Action.get( action.asInt() ) : null;
+			summary.append("action:").append( known != null ? known.name() : action.toString() );
+		}
+		append(summary, "workerId", message.get("workerId"));
+		append(summary, "reportId", message.get("reportId"));
+		
+		JsonValue execution = message.get("execution");
+		if ( execution != null && execution.isObject() )
+			append(summary, "execution", execution.asObject().get("id"));
+		JsonValue activity = message.get("activity");
+		if ( activity != null && activity.isObject() )
+			append(summary, "activity", activity.asObject().get("id") != null ? activity.asObject().get("id") : activity.asObject().get("name"));
+		JsonValue executions = message.get("executions");
+		if ( executions != null && executions.isArray() )
+			summary.append( summary.length() > 0 ? ", " : "" ).append("executions:").append( executions.asArray().size() );
+		append(summary, "error", message.get("error"));
+		
+		return summary.toString();
+	}
+	
+	private static void append ( StringBuilder summary , String name , JsonValue value ) {
+		if ( value == null )
+			return;
+		summary.append( summary.length() > 0 ? ", " : "" ).append(name).append(':').append( value.isString() ? value.asString() : value.toString() );
+	}
+	
+	/**
+	 * Writes the message as the body of the response
+	 * @param response
+	 * @param message
+	 * @throws IOException
+	 */
+	public static void write ( HttpServletResponse response , JsonObject message ) throws IOException {
+		
+		response.setContentType("application/json; charset=UTF-8");
+		Writer out = response.getWriter();
+		message.writeTo(out);
+		out.close();
+	}
+}
@@ -6,7 +6,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.Date;
 import java.util.Properties;
 import java.util.Timer;
@@ -17,13 +16,20 @@ import javax.servlet.ServletContextListener;
 import main.resources.PodLogger;
 
 import com.eclipsesource.json.JsonObject;
+import com.pod.dao.ConnectionManager;
 import com.pod.dao.PolicyDAO;
 import com.pod.dao.WorkerDAO;
 import com.pod.interaction.Action;
 import com.pod.interaction.HttpSender;
+import com.pod.manager.ExecutionExpirationTask;
+import com.pod.manager.ExecutionJournal;
+import com.pod.manager.IdGenerator;
 import com.pod.manager.SystemSchedulerTask;
+import com.pod.manager.WorkerHandler;
+import com.pod.manager.WorkerRegistry;
 import com.pod.model.Policy;
 import com.pod.model.Worker;
+import com.pod.worker.OutputPushTask;
 import com.pod.worker.WorkerUpdaterTask;
 
 
@@ -41,7 +47,22 @@ public class ServerProperties implements ServletContextListener {
 	public static PodLogger log = new PodLogger("ServerProperties");
 	
 	// This is the default location for the server properties, except in the case of the manager
-	private static final String PROPERTIES_FILE_PATH = "/home/pod/server.properties";
+	// Another one can be given with the system property pod.properties, eg: for the workers run by the LocalComputeProvider
+	private static final String PROPERTIES_FILE_PATH = System.getProperty("pod.properties", "/home/pod/server.properties");
+	
+	// Default location of the workers run by the LocalComputeProvider
+	private static final String DEFAULT_LOCAL_WORKERS_DIRECTORY = "/home/pod/local-workers";
+	private static final int DEFAULT_LOCAL_WORKERS_BASE_PORT = 8100;
+	private static final int DEFAULT_LOCAL_WORKERS_PORT_RANGE = 100;
+	
+	// Default location of the execution journal of the manager
+	private static final String DEFAULT_JOURNAL_DIRECTORY = "/home/pod/journal";
+	
+	// Default location of the installed activities, and of their bundles, in both manager and workers
+	// Each local worker has its own ones, given in its properties
+	private static final String DEFAULT_APP_DIRECTORY = "/home/pod/app";
+	private static final String DEFAULT_ARTIFACT_DIRECTORY = "/home/pod/artifacts";
+	public static long MAX_ARTIFACT_SIZE = 1024L*1024*1024; // 1 GB per bundle uploaded by a worker
 	
 	private static final String IPADDRESS_PATTERN = 
 			"^([01]?\\d\\d?|2[0-4]\\d|25[0-5])\\." +
@@ -55,6 +76,26 @@ public class ServerProperties implements ServletContextListener {
 	public static int DEFAULT_TERMINATION_TIME = 45*60*1000; // 45 mins
 	public static int DEFAULT_ERROR_TIMEOUT = 5*60*1000; // 5 mins
 	public static int DEFAULT_MAX_WAIT = 3*60*1000; // 3 mins
+	public static int DEFAULT_EXECUTION_EXPIRATION_TIME = 60*60*1000; // 1 hour
+	public static int DEFAULT_MAX_FINISHED_EXECUTIONS = 100000;
+	public static int DEFAULT_OUTPUT_BUFFER_SIZE = 4*1024*1024; // 4 MB per output stream
+	public static int PROGRESS_REFRESH_INTERVAL = 1000; // 1 sec between output requests to the worker for the same execution
+	public static int DEFAULT_WAIT_FOR_EXECUTION_TIMEOUT = 30*1000; // 30 secs
+	public static int MAX_WAIT_FOR_EXECUTION_TIMEOUT = 5*60*1000; // 5 mins
+	public static int DEFAULT_PREFETCH_SIZE = 2; // executions assigned in advance to each worker
+	public static int REPORT_BATCH_SIZE = 10; // execution reports sent together by a worker
+	public static int REPORT_FLUSH_DELAY = 200; // maximum time that a report waits for others
+	public static int REPORT_RETRY_DELAY = 5*1000; // 5 secs before sending again reports that couldn't be sent
+	public static int OUTPUT_PUSH_INTERVAL = 500; // every half a second the worker sends the new output to the manager
+	public static int STREAM_KEEPALIVE_INTERVAL = 15*1000; // 15 secs between keepalive comments in the execution streams
+	public static int INSTALLATION_THREADS = 4; // activities installed at the same time in a worker
+	public static int NOTIFICATION_THREADS = 20; // workers notified at the same time of an activity (un)installation
+	public static int DEFAULT_WARM_POOL_SIZE = 0; // stopped workers kept ready to start, none unless the policy says so
+	private static final int EXECUTION_EXPIRATION_INTERVAL = 60*1000; // every min
+	public static int DEFAULT_HTTP_CONNECT_TIMEOUT = 5*1000; // 5 secs
+	public static int DEFAULT_HTTP_READ_TIMEOUT = 60*1000; // 1 min
+	public static int DEFAULT_HTTP_MAX_CONNECTIONS = 200;
+	public static int DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE = 20;
 	
 	private static String role;
 	private static String name;
@@ -68,9 +109,27 @@ public class ServerProperties implements ServletContextListener {
 	private static String localIp;
 	private static String publicIp;
 	private static String instanceId;
+	private static int executionSlots;
+	private static int outputBufferSize;
+	private static boolean outputSpill;
+	private static int httpConnectTimeout;
+	private static int httpReadTimeout;
+	private static int httpMaxConnections;
+	private static int httpMaxConnectionsPerRoute;
+	private static int executionExpirationTime;
+	private static int maxFinishedExecutions;
+	private static String ec2Endpoint;
+	private static String computeProvider;
+	private static String localWorkerCommand;
+	private static String localWorkersDirectory;
+	private static int localWorkersBasePort;
+	private static int localWorkersPortRange;
+	private static String appDirectory;
+	private static String artifactDirectory;
 	
 	@Override
 	public void contextDestroyed(ServletContextEvent arg0) {
+		HttpSender.shutdown();
 		log.i("Context destroyed");
 	}
 
@@ -101,6 +160,26 @@ public class ServerProperties implements ServletContextListener {
 			localIp = properties.getProperty("localIp");
 			publicIp = properties.getProperty("publicIp");
 			instanceId = properties.getProperty("instanceId");
+			executionSlots = parseExecutionSlots( properties.getProperty("executionSlots") );
+			outputBufferSize = parseInt( properties.getProperty("outputBufferSize"), DEFAULT_OUTPUT_BUFFER_SIZE );
+			outputSpill = !"false".equals( properties.getProperty("outputSpill") );
+			httpConnectTimeout = parseInt( properties.getProperty("httpConnectTimeout"), DEFAULT_HTTP_CONNECT_TIMEOUT );
+			httpReadTimeout = parseInt( properties.getProperty("httpReadTimeout"), DEFAULT_HTTP_READ_TIMEOUT );
+			httpMaxConnections = parseInt( properties.getProperty("httpMaxConnections"), DEFAULT_HTTP_MAX_CONNECTIONS );
+			httpMaxConnectionsPerRoute = parseInt( properties.getProperty("httpMaxConnectionsPerRoute"), DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE );
+			executionExpirationTime = parseInt( properties.getProperty("executionExpirationTime"), DEFAULT_EXECUTION_EXPIRATION_TIME );
+			maxFinishedExecutions = parseInt( properties.getProperty("maxFinishedExecutions"), DEFAULT_MAX_FINISHED_EXECUTIONS );
+			ec2Endpoint = properties.getProperty("ec2Endpoint");
+			computeProvider = properties.getProperty("computeProvider");
+			localWorkerCommand = properties.getProperty("localWorkerCommand");
+			localWorkersDirectory = properties.getProperty("localWorkersDirectory") != null ? properties.getProperty("localWorkersDirectory") : DEFAULT_LOCAL_WORKERS_DIRECTORY;
+			localWorkersBasePort = parseInt( properties.getProperty("localWorkersBasePort"), DEFAULT_LOCAL_WORKERS_BASE_PORT );
+			localWorkersPortRange = parseInt( properties.getProperty("localWorkersPortRange"), DEFAULT_LOCAL_WORKERS_PORT_RANGE );
+			appDirectory = properties.getProperty("appDirectory") != null ? properties.getProperty("appDirectory") : DEFAULT_APP_DIRECTORY;
+			artifactDirectory = properties.getProperty("artifactDirectory") != null ? properties.getProperty("artifactDirectory") : DEFAULT_ARTIFACT_DIRECTORY;
+			
+			// Database connection pool, with the db* properties
+			ConnectionManager.configure(properties);
 			
 			if ( role.equals("manager") ) {
 				
@@ -118,6 +197,7 @@ public class ServerProperties implements ServletContextListener {
 				worker.setInstanceId(instanceId);
 				worker.setManager(true);
 				worker.setStatus("ready");
+				worker.setSlots(executionSlots);
 				
 				// Verify if there is a manager already in the database
 				WorkerDAO wdao = new WorkerDAO();
@@ -143,15 +223,17 @@ public class ServerProperties implements ServletContextListener {
 					pdao.setActive(defaultPolicy);
 					
 					// delete contents that might have been left there (this is not a redeploy preserrving database)
-					if ( new File("/home/pod/app").exists() )
-						deleteContents(new File("/home/pod/app"));
+					if ( new File(getAppDirectory()).exists() )
+						deleteContents(new File(getAppDirectory()));
 					
 				}
 				// We should as the workers what is their state, but for now we're going to set them to ready
 				else {
 					for ( Worker w : workers ) {
-						if ( !w.getStatus().equals("ready") ) {
+						if ( !w.getStatus().equals("ready") || w.getBusySlots() != 0 ) {
 							w.setStatus("ready");
+							w.setBusySlots(0);
+							if ( w.isManager() ) w.setSlots(executionSlots);
 							wdao.update(w);
 						}
 					}
@@ -159,12 +241,23 @@ public class ServerProperties implements ServletContextListener {
 				
 				managerLocalIp = localIp;
 				
+				// From now on, the manager works with the workers in memory
+				WorkerRegistry.load();
+				
+				// Recover the executions that were in the system before the restart, and continue the ids after them
+				String journalDirectory = properties.getProperty("journalDirectory") != null ? properties.getProperty("journalDirectory") : DEFAULT_JOURNAL_DIRECTORY;
+				long lastId = ExecutionJournal.recover( new File(journalDirectory) );
+				IdGenerator.init( new File(journalDirectory, "execution-ids"), lastId + 1 );
+				
 				// Set up the timer for periodic tasks
 				Timer time = new Timer();
 				SystemSchedulerTask sct = new SystemSchedulerTask();
 				time.schedule(sct, PERIODIC_CHECKS_INTERVAL, PERIODIC_CHECKS_INTERVAL);
-
 				
+				// Set up the timer for the expiration of executions not retrieved by the clients
+				Timer expirationTimer = new Timer(true);
+				expirationTimer.schedule(new ExecutionExpirationTask(), EXECUTION_EXPIRATION_INTERVAL, EXECUTION_EXPIRATION_INTERVAL);
+
 			}
 			// If this is a worker, read the property from the properties file
 			else {
@@ -173,6 +266,14 @@ public class ServerProperties implements ServletContextListener {
 				
 				managerLocalIp = properties.getProperty("managerLocalIp");
 				workerId = Integer.parseInt( properties.getProperty("workerId") );
+				
+				// A worker launched from the image of another worker has the properties of that one until the setup script writes its own
+				// It doesn't contact the manager then. The setup script restarts the server when it's done
+				// The provider of the worker knows if its machine is a copy of another one
+				if ( instanceId != null && WorkerHandler.getComputeProvider().isCopyOf(instanceId) ) {
+					log.i("Worker started from an image of instance "+instanceId+". Waiting for the setup script");
+					return;
+				}
 			
 				// We must contact the master here, so they know we've launched
 				HttpSender sender = new HttpSender();
@@ -183,6 +284,7 @@ public class ServerProperties implements ServletContextListener {
 				message.add("localIp", localIp);
 				message.add("publicIp", publicIp);
 				message.add("instanceId", instanceId);
+				message.add("slots", executionSlots);
 				
 
 				sender.setMessage(message);
@@ -199,9 +301,13 @@ public class ServerProperties implements ServletContextListener {
 				
 				// Set up the timer for periodic tasks
 				Timer time = new Timer();
-				WorkerUpdaterTask sct = new WorkerUpdaterTask();
+				WorkerUpdaterTask sct = new WorkerUpdaterTask(WORKER_PERIODIC_UPDATES_INTERVAL);
 				time.schedule(sct, WORKER_PERIODIC_UPDATES_INTERVAL, WORKER_PERIODIC_UPDATES_INTERVAL);
 				
+				// Set up the timer that sends the output of the running executions to the manager
+				Timer outputTimer = new Timer(true);
+				outputTimer.schedule(new OutputPushTask(), OUTPUT_PUSH_INTERVAL, OUTPUT_PUSH_INTERVAL);
+				
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -270,6 +376,178 @@ public class ServerProperties implements ServletContextListener {
 	public static String getInstanceId(){
 		return instanceId;
 	}
+	/**
+	 * Number of executions that this server can run at the same time as a worker
+	 * @return
+	 */
+	public static int getExecutionSlots(){
+		return executionSlots > 0 ? executionSlots : 1;
+	}
+	
+	/**
+	 * Maximum number of bytes of each output stream of an execution kept in memory
+	 * @return
+	 */
+	public static int getOutputBufferSize(){
+		return outputBufferSize > 0 ? outputBufferSize : DEFAULT_OUTPUT_BUFFER_SIZE;
+	}
+	/**
+	 * If true, the output of an execution that doesn't fit in memory is written to a file in the app directory
+	 * Otherwise, it's discarded
+	 * @return
+	 */
+	public static boolean isOutputSpill(){
+		return outputSpill;
+	}
+	
+	/**
+	 * Maximum time to establish a connection with another server, in milliseconds
+	 * @return
+	 */
+	public static int getHttpConnectTimeout(){
+		return httpConnectTimeout > 0 ? httpConnectTimeout : DEFAULT_HTTP_CONNECT_TIMEOUT;
+	}
+	
+	/**
+	 * Maximum time waiting for data from another server once connected, in milliseconds
+	 * @return
+	 */
+	public static int getHttpReadTimeout(){
+		return httpReadTimeout > 0 ? httpReadTimeout : DEFAULT_HTTP_READ_TIMEOUT;
+	}
+	
+	/**
+	 * Maximum number of connections kept open with other servers
+	 * @return
+	 */
+	public static int getHttpMaxConnections(){
+		return httpMaxConnections > 0 ? httpMaxConnections : DEFAULT_HTTP_MAX_CONNECTIONS;
+	}
+	
+	/**
+	 * Maximum number of connections kept open with each server
+	 * @return
+	 */
+	public static int getHttpMaxConnectionsPerRoute(){
+		return httpMaxConnectionsPerRoute > 0 ? httpMaxConnectionsPerRoute : DEFAULT_HTTP_MAX_CONNECTIONS_PER_ROUTE;
+	}
+	
+	/**
+	 * Time that a finished execution is kept in the manager waiting for the client to retrieve it, in milliseconds
+	 * @return
+	 */
+	public static int getExecutionExpirationTime(){
+		return executionExpirationTime > 0 ? executionExpirationTime : DEFAULT_EXECUTION_EXPIRATION_TIME;
+	}
+	
+	/**
+	 * Maximum number of finished executions kept in the manager. The oldest ones expire first when there are more
+	 * @return
+	 */
+	public static int getMaxFinishedExecutions(){
+		return maxFinishedExecutions > 0 ? maxFinishedExecutions : DEFAULT_MAX_FINISHED_EXECUTIONS;
+	}
+	
+	/**
+	 * Endpoint of the EC2 service, to use a local stand-in instead of Amazon
+	 * @return the URL, or null to use the default endpoint
+	 */
+	public static String getEc2Endpoint(){
+		return ec2Endpoint;
+	}
+	
+	/**
+	 * Provider of the machines of the workers: "ec2" (default) or "local"
+	 * @return
+	 */
+	public static String getComputeProvider(){
+		return computeProvider;
+	}
+	
+	/**
+	 * Command that starts a local worker. It receives the path of its properties file and its port as arguments
+	 * @return
+	 */
+	public static String getLocalWorkerCommand(){
+		return localWorkerCommand;
+	}
+	
+	/**
+	 * Directory where the local workers have their properties and logs
+	 * @return
+	 */
+	public static String getLocalWorkersDirectory(){
+		return localWorkersDirectory;
+	}
+	
+	/**
+	 * First port of the range where the local workers listen
+	 * @return
+	 */
+	public static int getLocalWorkersBasePort(){
+		return localWorkersBasePort;
+	}
+	
+	/**
+	 * Number of ports of the range where the local workers listen, starting at localWorkersBasePort
+	 * @return
+	 */
+	public static int getLocalWorkersPortRange(){
+		return localWorkersPortRange;
+	}
+	
+	/**
+	 * Directory where the activities are installed, each one in a directory with its name
+	 * @return
+	 */
+	public static String getAppDirectory(){
+		return appDirectory != null ? appDirectory : DEFAULT_APP_DIRECTORY;
+	}
+	
+	/**
+	 * Directory of the ArtifactStore, with the bundles of the installed activities
+	 * @return
+	 */
+	public static String getArtifactDirectory(){
+		return artifactDirectory != null ? artifactDirectory : DEFAULT_ARTIFACT_DIRECTORY;
+	}
+	
+	/**
+	 * Reads the executionSlots property. It can be a number or "cores", to use one slot per available processor
+	 * If the property is not set or invalid, a single slot is used
+	 * @param value
+	 * @return
+	 */
+	public static int parseExecutionSlots( String value ) {
+		if ( value == null || value.trim().equals("") )
+			return 1;
+		if ( "cores".equals(value.trim()) )
+			return Runtime.getRuntime().availableProcessors();
+		try {
+			int slots = Integer.parseInt(value.trim());
+			return slots > 0 ? slots : 1;
+		} catch ( NumberFormatException e ) {
+			log.e("Invalid executionSlots property "+value);
+			return 1;
+		}
+	}
+
+	/**
+	 * Reads a numeric property, returning the default value if it's not set or invalid
+	 * @param value
+	 * @param defaultValue
+	 * @return
+	 */
+	private static int parseInt( String value , int defaultValue ) {
+		if ( value == null || value.trim().equals("") )
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch ( NumberFormatException e ) {
+			log.e("Invalid property value "+value);
+			return defaultValue;
+		}
+	}
 
 	private boolean delete(File f) {
 	  if (f.isDirectory()) {
@@ -10,11 +10,11 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import com.pod.dao.ActivityDAO;
 import com.pod.dao.InstallationDAO;
-import com.pod.dao.WorkerDAO;
 import com.pod.interaction.Action;
 import com.pod.model.Activity;
 import com.pod.model.Execution;
 import com.pod.model.Installation;
+import com.pod.model.Worker;
 
 /**
  * This class provides the necessary functions to make operations on activities, such us add or delete
@@ -302,6 +302,7 @@ public class ActivityHandler {
 		// No error happened
 		if ( !status.equals("error") ) {
 			idao.update(activity.getId(), workerId, status);
+			new WorkerRegistry().setInstallationStatus(workerId, activity.getId(), status);
 			
 			// In case the activity needed verification, we mark it as approved
 			if ( "verifying".equals(activity.getStatus()) ) {
@@ -314,6 +315,7 @@ public class ActivityHandler {
 		// In case that there was an error, we add the error description information
 		else {
 			idao.update(activity.getId(), workerId, status, json.get("errorDescription").asString());
+			new WorkerRegistry().setInstallationStatus(workerId, activity.getId(), status);
 			
 			// If the activity needed verification, we mark it as rejected
 			// We also delete all pending executions in the execution waiting queue
@@ -333,8 +335,15 @@ public class ActivityHandler {
 			}
 		}
 		
-		WorkerDAO wdao = new WorkerDAO();
-		wdao.updateLastTimeWorked( workerId );
+		// If the activity is being uninstalled, it's removed after the last worker reports
+		ActivityInstallationNotifier.activityReported( activity.getId(), workerId, status );
+		
+		// A worker deployed for the warm pool is stopped when it has all the activities
+		if ( "installed".equals(status) )
+			new WarmPool().activityInstalled( workerId );
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		registry.updateLastTimeWorked( workerId );
 		
 		// Now that the installation is completed (successfully or not), we check if there are new executions that this worker could handle
 		
@@ -342,6 +351,10 @@ public class ActivityHandler {
 		
 		// Look for pending executions in the queue, and return a PERFORM_EXECUTION if there are
 		// If there aren't, the json message will be a simple ACK
-		return eh.lookForPendingExecution ( new WorkerDAO().select( json.get("workerId").asInt() ) );
+		// The worker may be running executions during the installation, so a free slot is taken first, and released if nothing is found
+		Worker worker = registry.get(workerId);
+		if ( worker == null || !registry.tryAcquireSlot(workerId) )
+			return new JsonObject().add("action", Action.ACK.getId());
+		return eh.lookForPendingExecution ( worker, true );
 	}
 }
\ No newline at end of file
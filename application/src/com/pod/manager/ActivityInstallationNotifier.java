@@ -1,24 +1,62 @@
 package com.pod.manager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import main.resources.PodLogger;
 
 import com.eclipsesource.json.JsonObject;
 import com.pod.dao.ActivityDAO;
 import com.pod.dao.InstallationDAO;
-import com.pod.dao.WorkerDAO;
 import com.pod.interaction.Action;
 import com.pod.interaction.HttpSender;
+import com.pod.listeners.ServerProperties;
 import com.pod.model.Activity;
-import com.pod.model.Installation;
 import com.pod.model.Worker;
+import com.pod.worker.ArtifactStore;
 
 /**
  * This class implements runnable. 
  * When executed, it retrieves all workers information and sends them a message informing them about the new activity they have to install
  * In the database, an installation record will be added with the status 'notifyingInstallation'
+ *
+ * The workers are notified at the same time by a bounded pool of NOTIFICATION_THREADS, and the ones that fail or don't answer in time are logged
+ * Each worker has the connect and read timeouts from the moment its message starts to be sent, not while it waits for a thread
+ * In an uninstallation, the activity is removed when the last worker reports it (see activityReported)
+ * If a worker couldn't be notified, it may still have the activity, so the activity is kept and its installation marked as error
+ *
+ * The workers that can't receive messages now (stopped in the warm pool, or not deployed yet) aren't notified of an uninstallation
+ * and aren't waited for. They're notified when they contact the manager again (see notifyDeferred)
  */
 public class ActivityInstallationNotifier implements Runnable {
 
+	public static PodLogger log = new PodLogger("ActivityInstallationNotifier");
+	
+	// Workers that haven't reported yet the uninstallation of each activity
+	private static ConcurrentHashMap<Integer, Set<Integer>> pendingUninstalls = new ConcurrentHashMap<Integer, Set<Integer>>();
+	
+	// Activities that some worker couldn't uninstall
+	private static Set<Integer> failedUninstalls = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	
+	// Activities to uninstall from each worker when it contacts the manager again, by worker id
+	private static ConcurrentHashMap<Integer, Map<Integer, Activity>> deferredUninstalls = new ConcurrentHashMap<Integer, Map<Integer, Activity>>();
+	
+	// Threads that send the notifications, shared by all the notifiers
+	private static volatile ExecutorService executor;
+	
+	private static final int WAIT_INTERVAL = 1000; // ms between checks of the workers that haven't answered
+
 	private Activity activity;
 	private Action action;   //installActivity or uninstallActivity
 	private Worker specificWorker; // A specific worker to notify (for instance, a just deployed one)
@@ -42,14 +80,27 @@ public class ActivityInstallationNotifier implements Runnable {
 	public void run() {
 
 		Worker[] workers;
-		WorkerDAO wdao = new WorkerDAO();
+		final WorkerRegistry registry = new WorkerRegistry();
 		
 		if ( specificWorker != null ) {
 			workers = new Worker[] { specificWorker };
 		}
+		else if ( this.action == Action.UNINSTALL_ACTIVITY ) {
+			// Only the workers running now are notified. The rest will be when they contact the manager
+			List<Worker> running = new ArrayList<Worker>();
+			for ( Worker worker : registry.list() ) {
+				if ( "ready".equals(worker.getStatus()) || "working".equals(worker.getStatus()) )
+					running.add(worker);
+				else if ( !worker.isManager() ) {
+					registry.setInstallationStatus( worker.getId(), activity.getId(), "uninstalling" );
+					defer( worker.getId(), activity );
+				}
+			}
+			workers = running.toArray( new Worker [running.size()] );
+		}
 		else {
 			// Retrieve all workers
-			workers = wdao.list();
+			workers = registry.list();
 		}
 		
 		// Prepare message
@@ -57,68 +108,212 @@ public class ActivityInstallationNotifier implements Runnable {
 		message.add("action", this.action.getId() );
 		message.add("activity", activity.toJsonObject());
 		
-		// For each one of these
-		for ( Worker worker : workers ) {
+		int [] workerIds = new int [workers.length];
+		for ( int i = 0; i < workers.length; i++ ) {
 			
-			// If the worker isn't already in working state, we mark it as working so no new executions will be sent during this installation
-			if ( !worker.getStatus().equals("working") )
-				wdao.updateStatus( worker.getId() , "working");
-				
-			// Create an installation record with status notifyingInstallation (in case this is an installation process)
-			if ( this.action == Action.INSTALL_ACTIVITY ) {
-				InstallationDAO idao = new InstallationDAO();
-				idao.insert(activity.getId(), worker.getId(), "notifyingInstallation");
-			}
+			// The workers keep running executions of other activities while they install this one
+			// An activity being uninstalled stops being available right away, so no new executions of it are sent
+			if ( this.action == Action.UNINSTALL_ACTIVITY )
+				registry.setInstallationStatus( workers[i].getId(), activity.getId(), "uninstalling" );
+			workerIds[i] = workers[i].getId();
+		}
+		
+		// Create the installation records with status notifyingInstallation (in case this is an installation process), all at once
+		if ( this.action == Action.INSTALL_ACTIVITY && workerIds.length > 0 ) {
+			InstallationDAO idao = new InstallationDAO();
+			if ( !idao.insertAll(activity.getId(), workerIds, "notifyingInstallation") )
+				log.e("Couldn't create the installation records of activity "+activity.getId()+": "+idao.getError());
+		}
+		
+		// If this is an uninstallation, the activity will be removed when all the workers have reported it
+		// The workers are registered before the messages are sent, because the reports can arrive before the sending ends
+		// A deferred uninstallation of a single worker happens after the activity was removed, so nothing is waited for
+		if ( this.action == Action.UNINSTALL_ACTIVITY && specificWorker == null ) {
+			Set<Integer> pending = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+			for ( int workerId : workerIds )
+				pending.add(workerId);
+			pendingUninstalls.put( activity.getId(), pending );
+		}
+		
+		// All the workers are notified at the same time, up to the size of the pool
+		final CountDownLatch latch = new CountDownLatch( workers.length );
+		final Map<Integer, String> failures = new ConcurrentHashMap<Integer, String>();
+		final Set<Integer> answered = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		final Map<Integer, Long> started = new ConcurrentHashMap<Integer, Long>();
+		
+		for ( final Worker worker : workers ) {
 			
 			// Set the public DNS of the worker. If empty, it will mean this same machine
-			HttpSender sender = new HttpSender();
+			final HttpSender sender = new HttpSender();
 			sender.setDestinationIP( worker.getLocalIp() );
 			sender.setDestinationRole("worker");
 			sender.setMessage(message);
 			
-			try {
-				sender.send();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					started.put( worker.getId(), System.currentTimeMillis() );
+					try {
+						sender.send();
+					} catch (IOException e) {
+						failures.put( worker.getId(), e.toString() );
+					} catch (RuntimeException e) {
+						failures.put( worker.getId(), e.toString() );
+					} finally {
+						answered.add( worker.getId() );
+						latch.countDown();
+					}
+				}
+			});
 		}
 		
-		/* If this is an uninstallation, we schedule an activity removal operation
-		 * We will check if there are still workers uninstalling
-		 * If there aren't, we will remove the activity from the database
-		 * If there are, we will wait and try later
-		*/
-		if ( this.action == Action.UNINSTALL_ACTIVITY ) {
-			
-			int attempts = 1;
-			int max_attempts = 10;
-			int interval_in_ms = 10*1000;
-			while (attempts <= max_attempts) {
-				
-				// Sleep thread. In case of looping, we make the interval longer
-				try { Thread.sleep(interval_in_ms*attempts);
-				} catch (Exception e) { e.printStackTrace(); }
-				
-				InstallationDAO idao = new InstallationDAO();
-				Installation[] installations = idao.selectByActivity(activity.getId());
-				
-				boolean allUninstalled = true;
-				for ( Installation installation : installations )
-					if ( !installation.getStatus().equals("uninstalled") ) {
-						allUninstalled = false; attempts++; break;
+		// The notification waits while some worker that hasn't answered is still in time, or its message hasn't started to be sent
+		long timeout = ServerProperties.getHttpConnectTimeout() + ServerProperties.getHttpReadTimeout();
+		try {
+			while ( !latch.await( WAIT_INTERVAL, TimeUnit.MILLISECONDS ) ) {
+				long now = System.currentTimeMillis();
+				boolean waiting = false;
+				for ( int workerId : workerIds ) {
+					Long start = started.get(workerId);
+					if ( !answered.contains(workerId) && ( start == null || now - start < timeout ) ) {
+						waiting = true;
+						break;
 					}
-				
-				// If there all records have status uninstalled
-				if ( allUninstalled ) {
-					idao.deleteAll( activity.getId() ); // First we delete installation records
-					new ActivityDAO().delete( activity.getId() ); // Then the activity, so we don't vulnerate foreign constraint
 				}
+				if ( !waiting )
+					break;
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		// The workers that didn't answer in time count as failed
+		for ( int workerId : workerIds )
+			if ( !answered.contains(workerId) )
+				failures.put( workerId, "timeout" );
+		
+		log.i("Activity "+activity.getId()+" "+( action == Action.INSTALL_ACTIVITY ? "installation" : "uninstallation" )+" notified to "
+				+ (workers.length - failures.size())+" workers. Failed: "+failures);
+		
+		// A worker that still couldn't be notified of a deferred uninstallation is notified the next time
+		if ( this.action == Action.UNINSTALL_ACTIVITY && specificWorker != null ) {
+			if ( !failures.isEmpty() )
+				defer( specificWorker.getId(), activity );
+		}
+		
+		// The workers that couldn't be notified won't report the uninstallation, so they aren't waited for
+		// They may still have the activity installed, so it isn't removed
+		else if ( this.action == Action.UNINSTALL_ACTIVITY ) {
+			InstallationDAO idao = new InstallationDAO();
+			for ( Map.Entry<Integer, String> failure : failures.entrySet() ) {
+				idao.update( activity.getId(), failure.getKey(), "error", "Unable to uninstall, the worker couldn't be notified: "+failure.getValue() );
+				workerDone( activity.getId(), failure.getKey(), false );
+			}
+			
+			// In case there weren't workers to wait for
+			workerDone( activity.getId(), -1, true );
 		}
 		
 		// Finish thread
 	}
 	
+	/**
+	 * Notifies the worker of the uninstallations that happened while it couldn't receive messages
+	 * Called when the worker contacts the manager after being deployed or started
+	 * @param worker
+	 */
+	public static void notifyDeferred ( Worker worker ) {
+		Map<Integer, Activity> activities = deferredUninstalls.remove( worker.getId() );
+		if ( activities == null )
+			return;
+		for ( Activity activity : activities.values() )
+			new Thread ( new ActivityInstallationNotifier(activity, Action.UNINSTALL_ACTIVITY).setSpecificWorker(worker) ).start();
+	}
+	
+	/**
+	 * Keeps the uninstallation of the activity to notify it to the worker later
+	 * @param workerId
+	 * @param activity
+	 */
+	private static void defer ( int workerId , Activity activity ) {
+		Map<Integer, Activity> activities = deferredUninstalls.get(workerId);
+		if ( activities == null ) {
+			deferredUninstalls.putIfAbsent( workerId, new ConcurrentHashMap<Integer, Activity>() );
+			activities = deferredUninstalls.get(workerId);
+		}
+		activities.put( activity.getId(), activity );
+	}
+	
+	/**
+	 * Called when a worker reports the result of an installation or uninstallation
+	 * If the activity is being uninstalled and this was the last worker to report, the activity is removed from the system
+	 * @param activityId
+	 * @param workerId
+	 * @param status reported by the worker
+	 */
+	public static void activityReported ( int activityId , int workerId , String status ) {
+		if ( pendingUninstalls.containsKey(activityId) )
+			workerDone( activityId, workerId, "uninstalled".equals(status) );
+	}
+	
+	/**
+	 * Removes the worker from the ones that are uninstalling the activity
+	 * When there aren't more, the activity is deleted, unless some worker failed to uninstall it
+	 * @param activityId
+	 * @param workerId
+	 * @param success
+	 */
+	private static void workerDone ( int activityId , int workerId , boolean success ) {
+		
+		Set<Integer> pending = pendingUninstalls.get(activityId);
+		if ( pending == null )
+			return;
+		
+		if ( !success )
+			failedUninstalls.add(activityId);
+		pending.remove(workerId);
+		
+		// Only the thread that takes the entry out removes the activity
+		if ( !pending.isEmpty() || !pendingUninstalls.remove(activityId, pending) )
+			return;
+		
+		if ( failedUninstalls.remove(activityId) ) {
+			log.e("Activity "+activityId+" couldn't be uninstalled from all the workers. It isn't removed");
+			return;
+		}
+		
+		InstallationDAO idao = new InstallationDAO();
+		idao.deleteAll( activityId ); // First we delete installation records
+		new WorkerRegistry().removeActivity( activityId );
+		new ActivityDAO().delete( activityId ); // Then the activity, so we don't vulnerate foreign constraint
+		new ArtifactStore().remove( activityId ); // And its bundle, if a worker uploaded it
+		log.i("Activity "+activityId+" uninstalled from all the workers and removed");
+	}
+	
+	
+	/**
+	 * Returns the pool of threads that send the notifications, creating it the first time
+	 * @return
+	 */
+	private static ExecutorService getExecutor () {
+		
+		if ( executor == null ) {
+			synchronized (ActivityInstallationNotifier.class) {
+				if ( executor == null ) {
+					int threads = ServerProperties.NOTIFICATION_THREADS;
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "ActivityInstallationNotifier");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+				}
+			}
+		}
+		return executor;
+	}
 	
 	public Action getAction() {
 		return action;
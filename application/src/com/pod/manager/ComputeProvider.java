@@ -0,0 +1,72 @@
+package com.pod.manager;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Provider of the machines where the workers run
+ * The WorkerHandler decides when workers are launched, stopped or terminated, and the provider does it
+ *
+ * Ec2ComputeProvider runs every worker in an EC2 instance. LocalComputeProvider runs them as processes in this same machine,
+ * so the whole system can be tested and measured without the cloud. It's chosen with the property computeProvider
+ */
+public interface ComputeProvider {
+
+	/**
+	 * Launches a new machine for the worker. The worker contacts the manager when it's ready
+	 * @param workerId
+	 * @param imageId image of the machine, or null for the default one
+	 * @param executionSlots slots of the worker, or null for the default
+	 * @return the id of the instance
+	 * @throws IOException
+	 */
+	public String launch ( int workerId , String imageId , String executionSlots ) throws IOException;
+
+	/**
+	 * Starts a stopped instance
+	 * @param instanceId
+	 * @throws IOException
+	 */
+	public void start ( String instanceId ) throws IOException;
+
+	/**
+	 * Stops an instance, keeping its disk so it can be started again
+	 * @param instanceId
+	 * @throws IOException
+	 */
+	public void stop ( String instanceId ) throws IOException;
+
+	/**
+	 * Terminates the instances, removing them
+	 * @param instanceIds
+	 */
+	public void terminate ( List<String> instanceIds );
+
+	/**
+	 * Makes an image of the instance, to launch new ones with the same disk
+	 * @param instanceId
+	 * @return the id of the image, or null if it couldn't be made
+	 */
+	public String createImage ( String instanceId );
+
+	/**
+	 * Returns true if the image can be used to launch instances
+	 * @param imageId
+	 * @return
+	 */
+	public boolean isImageAvailable ( String imageId );
+
+	/**
+	 * Deletes an image that isn't used anymore
+	 * @param imageId
+	 */
+	public void deleteImage ( String imageId );
+
+	/**
+	 * Called in a worker when it starts, to know if its machine was started from an image of the given instance
+	 * In that case the worker still has the properties of that instance, and waits for its own
+	 * @param instanceId id of the instance in the properties of the worker
+	 * @return
+	 */
+	public boolean isCopyOf ( String instanceId );
+}
@@ -0,0 +1,284 @@
+package com.pod.manager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+
+import main.resources.PodLogger;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.*;
+import com.pod.listeners.ServerProperties;
+
+/**
+ * Runs the workers in EC2 instances
+ * The instances are launched with the AMI of the properties, or a worker image, and the worker setup script as user data
+ *
+ * All the calls use the same client, created the first time. If the property ec2Endpoint is set,
+ * the client uses it, so the workers can be handled by a local stand-in of EC2
+ */
+public class Ec2ComputeProvider implements ComputeProvider {
+
+	public static PodLogger log = new PodLogger("Ec2ComputeProvider");
+
+	private static volatile AmazonEC2 client;
+
+	private static boolean securityGroupCreated;
+
+	@Override
+	public String launch ( int workerId , String imageId , String executionSlots ) throws IOException {
+
+		try {
+			AmazonEC2 amazonEC2Client = getClient();
+
+			// Attempt to create security group in case it isn't already created
+			if ( !securityGroupCreated ){
+				// This strange OR operation is to ensure that the boolean will stay true if set first one thread
+				securityGroupCreated = createSecurityGroup( amazonEC2Client , ServerProperties.getName()+"-wkr-grp" ) || securityGroupCreated;
+			}
+
+			// Read user data file
+			// http://www.mkyong.com/java/how-to-read-file-from-java-bufferedreader-example/
+			String userData = "";
+			BufferedReader br = new BufferedReader(new InputStreamReader( getClass().getResourceAsStream("/main/resources/worker_setup.sh") ));
+
+			String sCurrentLine;
+			while ((sCurrentLine = br.readLine()) != null) {
+				userData += sCurrentLine +"\n";
+			}
+			br.close();
+
+			// Set variables for the worker setup script
+			userData = userData.replace("NAME=", "NAME="+ServerProperties.getName())
+							   .replace("MANAGER_LOCAL_IP=", "MANAGER_LOCAL_IP="+ServerProperties.getManagerLocalIp())
+							   .replace("WORKER_ID=", "WORKER_ID=" + workerId)
+			                   .replace("REPO_URL=", "REPO_URL="+ServerProperties.getRepoURL())
+			                   .replace("KEYPAIR=", "KEYPAIR="+ServerProperties.getKeypair())
+			                   .replace("SECURITY_GROUP=", "SECURITY_GROUP="+ServerProperties.getSecutiryGroup());
+
+			if ( executionSlots != null )
+				userData = userData.replace("EXECUTION_SLOTS=", "EXECUTION_SLOTS="+executionSlots);
+
+
+			// Run instance
+			RunInstancesRequest runInstancesRequest =
+					  new RunInstancesRequest();
+
+			runInstancesRequest.withImageId( imageId != null ? imageId : ServerProperties.getAMI() )
+			                     .withInstanceType( ServerProperties.getInstanceType() )
+			                     .withMinCount(1)
+			                     .withMaxCount(1)
+			                     .withKeyName( ServerProperties.getKeypair() )
+			                     .withSecurityGroups( ServerProperties.getName()+"-wkr-grp" )
+			                     .withUserData(new String(Base64.encodeBase64(userData.getBytes("UTF-8"))));
+
+			 RunInstancesResult runInstancesResult = amazonEC2Client.runInstances(runInstancesRequest);
+
+			 // Tag instance
+			 List<Instance> instances = runInstancesResult.getReservation().getInstances();
+			 String instanceId = "";
+			 for (Instance instance : instances) {
+				CreateTagsRequest createTagsRequest = new CreateTagsRequest();
+				instanceId = instance.getInstanceId();
+				createTagsRequest.withResources(instanceId)
+				   .withTags(new Tag("Name", ServerProperties.getName()+"-worker" ));
+				amazonEC2Client.createTags(createTagsRequest);
+			 }
+
+			 return instanceId;
+
+		} catch (AmazonClientException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void start ( String instanceId ) throws IOException {
+		try {
+			getClient().startInstances( new StartInstancesRequest().withInstanceIds(instanceId) );
+		} catch (AmazonClientException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void stop ( String instanceId ) throws IOException {
+		try {
+			getClient().stopInstances( new StopInstancesRequest().withInstanceIds(instanceId) );
+		} catch (AmazonClientException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void terminate ( List<String> instanceIds ) {
+
+		if ( instanceIds == null ||  instanceIds.size() == 0 )
+			return;
+
+		TerminateInstancesRequest tir = new TerminateInstancesRequest ( instanceIds );
+		getClient().terminateInstances(tir);
+	}
+
+	@Override
+	public String createImage ( String instanceId ) {
+		try {
+			CreateImageRequest request = new CreateImageRequest( instanceId, ServerProperties.getName()+"-worker-"+System.currentTimeMillis() )
+					.withNoReboot(true);
+			return getClient().createImage(request).getImageId();
+		} catch (AmazonClientException e) {
+			log.e("Image of instance "+instanceId+" couldn't be made: "+e.toString());
+			return null;
+		}
+	}
+
+	@Override
+	public boolean isImageAvailable ( String imageId ) {
+		try {
+			List<Image> images = getClient().describeImages( new DescribeImagesRequest().withImageIds(imageId) ).getImages();
+			return !images.isEmpty() && "available".equals( images.get(0).getState() );
+		} catch (AmazonClientException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void deleteImage ( String imageId ) {
+		try {
+			getClient().deregisterImage( new DeregisterImageRequest(imageId) );
+		} catch (AmazonClientException e) {
+			log.e("Image "+imageId+" couldn't be deleted: "+e.toString());
+		}
+	}
+
+	@Override
+	public boolean isCopyOf ( String instanceId ) {
+		String runningInstanceId = readInstanceMetadata("instance-id");
+		return runningInstanceId != null && !runningInstanceId.equals(instanceId);
+	}
+
+	/**
+	 * Reads a value of the metadata of the EC2 instance where this server runs
+	 * @param name eg: instance-id
+	 * @return the value, or null if this server isn't an EC2 instance
+	 */
+	private static String readInstanceMetadata( String name ) {
+		try {
+			URLConnection connection = new URL("http://169.254.169.254/latest/meta-data/"+name).openConnection();
+			connection.setConnectTimeout(1000);
+			connection.setReadTimeout(1000);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+			try {
+				return reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Returns the client of the EC2 service, creating it the first time
+	 * The client is thread safe and keeps its connections, so it's shared by all the calls
+	 * @return
+	 */
+	private static AmazonEC2 getClient () {
+
+		if ( client == null ) {
+			synchronized (Ec2ComputeProvider.class) {
+				if ( client == null ) {
+					AWSCredentialsProvider credentialsProvider = new ClasspathPropertiesFileCredentialsProvider("/main/resources/AwsCredentials.properties");
+					AmazonEC2 amazonEC2Client = new AmazonEC2Client(credentialsProvider);
+					if ( ServerProperties.getEc2Endpoint() != null )
+						amazonEC2Client.setEndpoint( ServerProperties.getEc2Endpoint() );
+					client = amazonEC2Client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * This method attempts to create a security group with the specified name
+	 * @param amazonEC2Client
+	 * @param securityGroupName
+	 * @return false in case there was a problem creating it, or true if success
+	 */
+	private static synchronized boolean createSecurityGroup( AmazonEC2 amazonEC2Client, String securityGroupName ) {
+		
+		try {
+			// Try to create the security group
+			CreateSecurityGroupRequest createSecurityGroupRequest = 
+					new CreateSecurityGroupRequest();
+			createSecurityGroupRequest.withGroupName(securityGroupName)
+				.withDescription("Security group for workers in POD. Name is "+securityGroupName);
+
+			amazonEC2Client.createSecurityGroup(createSecurityGroupRequest);
+
+			// Authorize post 22
+			IpPermission ipPermission = 
+					new IpPermission();
+
+			ipPermission.withIpRanges("0.0.0.0/0")
+				            .withIpProtocol("tcp")
+				            .withFromPort(22)
+				            .withToPort(22);
+			AuthorizeSecurityGroupIngressRequest authorizeSecurityGroupIngressRequest =
+					new AuthorizeSecurityGroupIngressRequest();
+
+			authorizeSecurityGroupIngressRequest.withGroupName(securityGroupName)
+				                                    .withIpPermissions(ipPermission);
+
+			amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
+
+			// Authorize post 80
+			ipPermission = 
+					new IpPermission();
+
+			ipPermission.withIpRanges("0.0.0.0/0")
+				            .withIpProtocol("tcp")
+				            .withFromPort(80)
+				            .withToPort(80);
+			authorizeSecurityGroupIngressRequest =
+					new AuthorizeSecurityGroupIngressRequest();
+
+			authorizeSecurityGroupIngressRequest.withGroupName(securityGroupName)
+				                                    .withIpPermissions(ipPermission);
+
+			amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
+
+			// Authorize post 8080
+			ipPermission = 
+					new IpPermission();
+
+			ipPermission.withIpRanges("0.0.0.0/0")
+				            .withIpProtocol("tcp")
+				            .withFromPort(8080)
+				            .withToPort(8080);
+			authorizeSecurityGroupIngressRequest =
+					new AuthorizeSecurityGroupIngressRequest();
+
+			authorizeSecurityGroupIngressRequest.withGroupName(securityGroupName)
+				                                    .withIpPermissions(ipPermission);
+
+			amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
+			
+			return true;
+		}
+		// Exception if the group already existed
+		catch (Exception e) {
+			return false;
+		}
+		
+	}
+}
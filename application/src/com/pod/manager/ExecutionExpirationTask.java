@@ -0,0 +1,25 @@
+package com.pod.manager;
+
+import java.util.TimerTask;
+
+import main.resources.PodLogger;
+
+import com.pod.listeners.ServerProperties;
+
+/**
+ * This task removes periodically from the execution map the executions that finished and were never retrieved by the client
+ * It runs in its own timer, so it doesn't delay the rest of the periodic tasks of the manager
+ */
+public class ExecutionExpirationTask extends TimerTask {
+
+	public static PodLogger log = new PodLogger("ExecutionExpirationTask");
+
+	public void run () {
+
+		ExecutionMap map = new ExecutionMap();
+		int expired = map.expire( ServerProperties.getExecutionExpirationTime(), ServerProperties.getMaxFinishedExecutions() );
+
+		if ( expired > 0 )
+			log.i("Routine: executions expired without being retrieved = "+expired);
+	}
+}
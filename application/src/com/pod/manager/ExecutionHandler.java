@@ -1,17 +1,25 @@
 package com.pod.manager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import main.resources.PodLogger;
 
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import com.pod.dao.ActivityDAO;
-import com.pod.dao.InstallationDAO;
 import com.pod.dao.PolicyDAO;
-import com.pod.dao.WorkerDAO;
 import com.pod.interaction.Action;
 import com.pod.interaction.HttpSender;
 import com.pod.listeners.ServerProperties;
@@ -23,6 +31,26 @@ import com.pod.model.Worker;
 public class ExecutionHandler {
 
 	public static PodLogger log = new PodLogger("ExecutionHandler");
+	
+	// Number of workers that are tried for an execution before putting it back in the waiting queue
+	private static final int MAX_DISPATCH_ATTEMPTS = 3;
+	
+	// Maximum number of executions in a request of getExecutionStatuses
+	private static final int MAX_STATUS_BATCH = 10000;
+	
+	// Consecutive executions that couldn't be delivered to a worker before its status is set to error
+	private static final int MAX_DELIVERY_FAILURES = 3;
+	
+	// Consecutive executions that couldn't be delivered to each worker
+	private static ConcurrentHashMap<Integer, AtomicInteger> deliveryFailures = new ConcurrentHashMap<Integer, AtomicInteger>();
+	
+	// Last message of reports applied for each worker, with its answer
+	private static ConcurrentHashMap<Integer, AppliedReport> appliedReports = new ConcurrentHashMap<Integer, AppliedReport>();
+	
+	private static class AppliedReport {
+		long reportId;
+		JsonObject response;
+	}
 
 	/**
 	 * Handles the event of a new execution
@@ -69,7 +97,7 @@ public class ExecutionHandler {
 			return jsonResponse.add("error", "The requested activity isn't approved for executions. Its current status is "+activity.getStatus());
 		
 		// Get a new execution ID to identify this execution
-		int executionId = IdGenerator.newId();
+		long executionId = IdGenerator.newId();
 		
 		Execution execution = new Execution();
 		execution.setId(executionId);
@@ -80,78 +108,30 @@ public class ExecutionHandler {
 		
 		// Check if there are completed installations for this worker
 		// If there are, we will try to send the execution request directly to the worker
-		WorkerDAO wdao = new WorkerDAO();
-		Worker worker = null;  // This variable isn't static, belong to the object, so no concurrent executions will override the value assigned in the sync statement
-		
-		// This lines of code can only be being executed by one thread because the lock is associated with the class, not the object
-		synchronized (this.getClass()) {
-			
-			worker = wdao.getAvailableByActivityAndStatus( activity.getId() , "ready");
-			
-			// If we got a worker, set it as 'working'
-			if ( worker != null ) {
-				
-				worker.setStatus("working");
-				wdao.update(worker);
-				wdao.updateLastTimeWorked( worker.getId() );
-			}
-		}
+		// The workers are looked up in the registry of the manager, so no database access is needed here
+		// If we get a worker, one of its execution slots is taken in the same operation
+		// Its status changes to 'working' only if that was its last free slot
+		// Only the chosen worker is locked while claiming it, so executions for other workers and activities go in parallel
+		WorkerRegistry registry = new WorkerRegistry();
+		Worker worker = registry.claim( activity.getId() );
 		
-		// If in the sync method a worker was assigned, we sent it a message so it starts the execution
+		// If a worker was assigned, we sent it a message so it starts the execution
+		// The client gets the response right away, without waiting for the worker
 		if ( worker != null ) {
 			
 			// Update execution info
 			execution.setStatus("in progress");
 			execution.setStartTime(new Date().getTime());
 			
-			// Prepare message
-			JsonObject message = new JsonObject();
-			message.add("action", Action.PERFORM_EXECUTION.getId() );
-			message.add("execution", execution.toJsonObject());
-			
-			// Set the public DNS of the worker. If empty, it will mean this same machine
-			HttpSender sender = new HttpSender();
-			sender.setDestinationIP( worker.getLocalIp() );
-			sender.setDestinationRole("worker");
-			sender.setMessage(message);
+			// We put the execution in the execution map including the workerIP
+			ExecutionMap map = new ExecutionMap();
+			execution.setWorkerIP( worker.getLocalIp() );
+			map.put(execution);
 			
-			boolean sent = false;
-			try {
-				sender.send();
-				sent = true;
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			ActivityHandler ah = new ActivityHandler();
+			jsonResponse.add("execution", execution.toJsonObject().add("predictedTime", ah.getMeanTime(execution.getActivityId())) );
 			
-			// If the message was sent, everything is wonderful
-			if ( sent ) {
-				ActivityHandler ah = new ActivityHandler();
-				jsonResponse.add("execution", execution.toJsonObject().add("predictedTime", ah.getMeanTime(execution.getActivityId())) );
-				
-				// We put the execution in the execution map including the workerIP
-				ExecutionMap map = new ExecutionMap();
-				execution.setWorkerIP( worker.getLocalIp() );
-				map.put(execution);
-				
-			}
-			else {
-				// If there was an error sending this execution, problematic
-				// We put the worker with error status, so no more executions are sent to this worker
-				worker.setStatus("error");
-				wdao.update(worker);
-
-				ExecutionMap map = new ExecutionMap();
-				map.put(execution);
-				
-				/*
-				 * ERROR HANDLING
-				 * SOMETHING MUST BE DONE HERE
-				 * Put the execution in the queue for example (easy), or
-				 * Look for a new worker to send this message (hard)
-				 */
-				// For now, we send an error message
-				jsonResponse.add("error", "Couldn't contact with a worker to start this execution with id "+executionId);
-			}
+			dispatch(execution, worker, 1);
 		}
 		
 		// In case there is no worker available, the execution request must go to the waiting queue
@@ -169,31 +149,8 @@ public class ExecutionHandler {
 				int predictedTime = calculateTimeToFinish(execution.getActivityId());
 				jsonResponse.add("execution", execution.toJsonObject().add("predictedTime", predictedTime) );
 				
-				PolicyDAO pdao = new PolicyDAO();
-				Policy activePolicy = pdao.getActive();
-				WorkerHandler wh = new WorkerHandler();
-				
-				// Only consider launching a new worker if we haven't reach the maximum
-				
-				if ( activePolicy.getMaxWorkers() > wh.getTotalWorkers() ) {
-					
-					int maxWait = ServerProperties.DEFAULT_MAX_WAIT;
-					if ( activePolicy.getRule("maxWait") != null )
-						maxWait = Integer.parseInt( activePolicy.getRule("maxWait") );
-					
-					if ( predictedTime > maxWait ) {
-						jsonResponse.add("event", "launchingWorker");
-						
-						// Launch worker in new thread (otherwise, the response takes more time to be sent)
-						new Thread () {
-							public void run() {
-								WorkerHandler wh = new WorkerHandler();
-								wh.deployWorker();
-							}
-						}.start();
-					}
-				}
-				
+				if ( launchWorkerIfNeeded(predictedTime) )
+					jsonResponse.add("event", "launchingWorker");
 			}
 			else
 				jsonResponse.add("execution", execution.toJsonObject() );
@@ -201,14 +158,347 @@ public class ExecutionHandler {
 		
 		return jsonResponse;
 	}
+	
+	/**
+	 * Handles the event of a batch of new executions, submitted in a single request
+	 * Each distinct activity is verified once, the ids of the whole batch are taken at once and all the executions
+	 * are put in the waiting queue together. Then the ready workers of each activity are given executions in one pass
+	 * The executions that aren't valid get an error in their position of the response, the rest of the batch goes on
+	 * @param json with this structure { executions: [ { name: "name", input: "input" } ] }
+	 * @return JsonObject with this structure { executions: [ { id: id, status: "status", predictedTime: time } or { error: "error" } ] }
+	 */
+	public JsonObject newExecutions( JsonObject json ) {
+		
+		// Validate parameters
+		JsonValue executionsJsonValue = json.get("executions");
+		if ( executionsJsonValue == null ) return new JsonObject().add("error", "Parameter executions is null");
+		if ( !executionsJsonValue.isArray() ) return new JsonObject().add("error", "Parameter executions isn't a json array");
+		JsonArray executionsJson = executionsJsonValue.asArray();
+		
+		// Activities of the batch, verified once each
+		Map<String, Activity> activities = new HashMap<String, Activity>();
+		Map<String, String> activityErrors = new HashMap<String, String>();
+		
+		// Position of each execution in the response, or the error for that position
+		Execution [] executions = new Execution [executionsJson.size()];
+		String [] errors = new String [executionsJson.size()];
+		int valid = 0;
+		
+		for ( int i = 0; i < executionsJson.size(); i++ ) {
+			
+			JsonValue executionJsonValue = executionsJson.get(i);
+			if ( !executionJsonValue.isObject() ) { errors[i] = "Execution isn't a json object"; continue; }
+			JsonObject executionJson = executionJsonValue.asObject();
+			
+			JsonValue nameValue = executionJson.get("name");
+			if ( nameValue == null ) { errors[i] = "Parameter name is null"; continue; }
+			if ( !nameValue.isString() ) { errors[i] = "Parameter name isn't a string"; continue; }
+			String name = nameValue.asString();
+			
+			JsonValue inputValue = executionJson.get("input");
+			if ( inputValue != null && !inputValue.isString() ) { errors[i] = "Parameter input isn't a string"; continue; }
+			
+			// Verify that the activity exists and it's approved, only the first time it appears in the batch
+			if ( !activities.containsKey(name) && !activityErrors.containsKey(name) ) {
+				ActivityDAO adao = new ActivityDAO();
+				Activity activity = adao.select(name);
+				if ( activity == null )
+					activityErrors.put(name, adao.getError() == null || adao.getError().equals("") ? "The requested activity doesn't exist" : adao.getError());
+				else if ( !"approved".equals(activity.getStatus()) && !"verifying".equals(activity.getStatus()) )
+					activityErrors.put(name, "The requested activity isn't approved for executions. Its current status is "+activity.getStatus());
+				else
+					activities.put(name, activity);
+			}
+			if ( activityErrors.containsKey(name) ) { errors[i] = activityErrors.get(name); continue; }
+			
+			Execution execution = new Execution();
+			execution.setStdin( inputValue != null ? inputValue.asString() : null );
+			execution.setActivityName(name);
+			execution.setActivityId( activities.get(name).getId() );
+			execution.setStatus("waiting");
+			executions[i] = execution;
+			valid++;
+		}
+		
+		// Ids for the whole batch, consecutive and in the order of the request
+		List<Execution> batch = new ArrayList<Execution>(valid);
+		long nextId = valid > 0 ? IdGenerator.newIds(valid) : 0;
+		ExecutionMap map = new ExecutionMap();
+		for ( Execution execution : executions ) {
+			if ( execution == null ) continue;
+			execution.setId(nextId++);
+			map.put(execution);
+			batch.add(execution);
+		}
+		
+		ExecutionWaitingQueue queue = new ExecutionWaitingQueue();
+		queue.putAll(batch);
+		
+		// One pass through the activities of the batch, giving executions to their ready workers
+		// The executions are pulled from the queue, so the ones that were already waiting go first
+		WorkerRegistry registry = new WorkerRegistry();
+		for ( Activity activity : activities.values() ) {
+			Worker worker;
+			while ( (worker = registry.claim( activity.getId() )) != null ) {
+				Execution execution = queue.pull( new int [] { activity.getId() } );
+				if ( execution == null ) {
+					registry.releaseSlot( worker.getId(), "ready" );
+					break;
+				}
+				execution.setStatus("in progress");
+				execution.setStartTime(new Date().getTime());
+				execution.setWorkerIP( worker.getLocalIp() );
+				map.put(execution);
+				dispatch(execution, worker, 1);
+			}
+		}
+		
+		// Predicted times, calculated once per activity
+		ActivityHandler ah = new ActivityHandler();
+		Map<Integer, Integer> meanTimes = new HashMap<Integer, Integer>();
+		Map<Integer, Integer> timesToFinish = new HashMap<Integer, Integer>();
+		int maxPredictedTime = 0;
+		
+		JsonArray executionsResponse = new JsonArray();
+		for ( int i = 0; i < executions.length; i++ ) {
+			
+			if ( executions[i] == null ) {
+				executionsResponse.add( new JsonObject().add("error", errors[i]) );
+				continue;
+			}
+			
+			Execution execution = executions[i];
+			int activityId = execution.getActivityId();
+			JsonObject executionJson = execution.toJsonObject();
+			
+			if ( "in progress".equals(execution.getStatus()) ) {
+				if ( !meanTimes.containsKey(activityId) ) meanTimes.put(activityId, ah.getMeanTime(activityId));
+				executionJson.add("predictedTime", meanTimes.get(activityId));
+			}
+			else if ( timesToFinish.containsKey(activityId) || ah.areSamplesTaken(activityId) ) {
+				if ( !timesToFinish.containsKey(activityId) ) timesToFinish.put(activityId, calculateTimeToFinish(activityId));
+				executionJson.add("predictedTime", timesToFinish.get(activityId));
+				maxPredictedTime = Math.max(maxPredictedTime, timesToFinish.get(activityId));
+			}
+			executionsResponse.add(executionJson);
+		}
+		
+		JsonObject jsonResponse = new JsonObject().add("executions", executionsResponse);
+		
+		// A single check for the whole batch
+		if ( maxPredictedTime > 0 && launchWorkerIfNeeded(maxPredictedTime) )
+			jsonResponse.add("event", "launchingWorker");
+		
+		return jsonResponse;
+	}
+	
+	/**
+	 * Launches a new worker if the executions would wait longer than the active policy allows
+	 * and the policy allows more workers
+	 * @param predictedTime time that the new executions are expected to take until they finish
+	 * @return true if a worker is being launched
+	 */
+	private boolean launchWorkerIfNeeded ( int predictedTime ) {
+		
+		PolicyDAO pdao = new PolicyDAO();
+		Policy activePolicy = pdao.getActive();
+		WorkerHandler wh = new WorkerHandler();
+		
+		// Only consider launching a new worker if we haven't reach the maximum
+		if ( activePolicy.getMaxWorkers() <= wh.getTotalWorkers() )
+			return false;
+		
+		int maxWait = ServerProperties.DEFAULT_MAX_WAIT;
+		if ( activePolicy.getRule("maxWait") != null )
+			maxWait = Integer.parseInt( activePolicy.getRule("maxWait") );
+		
+		if ( predictedTime <= maxWait )
+			return false;
+		
+		// Launch worker in new thread (otherwise, the response takes more time to be sent)
+		// A stopped worker of the warm pool is started if there is one, which is much faster than deploying a new one
+		new Thread () {
+			public void run() {
+				WorkerHandler wh = new WorkerHandler();
+				wh.addWorker();
+			}
+		}.start();
+		return true;
+	}
 
 	
+	/**
+	 * Sends the execution to the worker without waiting for the response
+	 * If the worker can't be contacted, it's put in error status, so no more executions are sent to it,
+	 * and the execution is sent to another worker or put back in the waiting queue
+	 * If the message reached the worker but the answer didn't arrive, the worker could have started the execution,
+	 * so it's asked for the execution before sending it anywhere else
+	 * @param execution execution already in the map with status 'in progress'
+	 * @param worker worker that has a slot claimed for the execution
+	 * @param attempt number of workers tried for this execution, including this one
+	 */
+	private void dispatch ( final Execution execution , final Worker worker , final int attempt ) {
+		
+		// Prepare message
+		JsonObject message = new JsonObject();
+		message.add("action", Action.PERFORM_EXECUTION.getId() );
+		message.add("execution", execution.toJsonObject());
+		
+		// Set the public DNS of the worker. If empty, it will mean this same machine
+		HttpSender sender = new HttpSender();
+		sender.setDestinationIP( worker.getLocalIp() );
+		sender.setDestinationRole("worker");
+		sender.setMessage(message);
+		
+		sender.sendAsync(new HttpSender.Callback() {
+			
+			public void completed(String response) {
+				deliveryFailures.remove( worker.getId() );
+				if ( isRunning(response) )
+					return;
+				log.e("Worker "+worker.getId()+" didn't start execution "+execution.getId()+": "+response);
+				new WorkerRegistry().releaseSlot( worker.getId(), "ready" );
+				redispatch(execution, attempt + 1);
+			}
+			
+			public void failed(IOException e) {
+				log.e("Couldn't send execution "+execution.getId()+" to worker "+worker.getId()+": "+e.toString());
+				if ( HttpSender.isNotDelivered(e) ) {
+					deliveryFailed(worker);
+					redispatch(execution, attempt + 1);
+				}
+				else
+					verifyDispatch(execution, worker, attempt);
+			}
+		});
+	}
+	
+	/**
+	 * Asks the worker if it's running an execution whose dispatch didn't get an answer
+	 * If it isn't, and the execution hasn't been reported meanwhile, it's sent to another worker
+	 * @param execution
+	 * @param worker
+	 * @param attempt
+	 */
+	private void verifyDispatch ( final Execution execution , final Worker worker , final int attempt ) {
+		
+		JsonObject message = new JsonObject();
+		message.add("action", Action.GET_EXECUTION_PROGRESS.getId());
+		message.add("execution", new JsonObject().add("id", execution.getId())
+				.add("stdoutOffset", 0)
+				.add("stderrOffset", 0));
+		
+		HttpSender sender = new HttpSender();
+		sender.setDestinationIP( worker.getLocalIp() );
+		sender.setDestinationRole("worker");
+		sender.setMessage(message);
+		
+		sender.sendAsync(new HttpSender.Callback() {
+			
+			public void completed(String response) {
+				deliveryFailures.remove( worker.getId() );
+				if ( isRunning(response) )
+					return;
+				
+				// The worker could have finished it already, and then the execution isn't in progress in this worker anymore
+				Execution current = new ExecutionMap().get( execution.getId() );
+				if ( current == null || !"in progress".equals(current.getStatus()) || !worker.getLocalIp().equals(current.getWorkerIP()) )
+					return;
+				
+				log.i("Worker "+worker.getId()+" isn't running execution "+execution.getId()+". It's sent again");
+				new WorkerRegistry().releaseSlot( worker.getId(), "ready" );
+				redispatch(execution, attempt + 1);
+			}
+			
+			public void failed(IOException e) {
+				log.e("Couldn't verify execution "+execution.getId()+" in worker "+worker.getId()+": "+e.toString());
+				deliveryFailed(worker);
+				redispatch(execution, attempt + 1);
+			}
+		});
+	}
+	
+	/**
+	 * Releases the slot of an execution that couldn't be delivered to the worker
+	 * The worker is only set to error after MAX_DELIVERY_FAILURES consecutive failures, a single one can be a transient network error
+	 * @param worker
+	 */
+	private static void deliveryFailed ( Worker worker ) {
+		
+		AtomicInteger failures = deliveryFailures.get( worker.getId() );
+		if ( failures == null ) {
+			AtomicInteger newFailures = new AtomicInteger();
+			failures = deliveryFailures.putIfAbsent( worker.getId(), newFailures );
+			if ( failures == null ) failures = newFailures;
+		}
+		
+		if ( failures.incrementAndGet() < MAX_DELIVERY_FAILURES ) {
+			new WorkerRegistry().releaseSlot( worker.getId(), "ready" );
+			return;
+		}
+		
+		log.e("Worker "+worker.getId()+" didn't receive "+MAX_DELIVERY_FAILURES+" executions in a row. Its status is set to error");
+		deliveryFailures.remove( worker.getId() );
+		new WorkerRegistry().releaseSlot( worker.getId(), "error" );
+	}
+	
+	/**
+	 * Returns true if the response of a worker echoes the execution with status 'in progress'
+	 * @param response
+	 * @return
+	 */
+	private static boolean isRunning ( String response ) {
+		try {
+			JsonValue executionValue = JsonObject.readFrom(response).get("execution");
+			return executionValue != null && executionValue.isObject() && executionValue.asObject().get("status") != null
+					&& "in progress".equals( executionValue.asObject().get("status").asString() );
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Tries to send an execution that couldn't be delivered to another worker with its activity
+	 * If there isn't any available, or it was tried too many times, the execution goes back to the waiting queue
+	 * @param execution
+	 * @param attempt
+	 */
+	private void redispatch ( Execution execution , int attempt ) {
+		
+		ExecutionMap map = new ExecutionMap();
+		
+		// The client could have terminated it in the meantime
+		if ( map.get(execution.getId()) == null )
+			return;
+		
+		Worker worker = null;
+		if ( attempt <= MAX_DISPATCH_ATTEMPTS )
+			worker = new WorkerRegistry().claim( execution.getActivityId() );
+		
+		if ( worker != null ) {
+			execution.setWorkerIP( worker.getLocalIp() );
+			map.put(execution);
+			dispatch(execution, worker, attempt);
+			return;
+		}
+		
+		log.i("Execution "+execution.getId()+" goes back to the waiting queue");
+		execution.setStatus("waiting");
+		execution.setWorkerIP(null);
+		execution.setStartTime(0);
+		map.put(execution);
+		new ExecutionWaitingQueue().put(execution);
+	}
+	
 	/**
 	 * Fetches the execution status and information
 	 * If the execution is done, the json response will contain the execution in json format
 	 * If there was an error, the json response will contain the error description
 	 * In any other case, the json response will only inform about the current status
-	 * @param json with this structure { execution: { id: id } }
+	 * 
+	 * The optional offsets indicate how much output the client already has. In that case only the output after them is returned,
+	 * and the response includes the offsets to use in the next request
+	 * @param json with this structure { execution: { id: id, stdoutOffset: offset, stderrOffset: offset } }
 	 * @return
 	 */
 	public JsonObject getExecutionStatus (JsonObject json) {
@@ -222,7 +512,12 @@ public class ExecutionHandler {
 		JsonValue executionIdValue = executionJson.get("id");
 		if ( executionIdValue == null ) return new JsonObject().add("error", "Parameter id is null");
 		if ( !executionIdValue.isNumber() ) return new JsonObject().add("error", "Parameter id isn't a string");
-		int executionId = executionIdValue.asInt();
+		long executionId = executionIdValue.asLong();
+		
+		// Offsets of the output that the client already has, in characters
+		int stdoutOffset = executionJson.get("stdoutOffset") != null && executionJson.get("stdoutOffset").isNumber() ? executionJson.get("stdoutOffset").asInt() : -1;
+		int stderrOffset = executionJson.get("stderrOffset") != null && executionJson.get("stderrOffset").isNumber() ? executionJson.get("stderrOffset").asInt() : -1;
+		boolean incremental = stdoutOffset >= 0 || stderrOffset >= 0;
 		
 		// Retrieve execution status
 		ExecutionMap map = new ExecutionMap();
@@ -235,57 +530,309 @@ public class ExecutionHandler {
 		
 		// In case the execution is done, we pull it (remove it)
 		if ( "finished".equals(execution.getStatus()) || "error".equals(execution.getStatus()) || "terminated".equals(execution.getStatus()) ) {
-			return new JsonObject().add("execution", map.pull(executionId).toJsonObject());
+			// Another client could have pulled it since it was read
+			Execution pulled = map.pull(executionId);
+			if ( pulled == null )
+				return new JsonObject().add("error", "Execution with id "+executionId+" doesn't exist, its result has already been retrieved or it expired");
+			JsonObject executionResponse = pulled.toJsonObject();
+			if ( incremental ) {
+				String stdout = execution.getStdout() != null ? execution.getStdout() : "";
+				String stderr = execution.getStderr() != null ? execution.getStderr() : "";
+				executionResponse.set("stdout", stdoutOffset <= 0 ? stdout : ( stdoutOffset >= stdout.length() ? "" : stdout.substring(stdoutOffset) ));
+				executionResponse.set("stderr", stderrOffset <= 0 ? stderr : ( stderrOffset >= stderr.length() ? "" : stderr.substring(stderrOffset) ));
+				executionResponse.add("stdoutOffset", stdout.length()).add("stderrOffset", stderr.length());
+			}
+			return new JsonObject().add("execution", executionResponse);
 		}
 		
-		// In case it's "in progress", we ask the worker about the progress
+		// In case it's "in progress", the output is taken from the copy the manager keeps for this execution
+		// The worker is only asked for the output produced since the last request, and not more than once per refresh interval
 		if ( "in progress".equals(execution.getStatus()) ) {
 			
+			ExecutionOutput output = map.getOutput(executionId);
+			if ( output == null )
+				return new JsonObject().add("error", "Execution with id "+executionId+" doesn't exist, its result has already been retrieved or it expired");
+			
+			// Only one thread at a time contacts the worker, the rest use the output the manager has
+			if ( output.startRefresh(ServerProperties.PROGRESS_REFRESH_INTERVAL) ) {
+				try {
+					refreshOutput(execution, output);
+				} finally {
+					output.endRefresh();
+				}
+			}
+			
+			JsonObject executionResponse = execution.toJsonObject();
+			executionResponse.set("stdout", output.getStdout(stdoutOffset));
+			executionResponse.set("stderr", output.getStderr(stderrOffset));
+			if ( incremental )
+				executionResponse.add("stdoutOffset", output.getStdoutLength()).add("stderrOffset", output.getStderrLength());
+			return new JsonObject().add("execution", executionResponse );
+		}
+		
+		// Otherwise, we just get it
+		return new JsonObject().add("execution", execution.toJsonObject());
+	}
+
+	/**
+	 * Fetches the status of many executions at once
+	 * The executions that are done are pulled from the map and returned complete, like in getExecutionStatus
+	 * For the rest only the status is returned. If the output is asked for, the output of the executions in progress is included,
+	 * and the workers are contacted only for the ones whose output isn't recent, with one request per worker
+	 * @param json with this structure { ids: [ id ], output: false } or { from: id, to: id, output: false }. The range includes both ends
+	 * and the ids that aren't in the system are left out of the response
+	 * @return JsonObject with this structure { executions: [ execution or { id: id, error: "error" } ] }
+	 */
+	public JsonObject getExecutionStatuses (JsonObject json) {
+		
+		// Validate parameters
+		List<Long> ids = new ArrayList<Long>();
+		boolean range = false;
+		if ( json.get("ids") != null ) {
+			if ( !json.get("ids").isArray() ) return new JsonObject().add("error", "Parameter ids isn't a json array");
+			for ( JsonValue value : json.get("ids").asArray() ) {
+				if ( !value.isNumber() ) return new JsonObject().add("error", "Parameter ids must contain only numbers");
+				ids.add( value.asLong() );
+			}
+		}
+		else if ( json.get("from") != null && json.get("to") != null ) {
+			if ( !json.get("from").isNumber() || !json.get("to").isNumber() ) return new JsonObject().add("error", "Parameters from and to must be numbers");
+			long from = Math.max( json.get("from").asLong(), ExecutionMap.getOldestId() );
+			long to = Math.min( json.get("to").asLong(), ExecutionMap.getNewestId() );
+			if ( to - from >= MAX_STATUS_BATCH ) return new JsonObject().add("error", "The range can't have more than "+MAX_STATUS_BATCH+" executions");
+			for ( long id = from; id <= to; id++ )
+				ids.add(id);
+			range = true;
+		}
+		else
+			return new JsonObject().add("error", "Parameter ids or parameters from and to are needed");
+		
+		if ( ids.size() > MAX_STATUS_BATCH ) return new JsonObject().add("error", "No more than "+MAX_STATUS_BATCH+" executions can be requested at once");
+		boolean withOutput = json.get("output") != null && json.get("output").isBoolean() && json.get("output").asBoolean();
+		
+		ExecutionMap map = new ExecutionMap();
+		JsonObject [] results = new JsonObject [ids.size()];
+		Map<Integer, Execution> inProgress = new HashMap<Integer, Execution>();
+		
+		for ( int i = 0; i < ids.size(); i++ ) {
+			
+			long executionId = ids.get(i);
+			Execution execution = map.get(executionId);
+			
+			if ( execution == null ) {
+				if ( !range )
+					results[i] = new JsonObject().add("id", executionId).add("error", "Execution with id "+executionId+" doesn't exist, its result has already been retrieved or it expired");
+			}
+			
+			// In case the execution is done, we pull it (remove it)
+			else if ( "finished".equals(execution.getStatus()) || "error".equals(execution.getStatus()) || "terminated".equals(execution.getStatus()) ) {
+				Execution pulled = map.pull(executionId);
+				results[i] = ( pulled != null ? pulled : execution ).toJsonObject();
+			}
+			
+			else {
+				results[i] = new JsonObject().add("id", executionId).add("status", execution.getStatus());
+				if ( execution.getActivityName() != null ) results[i].add("activityName", execution.getActivityName());
+				if ( execution.getStartTime() != 0 ) results[i].add("startTime", execution.getStartTime());
+				if ( withOutput && "in progress".equals(execution.getStatus()) )
+					inProgress.put(i, execution);
+			}
+		}
+		
+		// The output of the executions in progress, asking the workers only for the stale ones
+		if ( !inProgress.isEmpty() ) {
+			
+			Map<String, List<Execution>> staleByWorker = new HashMap<String, List<Execution>>();
+			List<ExecutionOutput> refreshing = new ArrayList<ExecutionOutput>();
+			for ( Execution execution : inProgress.values() ) {
+				ExecutionOutput output = map.getOutput( execution.getId() );
+				if ( output == null || execution.getWorkerIP() == null || !output.startRefresh(ServerProperties.PROGRESS_REFRESH_INTERVAL) )
+					continue;
+				refreshing.add(output);
+				List<Execution> list = staleByWorker.get( execution.getWorkerIP() );
+				if ( list == null ) {
+					list = new ArrayList<Execution>();
+					staleByWorker.put( execution.getWorkerIP(), list );
+				}
+				list.add(execution);
+			}
+			try {
+				refreshOutputs(staleByWorker);
+			} finally {
+				for ( ExecutionOutput output : refreshing )
+					output.endRefresh();
+			}
+			
+			for ( Map.Entry<Integer, Execution> entry : inProgress.entrySet() ) {
+				ExecutionOutput output = map.getOutput( entry.getValue().getId() );
+				if ( output == null ) continue;
+				results[entry.getKey()].add("stdout", output.getStdout(0)).add("stderr", output.getStderr(0));
+			}
+		}
+		
+		JsonArray executionsResponse = new JsonArray();
+		for ( JsonObject result : results )
+			if ( result != null )
+				executionsResponse.add(result);
+		
+		return new JsonObject().add("executions", executionsResponse);
+	}
+	
+	/**
+	 * Asks each worker for the output of its executions in a single request, sending all the requests at the same time
+	 * Waits for the responses at most the read timeout of the HTTP client
+	 * @param executionsByWorker executions in progress grouped by the IP of their worker
+	 */
+	private void refreshOutputs ( Map<String, List<Execution>> executionsByWorker ) {
+		
+		final ExecutionMap map = new ExecutionMap();
+		final CountDownLatch latch = new CountDownLatch( executionsByWorker.size() );
+		
+		// Offsets asked for each execution, where the output in the responses starts
+		final Map<Long, long[]> requestedOffsets = new ConcurrentHashMap<Long, long[]>();
+		
+		for ( Map.Entry<String, List<Execution>> entry : executionsByWorker.entrySet() ) {
+			
+			JsonArray executionsJson = new JsonArray();
+			for ( Execution execution : entry.getValue() ) {
+				ExecutionOutput output = map.getOutput( execution.getId() );
+				if ( output == null ) continue;
+				long [] offsets = new long [] { output.getWorkerStdoutOffset(), output.getWorkerStderrOffset() };
+				requestedOffsets.put( execution.getId(), offsets );
+				executionsJson.add( new JsonObject().add("id", execution.getId())
+						.add("stdoutOffset", offsets[0])
+						.add("stderrOffset", offsets[1]) );
+			}
+			
 			JsonObject message = new JsonObject();
 			message.add("action", Action.GET_EXECUTION_PROGRESS.getId());
-			message.add("execution", new JsonObject().add("id", executionId));
+			message.add("executions", executionsJson);
 			
 			HttpSender sender = new HttpSender();
-			sender.setDestinationIP( execution.getWorkerIP() );
+			sender.setDestinationIP( entry.getKey() );
 			sender.setDestinationRole("worker");
 			sender.setMessage(message);
-			String response = null;
-			try {
-				response = sender.send();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			// We add the stdout and stderr to the execution object retrieved from the map
-			// That way, the response execution object contains all the info
-			JsonObject responseJson = JsonObject.readFrom(response);
-			execution.setStdout( responseJson.get("execution").asObject().get("stdout").asString() );
-			execution.setStderr( responseJson.get("execution").asObject().get("stderr").asString() );
-			return new JsonObject().add("execution", execution.toJsonObject() );
+			sender.sendAsync(new HttpSender.Callback() {
+				
+				public void completed(String response) {
+					try {
+						JsonValue executionsValue = JsonObject.readFrom(response).get("executions");
+						if ( executionsValue == null || !executionsValue.isArray() )
+							return;
+						for ( JsonValue value : executionsValue.asArray() ) {
+							JsonObject executionJson = value.asObject();
+							ExecutionOutput output = map.getOutput( executionJson.get("id").asLong() );
+							long [] offsets = requestedOffsets.get( executionJson.get("id").asLong() );
+							if ( output == null || offsets == null || executionJson.get("stdoutOffset") == null )
+								continue;
+							// The worker could have pushed part of this output in the meantime
+							output.push( executionJson.get("stdout").asString(), offsets[0], executionJson.get("stdoutOffset").asLong(),
+									executionJson.get("stderr").asString(), offsets[1], executionJson.get("stderrOffset").asLong() );
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+				
+				public void failed(IOException e) {
+					log.e("Couldn't get the output of the executions from a worker: "+e.toString());
+					latch.countDown();
+				}
+			});
 		}
 		
-		// Otherwise, we just get it
-		return new JsonObject().add("execution", map.get(executionId).toJsonObject());
+		try {
+			latch.await( ServerProperties.getHttpReadTimeout(), TimeUnit.MILLISECONDS );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Asks the worker of the execution for the output produced after the offsets that the manager already has
+	 * and adds it to the given output
+	 * @param execution
+	 * @param output
+	 */
+	private void refreshOutput ( Execution execution , ExecutionOutput output ) {
+		
+		long stdoutStart = output.getWorkerStdoutOffset();
+		long stderrStart = output.getWorkerStderrOffset();
+		
+		JsonObject message = new JsonObject();
+		message.add("action", Action.GET_EXECUTION_PROGRESS.getId());
+		message.add("execution", new JsonObject().add("id", execution.getId())
+				.add("stdoutOffset", stdoutStart)
+				.add("stderrOffset", stderrStart));
+		
+		HttpSender sender = new HttpSender();
+		sender.setDestinationIP( execution.getWorkerIP() );
+		sender.setDestinationRole("worker");
+		sender.setMessage(message);
+		String response = null;
+		try {
+			response = sender.send();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		output.setRefreshed();
+		
+		// If the worker doesn't have the execution anymore, its report is on the way
+		JsonObject responseJson = JsonObject.readFrom(response);
+		if ( responseJson.get("execution") == null )
+			return;
+		
+		JsonObject executionJson = responseJson.get("execution").asObject();
+		
+		// Workers that don't support offsets return the whole output
+		if ( executionJson.get("stdoutOffset") == null ) {
+			String stdout = executionJson.get("stdout") != null ? executionJson.get("stdout").asString() : "";
+			String stderr = executionJson.get("stderr") != null ? executionJson.get("stderr").asString() : "";
+			output.append( stdout.substring( Math.min(output.getStdoutLength(), stdout.length()) ), 0,
+					stderr.substring( Math.min(output.getStderrLength(), stderr.length()) ), 0 );
+			return;
+		}
+		
+		// The worker could have pushed part of this output in the meantime
+		output.push( executionJson.get("stdout").asString(), stdoutStart, executionJson.get("stdoutOffset").asLong(),
+				executionJson.get("stderr").asString(), stderrStart, executionJson.get("stderrOffset").asLong() );
 	}
 
 	/**
 	 * This method will be invoked by a request from a worker
 	 * It will read the execution object passed via JSON and put it in the Execution map so the client can retrieve it
-	 * @param json with this structure { execution: { status : "status" } }
+	 *
+	 * If the worker already started an execution assigned in advance in the released slot (slotInUse), the slot is kept
+	 * The worker also tells how many executions assigned in advance it still has (prefetched). The response includes
+	 * more executions for it, up to the prefetch size of the active policy
+	 * @param json with this structure { execution: { status : "status" }, slotInUse: false, prefetched: 0 }
 	 * @return
 	 */
 	public JsonObject handleExecutionReport ( JsonObject json ) {
 		
-		WorkerDAO wdao = new WorkerDAO();
-		Worker worker = wdao.select( json.get("workerId").asInt() );
-		worker.setLastTimeWorked( new Date() );
-		wdao.update(worker);
+		// Several reports in the same message
+		if ( json.get("executions") != null )
+			return handleExecutionReports(json);
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		registry.updateLastTimeWorked( json.get("workerId").asInt() );
+		Worker worker = registry.get( json.get("workerId").asInt() );
+		if ( worker == null )
+			return new JsonObject().add("action", Action.ACK.getId()).add("error", "Worker "+json.get("workerId").asInt()+" isn't registered");
 		
 		Execution execution = new Execution (json.get("execution").asObject());
 		
+		// The report was applied already
+		Execution current = new ExecutionMap().get( execution.getId() );
+		if ( current != null && isDone(current) )
+			return new JsonObject().add("action", Action.ACK.getId());
+		
 		// If the execution finished without error, we update its finish time
 		// and use the total execution time to contribute to the mean
 		if( "finished".equals(execution.getStatus()) ) {
-			execution.setFinishTime(new Date().getTime());
+			if ( execution.getFinishTime() == 0 )
+				execution.setFinishTime(new Date().getTime());
 			
 			ActivityHandler ah = new ActivityHandler();
 			ah.newTimeRegister( execution.getActivityId() , (int)(execution.getFinishTime() - execution.getStartTime()) );
@@ -295,36 +842,317 @@ public class ExecutionHandler {
 		ExecutionMap map = new ExecutionMap();
 		map.put(execution);
 		
-		// In case there was an error in the worker with the execution
-		if ( "error".equals(execution.getStatus()) )
+		boolean slotInUse = json.get("slotInUse") != null && json.get("slotInUse").asBoolean();
+		
+		// In case there was an error in the worker with the execution, its slot is released
+		if ( "error".equals(execution.getStatus()) ) {
+			if ( !slotInUse )
+				registry.releaseSlot( worker.getId(), "ready" );
 			return new JsonObject().add("action", Action.ACK.getId()).add("error","error with the execution at the worker");
+		}
 		
 		
 		// If the message contains executionChaining=false, we don't try to find another execution to send
-		// because the worker is busy installing something
-		if ( json.get("executionChaining") != null && !json.get("executionChaining").asBoolean() )
+		// because the worker is busy installing something. Its slot is released but it stays 'working' during the installation
+		if ( json.get("executionChaining") != null && !json.get("executionChaining").asBoolean() ) {
+			if ( !slotInUse )
+				registry.releaseSlot( worker.getId(), "working" );
 			return new JsonObject().add("action", Action.ACK.getId());
+		}
 		
 		// Look for pending executions in the queue, and return a PERFORM_EXECUTION if there are
 		// If there aren't, the json message will be a simple ACK
-		return lookForPendingExecution ( worker );
+		JsonObject jsonResponse;
+		if ( slotInUse ) {
+			registry.updateLastTimeWorked( worker.getId() );
+			jsonResponse = new JsonObject().add("action", Action.ACK.getId());
+		}
+		else
+			jsonResponse = lookForPendingExecution ( worker );
+		
+		// Workers that don't send the prefetched count don't support executions in advance
+		if ( json.get("prefetched") != null ) {
+			JsonArray prefetch = prefetch( worker, getPrefetchSize() - json.get("prefetched").asInt() );
+			if ( !prefetch.isEmpty() )
+				jsonResponse.add("prefetch", prefetch);
+		}
+		
+		return jsonResponse;
+	}
+	
+	/**
+	 * Applies a batch of reports of finished executions sent by a worker in one message
+	 * The worker is updated once, and the executions for the released slots and the ones assigned in advance
+	 * are taken from the waiting queue in one operation
+	 *
+	 * The worker sends again a message whose answer it didn't get, with the same reportId. That message isn't applied again,
+	 * it gets the same answer, so the executions assigned in it reach the worker
+	 * Reports of executions that are already done are ignored, so they don't count twice in the times and the slots
+	 * @param json with this structure { reportId: id, executions: [ { execution: { status : "status" }, slotInUse: false } ], prefetched: 0, claimed: 0, executionChaining: true }
+	 * @return JsonObject with this structure { action: ACK, perform: [ execution ], prefetch: [ execution ] }
+	 */
+	public JsonObject handleExecutionReports ( JsonObject json ) {
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		int workerId = json.get("workerId").asInt();
+		registry.updateLastTimeWorked(workerId);
+		Worker worker = registry.get(workerId);
+		if ( worker == null )
+			return new JsonObject().add("action", Action.ACK.getId()).add("error", "Worker "+workerId+" isn't registered");
+		
+		long reportId = json.get("reportId") != null ? json.get("reportId").asLong() : 0;
+		AppliedReport applied = appliedReports.get(workerId);
+		if ( applied == null ) {
+			appliedReports.putIfAbsent(workerId, new AppliedReport());
+			applied = appliedReports.get(workerId);
+		}
+		
+		// The messages of the same worker are applied one at a time
+		synchronized (applied) {
+			if ( reportId != 0 && reportId == applied.reportId ) {
+				log.i("Reports "+reportId+" of worker "+workerId+" were already applied. The same answer is sent again");
+				return applied.response;
+			}
+			JsonObject response = applyExecutionReports(json, worker);
+			applied.reportId = reportId;
+			applied.response = response;
+			return response;
+		}
+	}
+	
+	private JsonObject applyExecutionReports ( JsonObject json , Worker worker ) {
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		ExecutionMap map = new ExecutionMap();
+		ActivityHandler ah = new ActivityHandler();
+		long now = new Date().getTime();
+		int releasedSlots = 0;
+		int errors = 0;
+		
+		for ( JsonValue value : json.get("executions").asArray() ) {
+			
+			JsonObject report = value.asObject();
+			Execution execution = new Execution (report.get("execution").asObject());
+			
+			// The report was applied already
+			Execution current = map.get( execution.getId() );
+			if ( current != null && isDone(current) ) {
+				log.i("Report of execution "+execution.getId()+" ignored, it's already "+current.getStatus());
+				continue;
+			}
+			
+			// If the execution finished without error, we update its finish time
+			// and use the total execution time to contribute to the mean
+			// The times are the ones of the worker, so the time waiting there isn't counted
+			if( "finished".equals(execution.getStatus()) ) {
+				if ( execution.getFinishTime() == 0 )
+					execution.setFinishTime(now);
+				ah.newTimeRegister( execution.getActivityId() , (int)(execution.getFinishTime() - execution.getStartTime()) );
+			}
+			if ( "error".equals(execution.getStatus()) )
+				errors++;
+			
+			// Put the execution object in the map, so the client can retrieve it later
+			map.put(execution);
+			
+			if ( report.get("slotInUse") == null || !report.get("slotInUse").asBoolean() )
+				releasedSlots++;
+		}
+		
+		// Slots taken in the worker by executions assigned in advance, because they were free when the executions arrived
+		int claimedSlots = json.get("claimed") != null ? json.get("claimed").asInt() : 0;
+		for ( int i = 0; i < claimedSlots; i++ )
+			registry.acquireSlot( worker.getId() );
+		
+		JsonObject jsonResponse = new JsonObject().add("action", Action.ACK.getId());
+		if ( errors > 0 )
+			jsonResponse.add("error", errors+" executions had errors at the worker");
+		
+		// The worker is busy installing something. Its slots are released but it stays 'working' during the installation
+		if ( json.get("executionChaining") != null && !json.get("executionChaining").asBoolean() ) {
+			if ( releasedSlots > 0 )
+				registry.releaseSlots( worker.getId(), releasedSlots, "working" );
+			return jsonResponse;
+		}
+		
+		// Executions for the released slots first, then the ones in advance
+		int prefetchCount = json.get("prefetched") != null ? Math.max( getPrefetchSize() - json.get("prefetched").asInt(), 0 ) : 0;
+		List<Execution> executions = new ExecutionWaitingQueue().pull( registry.getInstalledActivityIds( worker.getId() ), releasedSlots + prefetchCount );
+		
+		JsonArray perform = new JsonArray();
+		JsonArray prefetch = new JsonArray();
+		for ( int i = 0; i < executions.size(); i++ ) {
+			Execution execution = executions.get(i);
+			execution.setStatus("in progress");
+			// The ones in advance haven't started yet, the worker sets the time when it starts them
+			execution.setStartTime( i < releasedSlots ? now : 0 );
+			execution.setWorkerIP( worker.getLocalIp() );
+			map.put(execution);
+			if ( i < releasedSlots )
+				perform.add( execution.toJsonObject() );
+			else
+				prefetch.add( execution.toJsonObject() );
+		}
+		
+		// The slots that didn't get a new execution are free
+		if ( releasedSlots > perform.size() )
+			registry.releaseSlots( worker.getId(), releasedSlots - perform.size(), "ready" );
+		
+		if ( !perform.isEmpty() )
+			jsonResponse.add("perform", perform);
+		if ( !prefetch.isEmpty() )
+			jsonResponse.add("prefetch", prefetch);
+		
+		return jsonResponse;
+	}
+	
+	/**
+	 * Assigns executions from the waiting queue to the worker in advance
+	 * They are 'in progress' in the worker from now on, so they count as assigned and are reclaimed if the worker dies
+	 * @param worker
+	 * @param count maximum number of executions
+	 * @return array with the executions in json format
+	 */
+	private JsonArray prefetch ( Worker worker , int count ) {
+		
+		JsonArray prefetched = new JsonArray();
+		if ( count <= 0 )
+			return prefetched;
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		int[] activityIds = registry.getInstalledActivityIds( worker.getId() );
+		ExecutionWaitingQueue queue = new ExecutionWaitingQueue();
+		ExecutionMap map = new ExecutionMap();
+		
+		for ( int i = 0; i < count; i++ ) {
+			Execution execution = queue.pull(activityIds);
+			if ( execution == null )
+				break;
+			execution.setStatus("in progress");
+			execution.setStartTime(0);
+			execution.setWorkerIP( worker.getLocalIp() );
+			map.put(execution);
+			prefetched.add( execution.toJsonObject() );
+		}
+		
+		return prefetched;
+	}
+	
+	/**
+	 * Returns how many executions each worker can have assigned in advance, from the prefetch rule of the active policy
+	 * @return
+	 */
+	private int getPrefetchSize () {
+		Policy activePolicy = new PolicyDAO().getActive();
+		if ( activePolicy == null || activePolicy.getRule("prefetch") == null )
+			return ServerProperties.DEFAULT_PREFETCH_SIZE;
+		try {
+			return Integer.parseInt( activePolicy.getRule("prefetch") );
+		} catch ( NumberFormatException e ) {
+			return ServerProperties.DEFAULT_PREFETCH_SIZE;
+		}
+	}
+	
+	/**
+	 * Returns true if the execution is finished, terminated or failed
+	 * @param execution
+	 * @return
+	 */
+	private static boolean isDone ( Execution execution ) {
+		return "finished".equals(execution.getStatus()) || "error".equals(execution.getStatus()) || "terminated".equals(execution.getStatus());
+	}
+	
+	/**
+	 * Puts back in the waiting queue the executions that were assigned to a worker that isn't working anymore
+	 * That includes the ones it was running and the ones assigned in advance
+	 * @param worker
+	 * @return number of executions reclaimed
+	 */
+	public int reclaimExecutions ( Worker worker ) {
+		
+		if ( worker.getLocalIp() == null )
+			return 0;
+		
+		ExecutionMap map = new ExecutionMap();
+		List<Execution> reclaimed = new ArrayList<Execution>();
+		for ( Execution execution : map.executionsInProgress() ) {
+			if ( worker.getLocalIp().equals( execution.getWorkerIP() ) ) {
+				execution.setStatus("waiting");
+				execution.setWorkerIP(null);
+				execution.setStartTime(0);
+				map.put(execution);
+				reclaimed.add(execution);
+			}
+		}
+		
+		// In the order they were created
+		Collections.sort(reclaimed, new Comparator<Execution>() {
+			public int compare(Execution a, Execution b) {
+				return Long.compare(a.getId(), b.getId());
+			}
+		});
+		new ExecutionWaitingQueue().putAll(reclaimed);
+		
+		if ( !reclaimed.isEmpty() )
+			log.i("Reclaimed "+reclaimed.size()+" executions from worker "+worker.getId());
+		return reclaimed.size();
 	}
 	
 	
+	/**
+	 * This method will be invoked periodically by the workers with the output produced by their running executions
+	 * The output is appended to the copy that the manager keeps for each execution, from where it's sent to the clients
+	 * @param json with this structure { executions: [ { id: id, stdout: "", stdoutStart: offset, stdoutOffset: offset, stderr: ... } ] }
+	 * @return
+	 */
+	public JsonObject handleExecutionOutput ( JsonObject json ) {
+		
+		if ( json.get("executions") == null || !json.get("executions").isArray() )
+			return new JsonObject().add("action", Action.ACK.getId()).add("error", "Parameter executions isn't a json array");
+		
+		ExecutionMap map = new ExecutionMap();
+		for ( JsonValue value : json.get("executions").asArray() ) {
+			
+			JsonObject executionJson = value.asObject();
+			
+			// The execution could have been terminated or expired in the meantime
+			ExecutionOutput output = map.getOutput( executionJson.get("id").asLong() );
+			if ( output == null )
+				continue;
+			
+			output.push( executionJson.get("stdout").asString(), executionJson.get("stdoutStart").asLong(), executionJson.get("stdoutOffset").asLong(),
+					executionJson.get("stderr").asString(), executionJson.get("stderrStart").asLong(), executionJson.get("stderrOffset").asLong() );
+		}
+		
+		return new JsonObject().add("action", Action.ACK.getId());
+	}
+	
 	/**
 	 * This method is used to look in the waiting queue for activities that the given worker could perform
+	 * It's called when the worker has just finished an execution, so the slot it used is reused for the new one or released
 	 * The response object will be a simple ACK action or a PERFORM_EXECUTION action containing the info of the execution to perform
-	 * @param workerId
+	 * @param worker
 	 * @return
 	 */
 	public JsonObject lookForPendingExecution ( Worker worker ) {
+		return lookForPendingExecution( worker, true );
+	}
+	
+	/**
+	 * This method is used to look in the waiting queue for activities that the given worker could perform
+	 * The response object will be a simple ACK action or a PERFORM_EXECUTION action containing the info of the execution to perform
+	 * @param worker
+	 * @param slotInUse true if the worker reports from an execution slot that can be reused, false if a free slot must be taken
+	 * @return
+	 */
+	public JsonObject lookForPendingExecution ( Worker worker, boolean slotInUse ) {
 		
 		// Prepare response object
 		JsonObject jsonResponse = new JsonObject();
 		
 		// Check if there is a pending execution in the queue that this worker could handle
-		InstallationDAO idao = new InstallationDAO();
-		int[] activityIds = idao.selectInstalledActivityIdsByWorker( worker.getId() );
+		WorkerRegistry registry = new WorkerRegistry();
+		int[] activityIds = registry.getInstalledActivityIds( worker.getId() );
 		
 		ExecutionWaitingQueue queue = new ExecutionWaitingQueue();
 		Execution newExecution = queue.pull(activityIds);
@@ -332,15 +1160,20 @@ public class ExecutionHandler {
 		// If no pending executions in the queue are found
 		// we set the worker status to "ready" because it's available
 		if ( newExecution == null ) {
-			WorkerDAO wdao = new WorkerDAO();
-			wdao.updateStatus( worker.getId() , "ready");
+			if ( slotInUse )
+				registry.releaseSlot( worker.getId() , "ready");
+			else if ( worker.getFreeSlots() > 0 )
+				registry.setStatus( worker.getId() , "ready");
 
 			jsonResponse.add("action", Action.ACK.getId());
 		}
 		
-		// If there is a pending execution we don't change the status of the worker (keep it "working")
+		// If there is a pending execution we keep the slot, or take a new one if the worker wasn't using any
 		else {
 			
+			if ( !slotInUse )
+				registry.acquireSlot( worker.getId() );
+			
 			ExecutionMap map = new ExecutionMap();
 			
 			// We need to get its IP address to put it in the execution map
@@ -356,8 +1189,7 @@ public class ExecutionHandler {
 			jsonResponse.add("execution", newExecution.toJsonObject() );
 		}
 		
-		WorkerDAO wdao = new WorkerDAO();
-		wdao.updateLastTimeWorked( worker.getId() );
+		registry.updateLastTimeWorked( worker.getId() );
 		
 		return jsonResponse;
 	}
@@ -380,7 +1212,7 @@ public class ExecutionHandler {
 		JsonValue executionIdValue = executionJson.get("id");
 		if ( executionIdValue == null ) return new JsonObject().add("error", "Parameter id is null");
 		if ( !executionIdValue.isNumber() ) return new JsonObject().add("error", "Parameter id isn't a string");
-		int executionId = executionIdValue.asInt();
+		long executionId = executionIdValue.asLong();
 		
 		// The execution is removed from the map
 		ExecutionMap map = new ExecutionMap();
@@ -390,6 +1222,10 @@ public class ExecutionHandler {
 		if ( execution == null )
 			return new JsonObject().add("error", "The given execution wasn't being processed");
 		
+		// A waiting execution is taken out of the queue, so it's never sent to a worker
+		if ( new ExecutionWaitingQueue().remove( execution.getActivityId(), executionId ) != null )
+			execution.setStatus("terminated");
+		
 		// In case the execution is being processed right now by a worker
 		if ( execution.getWorkerIP() != null ) {
 			// Send termination request
@@ -437,19 +1273,21 @@ public class ExecutionHandler {
 		ActivityHandler ah = new ActivityHandler();
 		Date d = new Date();
 		for ( Execution e : executionsInProgress ) {
-			long expectedTime = e.getStartTime() - d.getTime() + ah.getMeanTime(e.getActivityId());
+			// The executions assigned in advance haven't started yet
+			long startTime = e.getStartTime() != 0 ? e.getStartTime() : d.getTime();
+			long expectedTime = startTime - d.getTime() + ah.getMeanTime(e.getActivityId());
 			time += expectedTime > 0 ? expectedTime : time; // don't change the time variable if the expected time results negative
 		}
 		
-		// Retrieve all executions from the queue
+		// Add the expected completion time of the executions in the queue, counted by activity
 		ExecutionWaitingQueue queue = new ExecutionWaitingQueue();
-		List<Execution> pendingExecutions = queue.getAll();
-		
-		// Add their expected completion time
-		for ( Execution e : pendingExecutions )
-			time += ah.getMeanTime(e.getActivityId());
+		int pendingExecutions = 0;
+		for ( Map.Entry<Integer, Integer> entry : queue.countByActivity().entrySet() ) {
+			time += (long) ah.getMeanTime(entry.getKey()) * entry.getValue();
+			pendingExecutions += entry.getValue();
+		}
 		
-		log.i("pending executions "+pendingExecutions.size());
+		log.i("pending executions "+pendingExecutions);
 		
 		// Calculate mean between workers
 		if ( executionsInProgress.length == 0 )
@@ -0,0 +1,340 @@
+package com.pod.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import main.resources.PodLogger;
+
+import com.eclipsesource.json.JsonObject;
+import com.pod.model.Execution;
+
+/**
+ * Append-only journal of the state transitions of the executions in the manager
+ *
+ * Every time an execution is put in the ExecutionMap (waiting, in progress, finished, error, terminated...) its state is appended,
+ * and every time it's removed a removal record is appended. When the manager starts, the journal is replayed to rebuild
+ * the execution map, the waiting queue and the id counter, so a redeploy doesn't lose the pending executions
+ * The output of the executions isn't journaled, so the ones that finished before a restart are recovered without it
+ *
+ * The file is memory mapped, so appending a record is a memory copy that survives a crash of the JVM
+ * A background thread forces the written pages to disk periodically, so many appends are committed with a single flush
+ * and the threads that append never wait for the disk
+ *
+ * When the journal gets full, it's compacted: a new file is written with only the current state of the executions in the map
+ *
+ * Record format: length (int), crc32 of the payload (int), type (byte), payload (json, UTF-8)
+ */
+public class ExecutionJournal {
+
+	public static PodLogger log = new PodLogger("ExecutionJournal");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String FILE_NAME = "executions.journal";
+	private static final int HEADER_SIZE = 9;
+	private static final byte STATE = 1;
+	private static final byte REMOVED = 2;
+
+	private static final int INITIAL_SIZE = 64*1024*1024; // 64 MB
+	private static final int FLUSH_INTERVAL = 5; // ms
+	private static final double COMPACTION_THRESHOLD = 0.75;
+
+	// Only set once the journal has been recovered, so the executions put in the map during the replay aren't journaled again
+	private static volatile ExecutionJournal instance;
+
+	private final Object lock = new Object();
+
+	// The file and the buffer are replaced by compact, and are only read or written holding the lock
+	private File file;
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+	private boolean dirty;
+
+	private ExecutionJournal ( File file ) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the journal in use, or null if there isn't one (for example, in a worker)
+	 * @return
+	 */
+	public static ExecutionJournal getInstance () {
+		return instance;
+	}
+
+	/**
+	 * Replays the journal in the given directory, putting the executions it contains in the execution map and the waiting queue
+	 * Then the journal is compacted and opened for new records
+	 * @param directory
+	 * @return the highest execution id found, or 0 if none
+	 */
+	public static synchronized long recover ( File directory ) {
+
+		if ( instance != null )
+			return ExecutionMap.getNewestId();
+
+		if ( !directory.exists() && !directory.mkdirs() ) {
+			log.e("Journal directory couldn't be created: "+directory.getPath()+". Executions won't survive a restart");
+			return 0;
+		}
+
+		ExecutionJournal journal = new ExecutionJournal( new File(directory, FILE_NAME) );
+
+		// Replay the records, keeping the last state of every execution
+		Map<Long, JsonObject> states = new LinkedHashMap<Long, JsonObject>();
+		try {
+			journal.replay(states);
+		} catch (IOException e) {
+			log.e("Journal couldn't be read: "+e.toString());
+		}
+
+		// Rebuild the map and the waiting queue. Waiting executions are queued in the order of their ids
+		List<Execution> executions = new ArrayList<Execution>();
+		for ( JsonObject state : states.values() )
+			executions.add( new Execution(state) );
+		Collections.sort(executions, new Comparator<Execution>() {
+			public int compare(Execution a, Execution b) {
+				return a.getId() < b.getId() ? -1 : ( a.getId() == b.getId() ? 0 : 1 );
+			}
+		});
+
+		ExecutionMap map = new ExecutionMap();
+		ExecutionWaitingQueue queue = new ExecutionWaitingQueue();
+		long maxId = 0;
+		int waiting = 0;
+		for ( Execution execution : executions ) {
+			map.put(execution);
+			if ( "waiting".equals(execution.getStatus()) ) {
+				queue.put(execution);
+				waiting++;
+			}
+			maxId = Math.max(maxId, execution.getId());
+		}
+
+		log.i("Journal replayed: "+executions.size()+" executions recovered, "+waiting+" waiting, highest id "+maxId);
+
+		// Start with a compacted journal
+		try {
+			synchronized (journal.lock) {
+				journal.compact(0);
+			}
+		} catch (IOException e) {
+			log.e("Journal couldn't be opened: "+e.toString()+". Executions won't survive a restart");
+			return maxId;
+		}
+
+		journal.startFlusher();
+		instance = journal;
+
+		return maxId;
+	}
+
+	/**
+	 * Appends the current state of the execution
+	 * @param execution
+	 */
+	public void recordState ( Execution execution ) {
+
+		append( STATE, toState(execution).toString().getBytes(UTF8) );
+	}
+
+	/**
+	 * Returns the state of the execution that is journaled
+	 * The output isn't included, so the size of the records doesn't depend on what the executions print
+	 * The activity and the input are, because they are needed to run again the executions that were waiting
+	 * @param execution
+	 * @return
+	 */
+	private static JsonObject toState ( Execution execution ) {
+		JsonObject json = new JsonObject();
+		json.add("id", execution.getId());
+		if ( execution.getStatus() != null ) json.add("status", execution.getStatus());
+		// The worker IP isn't included in the json of the execution, but it's needed to contact the worker after a restart
+		if ( execution.getWorkerIP() != null ) json.add("workerIP", execution.getWorkerIP());
+		if ( execution.getStartTime() != 0 ) json.add("startTime", execution.getStartTime());
+		if ( execution.getFinishTime() != 0 ) json.add("finishTime", execution.getFinishTime());
+		if ( execution.getActivityId() != 0 ) json.add("activityId", execution.getActivityId());
+		if ( execution.getActivityName() != null ) json.add("activityName", execution.getActivityName());
+		if ( execution.getStdin() != null ) json.add("stdin", execution.getStdin());
+		if ( execution.getError() != null ) json.add("error", execution.getError());
+		return json;
+	}
+
+	/**
+	 * Appends the removal of the execution
+	 * @param executionId
+	 */
+	public void recordRemoval ( long executionId ) {
+		append( REMOVED, new JsonObject().add("id", executionId).toString().getBytes(UTF8) );
+	}
+
+	private void append ( byte type , byte [] payload ) {
+
+		int recordSize = HEADER_SIZE + payload.length;
+
+		synchronized (lock) {
+			try {
+				// If the record doesn't fit, compact the journal, making it bigger if necessary
+				if ( buffer.remaining() < recordSize + 4 )
+					compact(recordSize);
+
+				write(buffer, type, payload);
+				dirty = true;
+
+			} catch (IOException e) {
+				log.e("Couldn't append to the journal: "+e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Writes a record at the current position of the buffer
+	 */
+	private static void write ( MappedByteBuffer buffer , byte type , byte [] payload ) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(type);
+		buffer.put(payload);
+	}
+
+	/**
+	 * Reads all valid records of the journal file into the given map of states
+	 * Reading stops at the end of the written records or at the first damaged one
+	 * @param states
+	 * @throws IOException
+	 */
+	private void replay ( Map<Long, JsonObject> states ) throws IOException {
+
+		if ( !file.exists() )
+			return;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+			while ( in.remaining() >= HEADER_SIZE ) {
+
+				int length = in.getInt();
+				int checksum = in.getInt();
+				byte type = in.get();
+				if ( length <= 0 || length > in.remaining() )
+					break;
+
+				byte [] payload = new byte [length];
+				in.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ( (int) crc.getValue() != checksum ) {
+					log.e("Damaged record found in the journal, the rest of it is ignored");
+					break;
+				}
+
+				JsonObject json = JsonObject.readFrom( new String(payload, UTF8) );
+				long id = json.get("id").asLong();
+				if ( type == STATE )
+					states.put(id, json);
+				else if ( type == REMOVED )
+					states.remove(id);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes a new journal file with the current state of the executions in the map and replaces the old one with it
+	 * Must be called holding the lock
+	 * @param extraSpace space that must be available after compacting
+	 * @throws IOException
+	 */
+	private void compact ( int extraSpace ) throws IOException {
+
+		// Serialize the snapshot first, so the size of the new file is known
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		long snapshotSize = 0;
+		for ( Execution execution : new ExecutionMap().getAllExecutions() ) {
+			byte [] payload = toState(execution).toString().getBytes(UTF8);
+			payloads.add(payload);
+			snapshotSize += HEADER_SIZE + payload.length;
+		}
+
+		long size = INITIAL_SIZE;
+		while ( size < ( snapshotSize + extraSpace + 4 ) / COMPACTION_THRESHOLD )
+			size *= 2;
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException("Journal snapshot too big");
+
+		File compacted = new File(file.getPath()+".compact");
+		compacted.delete();
+		RandomAccessFile newFile = new RandomAccessFile(compacted, "rw");
+		MappedByteBuffer newBuffer = newFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		for ( byte [] payload : payloads )
+			write(newBuffer, STATE, payload);
+		newBuffer.force();
+
+		// Replace the old journal
+		if ( !compacted.renameTo(file) ) {
+			newFile.close();
+			throw new IOException("Compacted journal couldn't replace "+file.getPath());
+		}
+		if ( randomAccessFile != null )
+			randomAccessFile.close();
+
+		randomAccessFile = newFile;
+		buffer = newBuffer;
+		dirty = false;
+
+		log.i("Journal compacted: "+payloads.size()+" executions, "+(size/1024/1024)+" MB");
+	}
+
+	/**
+	 * Starts the thread that flushes the journal to disk periodically and compacts it when it's getting full
+	 */
+	private void startFlusher () {
+
+		Thread flusher = new Thread("ExecutionJournalFlusher") {
+			public void run () {
+				while ( true ) {
+					try {
+						Thread.sleep(FLUSH_INTERVAL);
+
+						// The decision is taken holding the lock, but the disk is only waited for outside it
+						// A buffer replaced by a compaction meanwhile can still be forced, the mapping stays valid
+						MappedByteBuffer current;
+						synchronized (lock) {
+							if ( buffer.position() > buffer.capacity() * COMPACTION_THRESHOLD ) {
+								compact(0);
+								continue;
+							}
+							current = dirty ? buffer : null;
+							dirty = false;
+						}
+
+						// All records appended since the last flush are committed together
+						if ( current != null )
+							current.force();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						log.e("Error compacting the journal: "+e.toString());
+					}
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+}
@@ -1,10 +1,14 @@
 package com.pod.manager;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.pod.model.Execution;
 
@@ -12,38 +16,66 @@ import com.pod.model.Execution;
  * This class represents a map containing all executions that are currently in the cloud
  * An execution is added when the new execution command from the client is accepted
  * An execution is removed when the client requests its status and the execution was already finished, so all the info is sent to the client and removed from here
- * 
- * TO DO ################################################################
- * 
- * An algorithm must be implemented in order to delete automatically the executions that are not removed externally before the expiration time
- * This is necessary to avoid a memory problem due to executions not retrieved by the client
- * 
- * This class has been coded without thinking about SYNCHRONIZATION, although that has to be taken care of in the future
+ *
+ * The map is backed by concurrent hash maps, so threads accessing different executions don't block each other
+ * The ids of the executions in progress are kept in their own set, updated on every put, so they don't have to be searched
+ *
+ * Executions that reached a final status (finished, error, terminated...) remember the time when they did it
+ * The method expire, called periodically from an ExecutionExpirationTask, removes the ones that the client never retrieved
+ *
+ * Every change is also appended to the ExecutionJournal, if there is one, so the map can be rebuilt after a restart
+ *
+ * Completion listeners can be registered for an execution. They're called once, when the execution reaches a final status
+ * or is removed from the map, so clients waiting for the result don't need to poll
  */
 public class ExecutionMap {
-	
+
 	// Map of executions in the system
-	private static Map<Integer, Execution> executions;
-	
-	private static Set<Integer> executionsInProgress;
-	
-	private static int oldestId;
-	private static int newestId;
-	
+	private static Map<Long, Execution> executions;
+
+	// Ids of the executions with status 'in progress'
+	private static Set<Long> executionsInProgress;
+
+	// Time when each execution reached a final status, used for expiration
+	private static Map<Long, Long> completionTimes;
+
+	// Output retrieved so far from the workers for the executions in progress
+	private static ConcurrentHashMap<Long, ExecutionOutput> outputs;
+
+	private static AtomicLong oldestId;
+	private static AtomicLong newestId;
+
+	// Listeners waiting for each execution to complete
+	private static ConcurrentHashMap<Long, Set<CompletionListener>> listeners;
+
+	/**
+	 * Receives a notification when an execution reaches a final status or is removed from the map
+	 */
+	public interface CompletionListener {
+		public void executionCompleted ( long executionId );
+	}
+
 	/**
 	 * Create an execution map object and initialize internal static data structures
 	 * This method has the initialization synchronized, so no concurrent threads start the structures at the same time
 	 */
 	public ExecutionMap () {
-		
-		synchronized (this.getClass()){
-			if ( executions == null ) {
-				executions = new HashMap<Integer, Execution>();
-				executionsInProgress = new HashSet<Integer>();
+
+		if ( executions == null ) {
+			synchronized (ExecutionMap.class){
+				if ( executions == null ) {
+					executionsInProgress = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+					completionTimes = new ConcurrentHashMap<Long, Long>();
+					outputs = new ConcurrentHashMap<Long, ExecutionOutput>();
+					listeners = new ConcurrentHashMap<Long, Set<CompletionListener>>();
+					oldestId = new AtomicLong();
+					newestId = new AtomicLong();
+					executions = new ConcurrentHashMap<Long, Execution>();
+				}
 			}
 		}
 	}
-	
+
 	/**
 	 * Puts a copy of the execution object into the map
 	 * If the execution by its id already existed, it overrides the previous one
@@ -51,138 +83,339 @@ public class ExecutionMap {
 	 */
 	public void put ( Execution execution ) {
 		executions.put(execution.getId(), execution);
-		
-		// The addition to the 'in progress' executions set could be done in another way to improve performance
-		// It could be done either outside this method, only when the case requires it
-		// or the status could be an enum instead of a string
-		if ( "in progress".equals(execution.getStatus()) ) executionsInProgress.add( execution.getId() );
-		else executionsInProgress.remove( execution.getId() );
-		
-		newestId = newestId > execution.getId() ? newestId : execution.getId();
-		if ( oldestId == 0 ) oldestId = execution.getId();
-	}
-	
+		updateIndexes(execution);
+		journal(execution);
+
+		// The clients streaming the execution are told when it starts or goes back to waiting. The final status is told to the completion listeners
+		// The same object is usually changed and put again, so the previous status isn't known. The stream only sends the status if it changed
+		if ( !isFinal(execution) ) {
+			ExecutionOutput output = outputs.get( execution.getId() );
+			if ( output != null )
+				output.statusChanged();
+		}
+
+		long newest = newestId.get();
+		while ( newest < execution.getId() && !newestId.compareAndSet(newest, execution.getId()) )
+			newest = newestId.get();
+		oldestId.compareAndSet(0, execution.getId());
+	}
+
 	/**
 	 * Puts an error description associated with the execution id
 	 * It also sets the status of the execution with "error"
 	 * @param executionId
 	 */
-	public void setError ( int executionId , String error ) {
+	public void setError ( long executionId , String error ) {
 		Execution execution = executions.get(executionId);
+		if ( execution == null ) return;
 		execution.setError(error);
-		executions.put(executionId, execution);
+		updateIndexes(execution);
+		journal(execution);
 	}
-	
+
 	/**
 	 * Retrieves the error associated with the given execution id
 	 * This method returns null of there's no info associated with that id
 	 * @param executionId
 	 * @return
 	 */
-	public String getError ( int executionId ) {
-		return executions.get(executionId).getError();
+	public String getError ( long executionId ) {
+		Execution execution = executions.get(executionId);
+		return execution == null ? null : execution.getError();
 	}
-	
+
 	/**
 	 * Retrieves the associated worker IP to the given execution
 	 * @param executionId
 	 * @return
 	 */
-	public String getWorkerIP (int executionId) {
-		return executions.get(executionId).getWorkerIP();
+	public String getWorkerIP (long executionId) {
+		Execution execution = executions.get(executionId);
+		return execution == null ? null : execution.getWorkerIP();
 	}
-	
+
 	/**
 	 * Updates the associated worker IP to the given execution
 	 * @param executionId
 	 * @param workerIP
 	 */
-	public void setWorkerIP (int executionId, String workerIP) {
+	public void setWorkerIP (long executionId, String workerIP) {
 		Execution execution = executions.get(executionId);
-		execution.setWorkerIP(workerIP);
-		executions.put(executionId, execution);
+		if ( execution != null ) {
+			execution.setWorkerIP(workerIP);
+			journal(execution);
+		}
 	}
-	
+
 	/**
 	 * Retrieves the Execution object associated with the given id and deletes it from the map
 	 * The associated status is also removed
 	 * @param executionId
 	 * @return
 	 */
-	public Execution pull ( int executionId ) {
-		oldestId = executionId <= oldestId ? executionId : oldestId;
-		return executions.remove(executionId);
+	public Execution pull ( long executionId ) {
+		long oldest = oldestId.get();
+		while ( executionId < oldest && !oldestId.compareAndSet(oldest, executionId) )
+			oldest = oldestId.get();
+		return remove(executionId);
 	}
-	
+
 	/**
 	 * Retrieves the execution object
 	 * @param executionId
 	 * @return
 	 */
-	public Execution get ( int executionId ) {
+	public Execution get ( long executionId ) {
 		return executions.get(executionId);
 	}
 
+	/**
+	 * Retrieves the output accumulated by the manager for the given execution, creating it if it didn't exist
+	 * @param executionId
+	 * @return the output or null if the execution isn't in the map
+	 */
+	public ExecutionOutput getOutput ( long executionId ) {
+		if ( !executions.containsKey(executionId) )
+			return null;
+		ExecutionOutput output = outputs.get(executionId);
+		if ( output == null ) {
+			ExecutionOutput newOutput = new ExecutionOutput();
+			output = outputs.putIfAbsent(executionId, newOutput);
+			if ( output == null ) output = newOutput;
+		}
+		return output;
+	}
+
+	/**
+	 * Registers a listener that is called when the given execution completes
+	 * If the execution is already in a final status or isn't in the map, the listener is called right away
+	 * @param executionId
+	 * @param listener
+	 */
+	public void addCompletionListener ( long executionId , CompletionListener listener ) {
+
+		while ( true ) {
+			Set<CompletionListener> set = listeners.get(executionId);
+			if ( set == null ) {
+				Set<CompletionListener> newSet = Collections.newSetFromMap(new ConcurrentHashMap<CompletionListener, Boolean>());
+				set = listeners.putIfAbsent(executionId, newSet);
+				if ( set == null ) set = newSet;
+			}
+			// The set could have been fired or emptied in the meantime
+			synchronized (set) {
+				if ( listeners.get(executionId) != set )
+					continue;
+				set.add(listener);
+				break;
+			}
+		}
+
+		// It could have completed before the listener was added
+		Execution execution = executions.get(executionId);
+		if ( execution == null || isFinal(execution) )
+			fireCompleted(executionId);
+	}
+
+	/**
+	 * Removes a listener that doesn't need to be called anymore
+	 * @param executionId
+	 * @param listener
+	 */
+	public void removeCompletionListener ( long executionId , CompletionListener listener ) {
+		Set<CompletionListener> set = listeners.get(executionId);
+		if ( set == null ) return;
+		synchronized (set) {
+			set.remove(listener);
+			if ( set.isEmpty() )
+				listeners.remove(executionId, set);
+		}
+	}
+
 	/**
 	 * Returns the id of the newest execution from the map
 	 * @return
 	 */
-	public static int getNewestId () {
-		return newestId;
+	public static long getNewestId () {
+		return newestId == null ? 0 : newestId.get();
 	}
-	
+
 	/**
 	 * Returns the id of the oldest execution from the map
 	 * @return
 	 */
-	public static int getOldestId () {
-		return oldestId;
+	public static long getOldestId () {
+		return oldestId == null ? 0 : oldestId.get();
 	}
-	
+
 	/**
-	 * Delete all executions that have ids between the start id (included) and end id (not included)
-	 * @param startId
+	 * Delete all executions that have ids lower than the end id (not included)
+	 * Only the executions in the map are visited, so the cost doesn't depend on the distance between the ids
 	 * @param endId
 	 * @return
 	 */
-	public int deleteUntil (int endId ) {
-		
+	public int deleteUntil ( long endId ) {
+
 		// Not go further than the newest
-		if ( newestId < endId ) endId = newestId;
-		
+		if ( newestId.get() < endId ) endId = newestId.get();
+
 		// Update oldest id
-		int oldestId2 = oldestId;
-		oldestId = endId;
-		
+		long oldest = oldestId.get();
+		while ( oldest < endId && !oldestId.compareAndSet(oldest, endId) )
+			oldest = oldestId.get();
+
 		int deleted = 0;
-		for ( int i = oldestId2; i<endId; i++ ) {
-			executions.remove(i); deleted++;
-		}
-		
+		for ( Long id : executions.keySet() )
+			if ( id < endId && remove(id) != null )
+				deleted++;
+
 		return deleted;
 	}
-	
+
 	/**
 	 * Returns the executions that are currently being processed
 	 * @return
 	 */
 	public Execution[] executionsInProgress() {
-		
-		Iterator<Integer> iterator = executionsInProgress.iterator();
-		
-		Execution [] result = new Execution [ executionsInProgress.size() ];
-		
-		int i = 0;
+
+		List<Execution> result = new ArrayList<Execution>( executionsInProgress.size() );
+
+		Iterator<Long> iterator = executionsInProgress.iterator();
 		while ( iterator.hasNext() ) {
-			result[i] = executions.get( iterator.next() );
-			i++;
+			Execution execution = executions.get( iterator.next() );
+			if ( execution != null ) result.add(execution);
 		}
-		
-		return result;
+
+		return result.toArray( new Execution [result.size()] );
+	}
+
+	/**
+	 * Returns the number of executions that are currently being processed
+	 * @return
+	 */
+	public int countInProgress() {
+		return executionsInProgress.size();
 	}
-	
+
 	public Execution[] getAllExecutions () {
 		 return executions.values().toArray( new Execution[0] );
 	}
-	
+
+	/**
+	 * Removes the executions in a final status that haven't been retrieved by the client
+	 * An execution expires if it has been in a final status for longer than maxAge
+	 * After that, if there are still more than maxSize executions in a final status, the ones that finished first are removed too
+	 *
+	 * This method only iterates through the final status index, so it can run in the background while other threads use the map
+	 * @param maxAge in milliseconds
+	 * @param maxSize maximum number of finished executions kept in the map
+	 * @return number of executions removed
+	 */
+	public int expire ( long maxAge, int maxSize ) {
+
+		long limit = System.currentTimeMillis() - maxAge;
+		int expired = 0;
+
+		for ( Map.Entry<Long, Long> entry : completionTimes.entrySet() ) {
+			if ( entry.getValue() < limit && remove(entry.getKey()) != null )
+				expired++;
+		}
+
+		// Size check. Only sorts when the limit has been exceeded
+		if ( completionTimes.size() > maxSize ) {
+
+			List<Map.Entry<Long, Long>> entries = new ArrayList<Map.Entry<Long, Long>>( completionTimes.entrySet() );
+			Collections.sort(entries, new Comparator<Map.Entry<Long, Long>>() {
+				public int compare(Map.Entry<Long, Long> a, Map.Entry<Long, Long> b) {
+					return a.getValue().compareTo(b.getValue());
+				}
+			});
+
+			for ( int i = 0; i < entries.size() - maxSize; i++ )
+				if ( remove(entries.get(i).getKey()) != null )
+					expired++;
+		}
+
+		return expired;
+	}
+
+	/**
+	 * Removes the execution and its index entries
+	 * @param executionId
+	 * @return the removed execution or null if it didn't exist
+	 */
+	private Execution remove ( long executionId ) {
+		executionsInProgress.remove(executionId);
+		completionTimes.remove(executionId);
+		outputs.remove(executionId);
+		Execution removed = executions.remove(executionId);
+
+		ExecutionJournal journal = ExecutionJournal.getInstance();
+		if ( removed != null && journal != null )
+			journal.recordRemoval(executionId);
+
+		if ( removed != null )
+			fireCompleted(executionId);
+
+		return removed;
+	}
+
+	/**
+	 * Appends the current state of the execution to the journal, if there is one
+	 * @param execution
+	 */
+	private void journal ( Execution execution ) {
+		ExecutionJournal journal = ExecutionJournal.getInstance();
+		if ( journal != null )
+			journal.recordState(execution);
+	}
+
+	/**
+	 * Calls the listeners of the execution and forgets them
+	 * @param executionId
+	 */
+	private void fireCompleted ( long executionId ) {
+
+		Set<CompletionListener> set = listeners.remove(executionId);
+		if ( set == null ) return;
+
+		List<CompletionListener> toCall;
+		synchronized (set) {
+			toCall = new ArrayList<CompletionListener>(set);
+		}
+		for ( CompletionListener listener : toCall )
+			listener.executionCompleted(executionId);
+	}
+
+	/**
+	 * Returns true if the execution is in a final status (finished, error, terminated...)
+	 * @param execution
+	 * @return
+	 */
+	private static boolean isFinal ( Execution execution ) {
+		return execution.getStatus() != null && !"waiting".equals(execution.getStatus()) && !"in progress".equals(execution.getStatus());
+	}
+
+	/**
+	 * Keeps the in progress set and the completion times in line with the status of the execution
+	 * @param execution
+	 */
+	private void updateIndexes ( Execution execution ) {
+
+		if ( "in progress".equals(execution.getStatus()) ) {
+			executionsInProgress.add( execution.getId() );
+			completionTimes.remove( execution.getId() );
+		}
+		else {
+			executionsInProgress.remove( execution.getId() );
+
+			if ( execution.getStatus() != null && !"waiting".equals(execution.getStatus()) && !completionTimes.containsKey(execution.getId()) )
+				completionTimes.put( execution.getId(), System.currentTimeMillis() );
+			else if ( "waiting".equals(execution.getStatus()) )
+				completionTimes.remove( execution.getId() );
+
+			if ( isFinal(execution) )
+				fireCompleted( execution.getId() );
+		}
+	}
+
 }
@@ -0,0 +1,250 @@
+package com.pod.manager;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.pod.listeners.ServerProperties;
+
+/**
+ * Output of an execution in progress accumulated by the manager
+ *
+ * The worker pushes the output produced since its last push, and the manager asks it only for the output after the offsets
+ * it already has when it's running an older version. The new output is appended here
+ * Clients polling the same execution are served from this copy, so the worker is contacted at most once per refresh interval
+ *
+ * This is also the buffer shared by all the clients streaming the execution. Listeners are told when output is appended
+ * or the execution starts, and each one reads from here from its own offset
+ *
+ * Only the last outputBufferSize characters of each stream are kept, like in the buffer of the worker. The offsets count
+ * the output from the beginning, including the part that was dropped
+ */
+public class ExecutionOutput {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Receives a notification when new output is appended, or when the execution changes from waiting to in progress
+	 */
+	public interface OutputListener {
+		public void outputAppended ( ExecutionOutput output );
+		public void statusChanged ( ExecutionOutput output );
+	}
+
+	private StringBuilder stdout;
+	private StringBuilder stderr;
+
+	// Characters dropped from the start of each stream
+	private int stdoutStart;
+	private int stderrStart;
+
+	private int maxSize;
+
+	// Bytes of each stream already received from the worker
+	private long workerStdoutOffset;
+	private long workerStderrOffset;
+
+	// Last time the output was requested to the worker or pushed by it
+	private long lastRefresh;
+
+	// True while a thread is asking the worker for the output
+	private AtomicBoolean refreshing = new AtomicBoolean();
+
+	private Set<OutputListener> listeners;
+
+	public ExecutionOutput() {
+		this( ServerProperties.getOutputBufferSize() );
+	}
+
+	/**
+	 * @param maxSize characters of each stream that are kept
+	 */
+	public ExecutionOutput( int maxSize ) {
+		stdout = new StringBuilder();
+		stderr = new StringBuilder();
+		this.maxSize = maxSize;
+		listeners = Collections.newSetFromMap(new ConcurrentHashMap<OutputListener, Boolean>());
+	}
+
+	/**
+	 * Adds new output received from the worker
+	 * @param stdoutChunk text produced in the standard output
+	 * @param stdoutNextOffset offset in the worker of the end of the chunk
+	 * @param stderrChunk text produced in the standard error
+	 * @param stderrNextOffset offset in the worker of the end of the chunk
+	 */
+	public void append ( String stdoutChunk, long stdoutNextOffset, String stderrChunk, long stderrNextOffset ) {
+		synchronized (this) {
+			if ( stdoutChunk != null ) stdout.append(stdoutChunk);
+			if ( stderrChunk != null ) stderr.append(stderrChunk);
+			trim();
+			workerStdoutOffset = stdoutNextOffset;
+			workerStderrOffset = stderrNextOffset;
+		}
+		notifyListeners();
+	}
+
+	/**
+	 * Adds output pushed by the worker
+	 * Each chunk starts at the given offset of the worker. The part that the manager already has is skipped
+	 * @param stdoutChunk text produced in the standard output
+	 * @param stdoutStart offset in the worker of the start of the chunk
+	 * @param stdoutNextOffset offset in the worker of the end of the chunk
+	 * @param stderrChunk text produced in the standard error
+	 * @param stderrStart offset in the worker of the start of the chunk
+	 * @param stderrNextOffset offset in the worker of the end of the chunk
+	 */
+	public void push ( String stdoutChunk, long stdoutStart, long stdoutNextOffset, String stderrChunk, long stderrStart, long stderrNextOffset ) {
+		synchronized (this) {
+			if ( stdoutNextOffset > workerStdoutOffset ) {
+				stdout.append( skip(stdoutChunk, workerStdoutOffset - stdoutStart) );
+				workerStdoutOffset = stdoutNextOffset;
+			}
+			if ( stderrNextOffset > workerStderrOffset ) {
+				stderr.append( skip(stderrChunk, workerStderrOffset - stderrStart) );
+				workerStderrOffset = stderrNextOffset;
+			}
+			trim();
+			lastRefresh = System.currentTimeMillis();
+		}
+		notifyListeners();
+	}
+
+	/**
+	 * Drops the start of the streams that exceed the maximum size
+	 * Must be called holding the lock of this object
+	 */
+	private void trim () {
+		if ( stdout.length() > maxSize ) {
+			stdoutStart += stdout.length() - maxSize;
+			stdout.delete(0, stdout.length() - maxSize);
+		}
+		if ( stderr.length() > maxSize ) {
+			stderrStart += stderr.length() - maxSize;
+			stderr.delete(0, stderr.length() - maxSize);
+		}
+	}
+
+	/**
+	 * Tells the listeners that the status of the execution changed, without reaching a final one
+	 */
+	public void statusChanged () {
+		for ( OutputListener listener : listeners )
+			listener.statusChanged(this);
+	}
+
+	public void addListener ( OutputListener listener ) {
+		listeners.add(listener);
+	}
+
+	public void removeListener ( OutputListener listener ) {
+		listeners.remove(listener);
+	}
+
+	private void notifyListeners () {
+		for ( OutputListener listener : listeners )
+			listener.outputAppended(this);
+	}
+
+	/**
+	 * Removes the given number of bytes from the start of the chunk
+	 * @param chunk
+	 * @param bytes
+	 * @return
+	 */
+	private static String skip ( String chunk , long bytes ) {
+		if ( chunk == null ) return "";
+		if ( bytes <= 0 ) return chunk;
+		byte [] data = chunk.getBytes(UTF8);
+		if ( bytes >= data.length ) return "";
+		return new String(data, (int) bytes, data.length - (int) bytes, UTF8);
+	}
+
+	/**
+	 * Returns true if the output hasn't been refreshed from the worker in the given interval
+	 * @param interval in milliseconds
+	 * @return
+	 */
+	public synchronized boolean isStale ( long interval ) {
+		return System.currentTimeMillis() - lastRefresh >= interval;
+	}
+
+	public synchronized void setRefreshed () {
+		lastRefresh = System.currentTimeMillis();
+	}
+
+	/**
+	 * Marks the output as being refreshed from the worker, if it's stale and no other thread is refreshing it
+	 * The worker is contacted without holding the lock of this object, so readers aren't blocked meanwhile
+	 * @param interval in milliseconds
+	 * @return true if the caller must refresh it and then call endRefresh
+	 */
+	public boolean startRefresh ( long interval ) {
+		if ( !isStale(interval) || !refreshing.compareAndSet(false, true) )
+			return false;
+		// Another thread could have finished a refresh just before
+		if ( !isStale(interval) ) {
+			refreshing.set(false);
+			return false;
+		}
+		return true;
+	}
+
+	public void endRefresh () {
+		refreshing.set(false);
+	}
+
+	/**
+	 * Returns the standard output from the given offset (in characters)
+	 * @param offset
+	 * @return
+	 */
+	public synchronized String getStdout ( int offset ) {
+		offset -= stdoutStart;
+		return offset <= 0 ? stdout.toString() : ( offset >= stdout.length() ? "" : stdout.substring(offset) );
+	}
+
+	/**
+	 * Returns the standard error from the given offset (in characters)
+	 * @param offset
+	 * @return
+	 */
+	public synchronized String getStderr ( int offset ) {
+		offset -= stderrStart;
+		return offset <= 0 ? stderr.toString() : ( offset >= stderr.length() ? "" : stderr.substring(offset) );
+	}
+
+	/**
+	 * Returns the length of the standard output from the beginning, including the characters dropped
+	 * @return
+	 */
+	public synchronized int getStdoutLength () {
+		return stdoutStart + stdout.length();
+	}
+
+	public synchronized int getStderrLength () {
+		return stderrStart + stderr.length();
+	}
+
+	/**
+	 * Returns the offset of the first character of the standard output that is kept
+	 * @return
+	 */
+	public synchronized int getStdoutStart () {
+		return stdoutStart;
+	}
+
+	public synchronized int getStderrStart () {
+		return stderrStart;
+	}
+
+	public synchronized long getWorkerStdoutOffset () {
+		return workerStdoutOffset;
+	}
+
+	public synchronized long getWorkerStderrOffset () {
+		return workerStderrOffset;
+	}
+}
@@ -1,7 +1,14 @@
 package com.pod.manager;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import main.resources.PodLogger;
 
@@ -9,101 +16,241 @@ import com.pod.model.Execution;
 
 /**
  * Implements a queue to store executions
- * 
- * Some concurrent situations are solved, others aren't
- * See the method descriptions for more details
+ *
+ * Executions are kept in one FIFO per activity id, so pulling or deleting the executions of an activity
+ * doesn't require walking through the executions of other activities
+ * Every execution gets a global arrival sequence number when it's put in the queue
+ * That way, when a worker can handle several activities, the oldest eligible execution is still the one that is pulled
+ *
+ * All operations are synchronized on the class, the cost of each one only depends on the number of activities involved
  */
 public class ExecutionWaitingQueue {
 
 	public static PodLogger log = new PodLogger("ExecutionWaitingQueue");
-	
+
 	private static boolean initialized;
-	private static List<Execution> queue;
-	
+
+	// One FIFO of pending executions per activity id
+	private static Map<Integer, Deque<QueuedExecution>> queues;
+
+	// Arrival sequence, used to know which execution came first between different activities
+	private static long sequence;
+
+	// Total number of executions in all FIFOs
+	private static int size;
+
 	/**
 	 * Create an execution queue object and initialize internal static variables
 	 * This method has the initialization synchronized, so no concurrent threads start the structures at the same time
 	 */
 	public ExecutionWaitingQueue() {
 		if (!initialized) {
-			synchronized (this.getClass()){
-				initialized = true;
-				queue = new ArrayList<Execution>();
+			synchronized (ExecutionWaitingQueue.class){
+				if (!initialized) {
+					queues = new HashMap<Integer, Deque<QueuedExecution>>();
+					sequence = 0;
+					size = 0;
+					initialized = true;
+				}
 			}
 		}
 	}
-	
+
 	public int size() {
-		return queue.size();
+		synchronized (ExecutionWaitingQueue.class) {
+			return size;
+		}
 	}
-	
+
 	public boolean isEmpty() {
-		return queue.isEmpty();
+		return size() == 0;
 	}
-	
-	public synchronized void put (Execution execution){
-		queue.add(execution);
+
+	public void put (Execution execution){
+		synchronized (ExecutionWaitingQueue.class) {
+			Deque<QueuedExecution> queue = queues.get(execution.getActivityId());
+			if ( queue == null ) {
+				queue = new ArrayDeque<QueuedExecution>();
+				queues.put(execution.getActivityId(), queue);
+			}
+			queue.addLast( new QueuedExecution(sequence++, execution) );
+			size++;
+		}
 	}
-	
+
+	/**
+	 * Puts all the executions in the queue at once, in the order of the list
+	 * @param executions
+	 */
+	public void putAll (List<Execution> executions){
+		synchronized (ExecutionWaitingQueue.class) {
+			for ( Execution execution : executions )
+				put(execution);
+		}
+	}
+
 	/**
 	 * Pull an execution from the queue that has an activity id included in the given array
+	 * Only the head of the FIFO of each given activity is checked, and the one that arrived first is removed
 	 * It returns null if no pending execution was found
-	 * 
-	 * This method accesses the queue in a non synchronized way, so concurrent changes might or might not be reflected
-	 * The reason behind this is avoid the bottleneck of having multiple threads trying to iterate through the queue
 	 * @param activityIds
-	 * @return 
+	 * @return
 	 */
 	public Execution pull ( int [] activityIds ) {
-		try {
-			for ( int i = 0; i < queue.size(); i++ )
-				for ( int id : activityIds )
-					if ( queue.get(i) != null && queue.get(i).getActivityId() == id )
-						return queue.remove(i);
-		
-		} catch (IndexOutOfBoundsException e){
-			// Used to avoid problems with concurrent threads removing elements
-			log.e(e.toString());
+
+		synchronized (ExecutionWaitingQueue.class) {
+
+			Deque<QueuedExecution> oldestQueue = null;
+			long oldestSequence = Long.MAX_VALUE;
+
+			for ( int id : activityIds ) {
+				Deque<QueuedExecution> queue = queues.get(id);
+				if ( queue != null && !queue.isEmpty() && queue.peekFirst().sequence < oldestSequence ) {
+					oldestQueue = queue;
+					oldestSequence = queue.peekFirst().sequence;
+				}
+			}
+
+			if ( oldestQueue == null )
+				return null;
+
+			Execution execution = oldestQueue.pollFirst().execution;
+			size--;
+
+			// Don't keep empty FIFOs of activities that might not be used again
+			if ( oldestQueue.isEmpty() )
+				queues.remove(execution.getActivityId());
+
+			return execution;
+		}
+	}
+
+
+	/**
+	 * Pull up to max executions from the queue that have an activity id included in the given array, in the order they arrived
+	 * @param activityIds
+	 * @param max
+	 * @return list of executions, empty if no pending execution was found
+	 */
+	public List<Execution> pull ( int [] activityIds , int max ) {
+
+		List<Execution> executions = new ArrayList<Execution>();
+		synchronized (ExecutionWaitingQueue.class) {
+			while ( executions.size() < max ) {
+				Execution execution = pull(activityIds);
+				if ( execution == null )
+					break;
+				executions.add(execution);
+			}
 		}
-		return null;
+		return executions;
 	}
-	
-	
+
 	/**
 	 * Deletes all executions with the given activityId from the queue
-	 * 
-	 * This method accesses the queue in a non synchronized way, so concurrent changes might or might not be reflected
-	 * The reason behind this is avoid the bottleneck of having multiple threads trying to iterate through the queue
 	 * @param activityId
 	 * @return an array with all execution objects removed
 	 */
-	public synchronized Execution[] deleteAll ( int activityId ) {
-		
-		List<Execution> executions = new ArrayList<Execution>();
-		
-		try {
-			Execution e;
-			for ( int i = 0; i < queue.size(); i++ ) {
-				e = queue.get(i);
-				if ( e != null && e.getActivityId() == activityId ) {
-					executions.add(queue.remove(i)); i--;  // the size of the queue has decreased so we must reduce the index in one
-				}
+	public Execution[] deleteAll ( int activityId ) {
+
+		Deque<QueuedExecution> queue;
+		synchronized (ExecutionWaitingQueue.class) {
+			queue = queues.remove(activityId);
+			if ( queue == null )
+				return new Execution [0];
+			size -= queue.size();
+		}
+
+		Execution [] executions = new Execution [queue.size()];
+		int i = 0;
+		for ( QueuedExecution queued : queue )
+			executions[i++] = queued.execution;
+
+		return executions;
+	}
+
+
+	/**
+	 * Removes an execution from the queue, eg: when it's terminated before it starts
+	 * Only the FIFO of its activity is walked
+	 * @param activityId
+	 * @param executionId
+	 * @return the execution removed, or null if it wasn't in the queue
+	 */
+	public Execution remove ( int activityId , long executionId ) {
+
+		synchronized (ExecutionWaitingQueue.class) {
+			Deque<QueuedExecution> queue = queues.get(activityId);
+			if ( queue == null )
+				return null;
+
+			Iterator<QueuedExecution> iterator = queue.iterator();
+			while ( iterator.hasNext() ) {
+				Execution execution = iterator.next().execution;
+				if ( execution.getId() != executionId )
+					continue;
+
+				iterator.remove();
+				size--;
+				if ( queue.isEmpty() )
+					queues.remove(activityId);
+				return execution;
 			}
-				
-		
-		} catch (IndexOutOfBoundsException e){
-			// Used to avoid problems with concurrent threads removing elements
-			log.e(e.toString());
+			return null;
 		}
-		return executions.toArray( new Execution [executions.size()] );
 	}
-	
-	
+
 	/**
-	 * Returns the entire queue of executions
+	 * Returns the number of executions waiting for each activity
+	 * Unlike getAll, the executions aren't copied nor sorted
+	 * @return map of activity id to number of executions
+	 */
+	public Map<Integer, Integer> countByActivity () {
+
+		synchronized (ExecutionWaitingQueue.class) {
+			Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+			for ( Map.Entry<Integer, Deque<QueuedExecution>> entry : queues.entrySet() )
+				counts.put( entry.getKey(), entry.getValue().size() );
+			return counts;
+		}
+	}
+
+	/**
+	 * Returns a copy of the entire queue of executions, ordered by arrival
 	 * @return
 	 */
 	public List<Execution> getAll () {
-		return queue;
+
+		List<QueuedExecution> all = new ArrayList<QueuedExecution>();
+		synchronized (ExecutionWaitingQueue.class) {
+			for ( Deque<QueuedExecution> queue : queues.values() )
+				all.addAll(queue);
+		}
+
+		Collections.sort(all, new Comparator<QueuedExecution>() {
+			public int compare(QueuedExecution a, QueuedExecution b) {
+				return a.sequence < b.sequence ? -1 : ( a.sequence == b.sequence ? 0 : 1 );
+			}
+		});
+
+		List<Execution> executions = new ArrayList<Execution>(all.size());
+		for ( QueuedExecution queued : all )
+			executions.add(queued.execution);
+
+		return executions;
+	}
+
+	/**
+	 * An execution in the queue together with its arrival sequence number
+	 */
+	private static class QueuedExecution {
+
+		private final long sequence;
+		private final Execution execution;
+
+		private QueuedExecution ( long sequence, Execution execution ) {
+			this.sequence = sequence;
+			this.execution = execution;
+		}
 	}
 }
@@ -1,30 +1,120 @@
 package com.pod.manager;
 
-import java.util.Random;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.resources.PodLogger;
 
 /**
  * This is a very simple utility class that has a method to return a unique new id for an execution
+ *
+ * Ids are taken from an atomic counter, so threads asking for ids at the same time don't block each other
+ * The counter reserves blocks of ids in a file before handing them out. After a restart, the count continues after
+ * the last reserved block, so an id is never given twice even if the manager crashed
  */
 public class IdGenerator {
-	
+
+	public static PodLogger log = new PodLogger("IdGenerator");
+
+	/**
+	 * Number of ids reserved every time the file is written
+	 */
+	public static long BLOCK_SIZE = 10000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final AtomicLong id = new AtomicLong(1);
+
+	// Ids lower than this value are already reserved in the file
+	private static volatile long reservedUntil = 1;
+
+	private static File reservationFile;
+
+	/**
+	 * Loads the last reservation from the given file and starts counting after it
+	 * @param file where the reservations are stored
+	 * @param minId the first id generated will be at least this one
+	 */
+	public synchronized static void init ( File file , long minId ) {
+
+		reservationFile = file;
+
+		long next = Math.max(minId, 1);
+		if ( file.exists() ) {
+			try {
+				next = Math.max( next, Long.parseLong( new String( Files.readAllBytes(file.toPath()), UTF8 ).trim() ) );
+			} catch (IOException | NumberFormatException e) {
+				log.e("Couldn't read the id reservation from "+file.getPath()+": "+e.toString());
+			}
+		}
+
+		id.set(next);
+		reservedUntil = next;
+		reserve(next);
+
+		log.i("Execution ids starting at "+next);
+	}
+
 	/**
-	 * When the count is started, a random value will be seleted between 0 and this value
+	 * Generates a new id, consecutive to the previous one
+	 * Only the thread that takes the first id of a block waits for the reservation to be written
 	 */
-	public static int MAX_INIT_VALUE = 1000;
-	
-	private static int id;
-	
+	public static long newId () {
+		long newId = id.getAndIncrement();
+		if ( newId >= reservedUntil )
+			reserve(newId);
+		return newId;
+	}
+
 	/**
-	 * Generates a new id, that is random the first time that this method is called and then is consecutive to the previous one
-	 * This method is synchronized so multiple threads won't get the same id
+	 * Generates a range of consecutive ids in one step
+	 * @param count number of ids
+	 * @return the first id of the range
 	 */
-	public synchronized static int newId () {
-		
-		// If the id is 0 (init) or less than 0 (minimum value) then we generate another id.
-		// The max value of the new id is 1,000,000, which is 3 magnitude orders less than the MAX_INTEGER value
-		//if ( id <= 0 ) id = new Random().nextInt(MAX_INIT_VALUE);
-		if ( id <= 0 ) id = 1;
-		return id++;
+	public static long newIds ( int count ) {
+		long first = id.getAndAdd(count);
+		long last = first + count - 1;
+		if ( last >= reservedUntil )
+			reserve(last);
+		return first;
 	}
-	
+
+	/**
+	 * Reserves the block that starts at the given id, writing its end to the file
+	 * @param blockStart
+	 */
+	private synchronized static void reserve ( long blockStart ) {
+
+		// Another thread could have reserved it already
+		if ( blockStart < reservedUntil )
+			return;
+
+		long limit = blockStart + BLOCK_SIZE;
+
+		if ( reservationFile != null ) {
+
+			// Written in a new file that replaces the previous one, so a crash while writing doesn't lose the last reservation
+			File tmp = new File(reservationFile.getPath()+".tmp");
+			try {
+				FileOutputStream out = new FileOutputStream(tmp);
+				try {
+					out.write( String.valueOf(limit).getBytes(UTF8) );
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				if ( !tmp.renameTo(reservationFile) )
+					throw new IOException("Couldn't replace "+reservationFile.getPath());
+			} catch (IOException e) {
+				log.e("Couldn't store the id reservation: "+e.toString());
+			}
+		}
+
+		reservedUntil = limit;
+	}
+
 }
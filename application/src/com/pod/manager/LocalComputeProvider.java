@@ -0,0 +1,330 @@
+package com.pod.manager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.resources.PodLogger;
+
+import com.pod.listeners.ServerProperties;
+
+/**
+ * Runs the workers as processes in this same machine, to test and measure the whole system without the cloud
+ *
+ * Each worker has a directory in localWorkersDirectory with its properties file, its log, and its own app and artifact directories,
+ * so the workers install and uninstall their activities without touching the ones of the others or of the manager
+ * Every worker listens in 127.0.0.1 in a port of the range that starts at localWorkersBasePort, with localWorkersPortRange ports
+ * The port is taken when the worker is launched, among the ones that no other worker has and that are free, and it's kept in its directory
+ * The process is started with the command of the property localWorkerCommand, that receives the path of the properties file and
+ * the port (see local_worker.sh, that runs the application in its own Tomcat)
+ *
+ * The id of the process is written in the directory of the worker, so the worker can be stopped after a restart of the manager
+ * Stopping a worker ends its process and keeps its directory, so it can be started again. Images aren't supported
+ */
+public class LocalComputeProvider implements ComputeProvider {
+
+	public static PodLogger log = new PodLogger("LocalComputeProvider");
+
+	// File in the directory of a worker with the id of its process
+	private static final String PID_FILE = "worker.pid";
+
+	// File in the directory of a worker with the port where it listens
+	private static final String PORT_FILE = "worker.port";
+
+	// Processes of the workers started by this manager, by instance id
+	private static Map<String, Process> processes = new ConcurrentHashMap<String, Process>();
+
+	@Override
+	public String launch ( int workerId , String imageId , String executionSlots ) throws IOException {
+
+		String instanceId = "local-"+workerId;
+		File directory = getDirectory(instanceId);
+		if ( !directory.exists() && !directory.mkdirs() )
+			throw new IOException("Directory for the worker couldn't be created: "+directory.getPath());
+
+		String address = "127.0.0.1:"+assignPort(instanceId);
+
+		Properties properties = new Properties();
+		properties.setProperty("name", ServerProperties.getName());
+		properties.setProperty("role", "worker");
+		properties.setProperty("managerLocalIp", ServerProperties.getManagerLocalIp());
+		properties.setProperty("workerId", Integer.toString(workerId));
+		properties.setProperty("instanceId", instanceId);
+		properties.setProperty("computeProvider", "local");
+		properties.setProperty("localIp", address);
+		properties.setProperty("publicIp", address);
+		if ( executionSlots != null )
+			properties.setProperty("executionSlots", executionSlots);
+		properties.setProperty("appDirectory", new File(directory, "app").getPath());
+		properties.setProperty("artifactDirectory", new File(directory, "artifacts").getPath());
+
+		OutputStream out = new FileOutputStream(new File(directory, "server.properties"));
+		try {
+			properties.store(out, "Local worker "+workerId);
+		} finally {
+			out.close();
+		}
+
+		start(instanceId);
+		return instanceId;
+	}
+
+	@Override
+	public void start ( String instanceId ) throws IOException {
+
+		if ( ServerProperties.getLocalWorkerCommand() == null )
+			throw new IOException("The property localWorkerCommand isn't set");
+
+		File directory = getDirectory(instanceId);
+		File propertiesFile = new File(directory, "server.properties");
+		if ( !propertiesFile.isFile() )
+			throw new IOException("Local worker "+instanceId+" doesn't exist");
+
+		if ( isRunning(instanceId) )
+			return;
+
+		// The shell writes its id and is replaced by the command, so the id is the one of the worker process
+		List<String> command = new ArrayList<String>( Arrays.asList( "sh", "-c", "echo $$ > "+PID_FILE+"; exec \"$@\"", "sh" ) );
+		command.addAll( Arrays.asList( ServerProperties.getLocalWorkerCommand().trim().split("\\s+") ) );
+		command.add( propertiesFile.getPath() );
+		command.add( Integer.toString(getPort(instanceId)) );
+
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.directory(directory);
+		processBuilder.redirectErrorStream(true);
+		processBuilder.redirectOutput( ProcessBuilder.Redirect.appendTo(new File(directory, "worker.log")) );
+
+		processes.put( instanceId, processBuilder.start() );
+		log.i("Local worker "+instanceId+" started in port "+getPort(instanceId));
+	}
+
+	@Override
+	public void stop ( String instanceId ) throws IOException {
+
+		if ( !kill(instanceId) )
+			log.e("Local worker "+instanceId+" isn't running");
+	}
+
+	@Override
+	public void terminate ( List<String> instanceIds ) {
+
+		for ( String instanceId : instanceIds ) {
+			if ( instanceId == null )
+				continue;
+			kill(instanceId);
+			delete( getDirectory(instanceId) );
+		}
+	}
+
+	@Override
+	public String createImage ( String instanceId ) {
+		log.i("Images of local workers aren't supported");
+		return null;
+	}
+
+	@Override
+	public boolean isImageAvailable ( String imageId ) {
+		return false;
+	}
+
+	@Override
+	public void deleteImage ( String imageId ) {}
+
+	@Override
+	public boolean isCopyOf ( String instanceId ) {
+		return false;
+	}
+
+	/**
+	 * Returns true if the process of the worker is running
+	 * The processes started before a restart of the manager are found by the id in their directory
+	 */
+	private static boolean isRunning ( String instanceId ) {
+		Process process = processes.get(instanceId);
+		if ( process != null ) {
+			try {
+				process.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+		String pid = readPid(instanceId);
+		return pid != null && signal("-0", pid);
+	}
+
+	/**
+	 * Ends the process of the worker
+	 * @param instanceId
+	 * @return false if the worker wasn't running
+	 */
+	private static boolean kill ( String instanceId ) {
+
+		boolean killed = false;
+		Process process = processes.remove(instanceId);
+		if ( process != null ) {
+			process.destroy();
+			killed = true;
+		}
+		else {
+			String pid = readPid(instanceId);
+			killed = pid != null && signal("-TERM", pid);
+		}
+		new File(getDirectory(instanceId), PID_FILE).delete();
+		return killed;
+	}
+
+	/**
+	 * Reads the id of the process of the worker
+	 * @param instanceId
+	 * @return the id, or null if the worker hasn't been started
+	 */
+	private static String readPid ( String instanceId ) {
+
+		File pidFile = new File(getDirectory(instanceId), PID_FILE);
+		if ( !pidFile.isFile() )
+			return null;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(pidFile), "UTF-8"));
+			try {
+				String pid = reader.readLine();
+				return pid != null && pid.trim().matches("[0-9]+") ? pid.trim() : null;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.e("Error reading the process id of local worker "+instanceId+": "+e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Sends a signal to a process with the kill command
+	 * @param signal eg: -TERM, or -0 to check that the process exists
+	 * @param pid
+	 * @return true if the process received it
+	 */
+	private static boolean signal ( String signal , String pid ) {
+		try {
+			Process kill = new ProcessBuilder("kill", signal, pid).redirectErrorStream(true).start();
+			kill.getInputStream().close();
+			return kill.waitFor() == 0;
+		} catch (IOException e) {
+			log.e("Error sending "+signal+" to process "+pid+": "+e.toString());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static File getDirectory ( String instanceId ) {
+		return new File( ServerProperties.getLocalWorkersDirectory(), instanceId );
+	}
+
+	/**
+	 * Takes a port of the range for the worker and writes it in its directory
+	 * The ports of the other workers are skipped even if they're stopped, because their Tomcat keeps the port it was created with
+	 * @param instanceId
+	 * @return
+	 * @throws IOException if all the ports of the range are taken
+	 */
+	private static synchronized int assignPort ( String instanceId ) throws IOException {
+
+		List<Integer> taken = new ArrayList<Integer>();
+		File [] directories = new File( ServerProperties.getLocalWorkersDirectory() ).listFiles();
+		if ( directories != null ) {
+			for ( File directory : directories ) {
+				int port = directory.getName().equals(instanceId) ? 0 : readPort(directory);
+				if ( port > 0 )
+					taken.add(port);
+			}
+		}
+
+		int base = ServerProperties.getLocalWorkersBasePort();
+		for ( int port = base; port < base + ServerProperties.getLocalWorkersPortRange(); port++ ) {
+			if ( taken.contains(port) || !isFree(port) )
+				continue;
+
+			Writer writer = new OutputStreamWriter(new FileOutputStream(new File(getDirectory(instanceId), PORT_FILE)), "UTF-8");
+			try {
+				writer.write( Integer.toString(port) );
+			} finally {
+				writer.close();
+			}
+			return port;
+		}
+		throw new IOException("There isn't any free port for local worker "+instanceId+" between "+base+" and "+(base + ServerProperties.getLocalWorkersPortRange() - 1));
+	}
+
+	/**
+	 * Returns the port of the worker
+	 * The workers launched before the ports were kept in their directories listen at localWorkersBasePort plus their id
+	 * @param instanceId
+	 * @return
+	 */
+	private static int getPort ( String instanceId ) {
+		int port = readPort( getDirectory(instanceId) );
+		return port > 0 ? port : ServerProperties.getLocalWorkersBasePort() + Integer.parseInt( instanceId.substring("local-".length()) );
+	}
+
+	/**
+	 * Reads the port kept in the directory of a worker
+	 * @param directory
+	 * @return the port, or 0 if the directory doesn't have one
+	 */
+	private static int readPort ( File directory ) {
+
+		File portFile = new File(directory, PORT_FILE);
+		if ( !portFile.isFile() )
+			return 0;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(portFile), "UTF-8"));
+			try {
+				String port = reader.readLine();
+				return port != null && port.trim().matches("[0-9]+") ? Integer.parseInt(port.trim()) : 0;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.e("Error reading the port of local worker "+directory.getName()+": "+e.toString());
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns true if nothing listens in the port of 127.0.0.1
+	 * @param port
+	 * @return
+	 */
+	private static boolean isFree ( int port ) {
+		try {
+			new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1")).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean delete ( File f ) {
+		if ( f.isDirectory() ) {
+			for ( File c : f.listFiles() )
+				delete(c);
+		}
+		return f.delete();
+	}
+}
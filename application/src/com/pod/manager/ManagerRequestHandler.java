@@ -44,24 +44,45 @@ public class ManagerRequestHandler {
 		int actionId = json.get("action").asInt();
 		Action action = Action.get(actionId);
 		
+		// Every message from a worker is a sign that it's alive. It's only recorded in memory, the registry writes it later
+		if ( json.get("workerId") != null && json.get("workerId").isNumber() )
+			new WorkerRegistry().updateLastTimeAlive( json.get("workerId").asInt() );
+		
 		// New execution request from the client
 		if ( action == Action.NEW_EXECUTION ) {
 			ExecutionHandler h = new ExecutionHandler();
 			return h.newExecution(json);
 		}
 		
+		// A batch of new executions requested by the client
+		else if ( action == Action.NEW_EXECUTIONS ) {
+			ExecutionHandler h = new ExecutionHandler();
+			return h.newExecutions(json);
+		}
+		
 		// Get execution status for client
 		else if ( action == Action.GET_EXECUTION_STATUS ) {
 			ExecutionHandler h = new ExecutionHandler();
 			return h.getExecutionStatus(json);
 		}
 		
+		else if ( action == Action.GET_EXECUTION_STATUSES ) {
+			ExecutionHandler h = new ExecutionHandler();
+			return h.getExecutionStatuses(json);
+		}
+		
 		// A message from a worker informing about the result of an execution
 		else if ( action == Action.REPORT_EXECUTION ) {
 			ExecutionHandler h = new ExecutionHandler();
 			return h.handleExecutionReport(json);
 		}
 		
+		// A message from a worker with the output produced by its running executions
+		else if ( action == Action.REPORT_EXECUTION_OUTPUT ) {
+			ExecutionHandler h = new ExecutionHandler();
+			return h.handleExecutionOutput(json);
+		}
+		
 		// A message from a worker informing about the status of the installation of a new activity
 		else if ( action == Action.REPORT_ACTIVITY ) {
 			ActivityHandler h = new ActivityHandler();
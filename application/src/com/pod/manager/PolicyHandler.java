@@ -204,7 +204,7 @@ public class PolicyHandler {
 					int workersToDeploy = minWorkers-total;
 					log.i("Policy - minWorkers="+minWorkers+" maxWorkers="+maxWorkers+" currentWorkers="+wh.getTotalWorkers()+" workersToDeploy="+workersToDeploy);
 					for ( int i = 0; i < workersToDeploy; i++ )
-						wh.deployWorker();
+						wh.addWorker();
 				}
 				else if ( total > maxWorkers ) {
 					int workersToTerminate = total-maxWorkers;
@@ -7,8 +7,8 @@ import java.util.TimerTask;
 
 import main.resources.PodLogger;
 
+import com.pod.dao.ConnectionManager;
 import com.pod.dao.PolicyDAO;
-import com.pod.dao.WorkerDAO;
 import com.pod.listeners.ServerProperties;
 import com.pod.model.Policy;
 import com.pod.model.Worker;
@@ -27,11 +27,14 @@ public class SystemSchedulerTask extends TimerTask {
 	
 	public void run () {
 		
+		log.i("Database pool: "+ConnectionManager.getPoolMetrics().toString());
+		
 		WorkerHandler wh = new WorkerHandler();
 		PolicyDAO pdao = new PolicyDAO();
 		Policy policy = pdao.getActive();
 		
 		int terminatedWorkers = 0;
+		int stoppedWorkers = 0;
 		int errorWorkers = 0;
 		
 		if ( policy == null )
@@ -39,21 +42,27 @@ public class SystemSchedulerTask extends TimerTask {
 		// Before we even check if we can terminate a worker, we make sure we have room to terminate
 		else if ( wh.getTotalWorkers() > policy.getMinWorkers() ) {
 			
-			WorkerDAO wdao = new WorkerDAO();
-			Worker[] workers = wdao.list();
+			WorkerRegistry registry = new WorkerRegistry();
+			Worker[] workers = registry.list();
 			
 			Date now = new Date();
 			int terminationTime = policy.getRule("terminationTime") == null ? ServerProperties.DEFAULT_TERMINATION_TIME : Integer.parseInt( policy.getRule("terminationTime") );
 			
 			List<String> instanceIds = new ArrayList<String>();
+			WarmPool warmPool = new WarmPool();
 			
 			for ( Worker worker : workers ) {
 				
 				if ( !worker.isManager() && worker.getStatus().equals("ready") 
 						&& worker.getLastTimeWorked().getTime() < now.getTime() - terminationTime ) {
+					
+					// While the warm pool isn't full, idle workers are stopped instead of terminated
+					if ( warmPool.absorb(worker) ) {
+						stoppedWorkers++;
+						continue;
+					}
 					instanceIds.add(worker.getInstanceId());
-					worker.setStatus("terminated");
-					wdao.update(worker);
+					registry.setStatus( worker.getId(), "terminated" );
 				}
 			}
 			
@@ -63,16 +72,18 @@ public class SystemSchedulerTask extends TimerTask {
 			
 		}
 		
-		WorkerDAO wdao = new WorkerDAO();
-		Worker[] workers = wdao.list();
+		WorkerRegistry registry = new WorkerRegistry();
+		Worker[] workers = registry.list();
 		
 		// Terminate workers that are in error status
+		// The executions assigned to them go back to the waiting queue
+		ExecutionHandler eh = new ExecutionHandler();
 		List<String> instanceIds = new ArrayList<String>();
 		for ( Worker worker : workers ) {
 			if ( !worker.isManager() && worker.getStatus().equals("error") ) {
 				instanceIds.add(worker.getInstanceId());
-				worker.setStatus("terminated");
-				wdao.update(worker);
+				registry.setStatus( worker.getId(), "terminated" );
+				eh.reclaimExecutions(worker);
 				errorWorkers++;
 			}
 		}
@@ -83,12 +94,16 @@ public class SystemSchedulerTask extends TimerTask {
 		for ( Worker worker : workers ) {
 			if ( !worker.isManager() && worker.getStatus().equals("ready") || worker.getStatus().equals("working") ) {
 				if ( worker.getLastTimeAlive().getTime() + ServerProperties.DEFAULT_ERROR_TIMEOUT < new Date().getTime() ) {
-					worker.setStatus("error");
-					wdao.update(worker);
+					registry.setStatus( worker.getId(), "error" );
 					errorStatusWorkers++;
 				}
 			}
 		}
-		log.i("Routine: workers terminated by lack of activity = "+terminatedWorkers+", terminated by error = "+errorWorkers+", error marked = "+errorStatusWorkers);
+		
+		// Keep the warm pool at the size of the policy
+		if ( policy != null )
+			new WarmPool().maintain();
+		
+		log.i("Routine: workers terminated by lack of activity = "+terminatedWorkers+", stopped by lack of activity = "+stoppedWorkers+", terminated by error = "+errorWorkers+", error marked = "+errorStatusWorkers);
 	}
 }
@@ -0,0 +1,272 @@
+package com.pod.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.resources.PodLogger;
+
+import com.pod.dao.ActivityDAO;
+import com.pod.dao.PolicyDAO;
+import com.pod.listeners.ServerProperties;
+import com.pod.model.Activity;
+import com.pod.model.Policy;
+import com.pod.model.Worker;
+
+/**
+ * Pool of stopped workers with the activities already installed, so capacity comes online faster than deploying a new worker
+ * Starting a stopped worker only takes booting its instance, and it only installs the activities added while it was stopped
+ *
+ * The size of the pool is the rule warmPool of the active policy (none by default)
+ * The idle workers that the scheduler would terminate are stopped instead while the pool isn't full, and new workers are deployed
+ * to fill it, stopped as soon as they have all the activities installed
+ *
+ * With the rule workerImage set to true, a worker with all the activities installed is saved as an image,
+ * and the new workers are launched from it with the activities in their artifact store
+ * The image is made again when the activities change. It's kept in memory, so a restart of the manager makes a new one
+ *
+ * The rules of the policy and the activities are read when the pool is maintained, and kept until the next time,
+ * so the reports of installed activities don't query the database
+ */
+public class WarmPool {
+
+	public static PodLogger log = new PodLogger("WarmPool");
+
+	// Workers deployed to fill the pool, stopped when they have all the activities installed
+	private static Set<Integer> warming = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	// Image of a worker with all the activities installed, and those activities
+	private static volatile String image;
+	private static volatile Set<Integer> imageActivities;
+	private static volatile boolean creatingImage;
+
+	// Rules of the active policy and activities that every worker must have, read in the last maintenance
+	private static volatile Settings settings;
+
+	/**
+	 * Values of the policy used by the pool
+	 */
+	static class Settings {
+		final int size;
+		final boolean imageEnabled;
+		final int maxWorkers;
+		final Set<Integer> activityIds;
+
+		Settings ( int size , boolean imageEnabled , int maxWorkers , Set<Integer> activityIds ) {
+			this.size = size;
+			this.imageEnabled = imageEnabled;
+			this.maxWorkers = maxWorkers;
+			this.activityIds = activityIds;
+		}
+	}
+
+	/**
+	 * Starts a stopped worker of the pool
+	 * @return true if a worker is being started
+	 */
+	public boolean startWorker () {
+
+		WorkerHandler wh = new WorkerHandler();
+		for ( Worker worker : new WorkerRegistry().list() )
+			if ( !worker.isManager() && "stopped".equals(worker.getStatus()) && wh.startWorker(worker.getId()) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Stops the given idle worker and keeps it in the pool, if the pool isn't full
+	 * @param worker
+	 * @return true if the worker was stopped
+	 */
+	public boolean absorb ( Worker worker ) {
+
+		if ( new WorkerRegistry().count("stopped") + warming.size() >= getSettings().size )
+			return false;
+		return new WorkerHandler().stopWorker( worker.getId() );
+	}
+
+	/**
+	 * Keeps the pool at the size given by the active policy
+	 * The workers beyond that size are terminated, and new workers are deployed when it's missing some
+	 */
+	public void maintain () {
+
+		WorkerRegistry registry = new WorkerRegistry();
+		WorkerHandler wh = new WorkerHandler();
+		Settings current = refresh();
+		int size = current.size;
+
+		// The workers deployed for the pool that are ready are stopped now, and the ones that failed are forgotten
+		for ( Integer workerId : warming ) {
+			Worker worker = registry.get(workerId);
+			if ( worker == null || "terminated".equals(worker.getStatus()) || "error".equals(worker.getStatus()) )
+				warming.remove(workerId);
+			else
+				activityInstalled( workerId );
+		}
+
+		Worker[] workers = registry.list();
+		int stopped = registry.count("stopped");
+
+		if ( stopped > size ) {
+			List<String> instanceIds = new ArrayList<String>();
+			for ( Worker worker : workers ) {
+				if ( stopped <= size )
+					break;
+				if ( !worker.isManager() && "stopped".equals(worker.getStatus()) ) {
+					registry.setStatus( worker.getId(), "terminated" );
+					instanceIds.add( worker.getInstanceId() );
+					stopped--;
+				}
+			}
+			wh.terminateWorkerAction(instanceIds);
+			log.i("Warm pool: terminated "+instanceIds.size()+" stopped workers over the size of "+size);
+			return;
+		}
+
+		// New workers aren't deployed for the pool over the maximum of the policy
+		int missing = size - stopped - warming.size();
+		for ( int i = 0; i < missing; i++ ) {
+			if ( wh.getTotalWorkers() >= current.maxWorkers )
+				break;
+			int workerId = wh.deployWorker();
+			if ( workerId < 0 )
+				break;
+			warming.add(workerId);
+			log.i("Warm pool: worker "+workerId+" deployed to fill the pool");
+		}
+	}
+
+	/**
+	 * Called when a worker reports an installed activity
+	 * If the worker was deployed for the pool and it has all the activities, it's stopped
+	 * And if there isn't an image with all the activities, it's made from this worker
+	 * @param workerId
+	 */
+	public void activityInstalled ( int workerId ) {
+
+		Settings current = getSettings();
+		boolean forPool = warming.contains(workerId);
+		boolean forImage = current.imageEnabled && !creatingImage;
+		if ( !forPool && !forImage )
+			return;
+
+		Set<Integer> activities = current.activityIds;
+		Set<Integer> installed = new HashSet<Integer>();
+		for ( int activityId : new WorkerRegistry().getInstalledActivityIds(workerId) )
+			installed.add(activityId);
+		if ( !installed.containsAll(activities) )
+			return;
+
+		if ( forImage && !activities.isEmpty() && ( image == null || !activities.equals(imageActivities) ) )
+			createImage( workerId, activities );
+
+		if ( forPool && new WorkerHandler().stopWorker(workerId) ) {
+			warming.remove(workerId);
+			log.i("Warm pool: worker "+workerId+" has all the activities installed and was stopped");
+		}
+	}
+
+	/**
+	 * Returns the image that new workers are launched from, if there is one available
+	 * @return the image id, or null to use the AMI of the properties
+	 */
+	public String getImage () {
+
+		String current = image;
+		if ( current == null || !getSettings().imageEnabled )
+			return null;
+		return new WorkerHandler().isImageAvailable(current) ? current : null;
+	}
+
+	/**
+	 * Returns the number of stopped workers that the pool keeps, from the rule warmPool of the active policy
+	 * @return
+	 */
+	public int getSize () {
+		return getSettings().size;
+	}
+
+	/**
+	 * Reads again the rules of the active policy and the activities that every worker must have installed
+	 * @return the values read
+	 */
+	static Settings refresh () {
+
+		Policy policy = new PolicyDAO().getActive();
+
+		int size = ServerProperties.DEFAULT_WARM_POOL_SIZE;
+		if ( policy != null && policy.getRule("warmPool") != null ) {
+			try {
+				size = Integer.parseInt( policy.getRule("warmPool") );
+			} catch ( NumberFormatException e ) {
+				log.e("Rule warmPool of the active policy isn't a number: "+policy.getRule("warmPool"));
+			}
+		}
+		boolean imageEnabled = policy != null && "true".equals( policy.getRule("workerImage") );
+		int maxWorkers = policy != null ? policy.getMaxWorkers() : Integer.MAX_VALUE;
+
+		Set<Integer> ids = new HashSet<Integer>();
+		for ( Activity activity : new ActivityDAO().list() )
+			if ( !"rejected".equals(activity.getStatus()) )
+				ids.add(activity.getId());
+
+		Settings current = new Settings( size, imageEnabled, maxWorkers, Collections.unmodifiableSet(ids) );
+		settings = current;
+		return current;
+	}
+
+	/**
+	 * Returns the values read in the last maintenance, reading them the first time
+	 * @return
+	 */
+	static Settings getSettings () {
+		Settings current = settings;
+		return current != null ? current : refresh();
+	}
+
+	/**
+	 * Sets the values of the policy used by the pool, instead of reading them
+	 * @param newSettings
+	 */
+	static void setSettings ( Settings newSettings ) {
+		settings = newSettings;
+	}
+
+	/**
+	 * Makes an image of the worker in another thread, replacing the previous one
+	 * @param workerId
+	 * @param activities installed in the worker
+	 */
+	private static synchronized void createImage ( int workerId , final Set<Integer> activities ) {
+
+		if ( creatingImage )
+			return;
+		final Worker worker = new WorkerRegistry().get(workerId);
+		if ( worker == null || worker.getInstanceId() == null )
+			return;
+		creatingImage = true;
+
+		new Thread () {
+			public void run() {
+				try {
+					WorkerHandler wh = new WorkerHandler();
+					String newImage = wh.createImage( worker.getInstanceId() );
+					if ( newImage == null )
+						return;
+					String oldImage = image;
+					image = newImage;
+					imageActivities = activities;
+					if ( oldImage != null )
+						wh.deleteImage(oldImage);
+					log.i("Warm pool: image "+newImage+" made from worker "+worker.getId()+" with activities "+activities);
+				} finally {
+					creatingImage = false;
+				}
+			}
+		}.start();
+	}
+}
@@ -1,20 +1,13 @@
 package com.pod.manager;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import main.resources.PodLogger;
 
-import org.apache.commons.codec.binary.Base64;
-
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.ClasspathPropertiesFileCredentialsProvider;
-import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.*;
 import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.pod.dao.ActivityDAO;
@@ -28,12 +21,14 @@ import com.pod.model.Worker;
 
 /**
  * This class is in charge of handling workers (deploying, starting, stopping, etc)
+ * The stopped workers are kept in the warm pool (see WarmPool)
+ * The machines of the workers are handled by the ComputeProvider, EC2 by default
  */
 public class WorkerHandler {
 	
 	public static PodLogger log = new PodLogger("WorkerHandler");
 	
-	private static boolean securityGroupCreated;
+	private static volatile ComputeProvider computeProvider;
 	
 	/**
 	 * Constructor or a Worker Handler instance
@@ -41,29 +36,31 @@ public class WorkerHandler {
 	public WorkerHandler(){
 	}
 	
+	// The counts are read from the indexes of the worker registry
 	public int getTotalWorkers() {
-		return new WorkerDAO().list().length - getErrorWorkers(); // the list method already retrieves only non terminated workers
+		WorkerRegistry registry = new WorkerRegistry();
+		return registry.countActive() - registry.count("stopped"); // not terminated, in error status nor stopped in the warm pool
 	}
 	public int getReadyWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"ready"} ).length;
+		return new WorkerRegistry().count("ready");
 	}
 	public int getPendingWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"pending"} ).length;
+		return new WorkerRegistry().count("pending");
 	}
 	public int getLaunchingWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"launching"} ).length;
+		return new WorkerRegistry().count("launching");
 	}
 	public int getWorkingWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"working"} ).length;
+		return new WorkerRegistry().count("working");
 	}
 	public int getStoppedWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"stopped"} ).length;
+		return new WorkerRegistry().count("stopped");
 	}
 	public int getTerminatedWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"terminated"} ).length;
+		return new WorkerRegistry().count("terminated");
 	}
 	public int getErrorWorkers() {
-		return new WorkerDAO().selectByStatus( new String[] {"error"} ).length;
+		return new WorkerRegistry().count("error");
 	}
 
 	
@@ -82,14 +79,26 @@ public class WorkerHandler {
 		response.add("count", countJson);	
 		
 		JsonArray workersJson = new JsonArray();
-		for ( Worker w : new WorkerDAO().list() ) {
+		for ( Worker w : new WorkerRegistry().list() ) {
 			workersJson.add(w.toJsonObject());
 		}
 		
 		return response.add("workers", workersJson);
 	}
 	
-	public boolean deployWorker(){
+	/**
+	 * Adds a worker to the system, starting a stopped one from the warm pool if there is any, or deploying a new one
+	 * @return true if a worker is on its way
+	 */
+	public boolean addWorker(){
+		return new WarmPool().startWorker() || deployWorker() >= 0;
+	}
+	
+	/**
+	 * Launches a new worker
+	 * @return the id of the new worker, or -1 if it couldn't be launched
+	 */
+	public int deployWorker(){
 		
 		// Create worker object
 		Worker worker = new Worker();
@@ -102,7 +111,9 @@ public class WorkerHandler {
 		
 		// In case an error happened with the database
 		if ( workerId < 0 ) 
-			return false;
+			return -1;
+		
+		new WorkerRegistry().add(worker);
 		
 		// Deploy the worker and get the id that was assigned by the cloud provide
 		String instanceId;
@@ -111,25 +122,104 @@ public class WorkerHandler {
 			instanceId = deployWorkerAction( workerId );
 			
 		} catch (IOException e) {
-			return false;
+			return -1;
 		}
 		
 		if ( "".equals(instanceId) ) {
 			
-			return false;
+			return -1;
 		}
 		
-		// Update worker in database
+		// Update worker in the registry, that will write it to the database
 		worker.setId(workerId);
 		worker.setStatus("pending");
-		wdao.update(worker);
+		worker.setInstanceId(instanceId);
+		new WorkerRegistry().update(worker);
+		
+		return workerId;
+	}
+	
+	/**
+	 * Starts a worker of the warm pool. It will be pending until it contacts the manager
+	 * @param id
+	 * @return false if the worker isn't stopped or it couldn't be started
+	 */
+	public boolean startWorker(int id){
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		Worker worker = registry.get(id);
+		if ( worker == null || !"stopped".equals(worker.getStatus()) || worker.getInstanceId() == null )
+			return false;
+		registry.setStatus( id, "pending" );
+		
+		try {
+			getComputeProvider().start( worker.getInstanceId() );
+		} catch (IOException e) {
+			log.e("Worker "+id+" couldn't be started: "+e.toString());
+			registry.setStatus( id, "error" );
+			return false;
+		}
+		
+		log.i("Worker "+id+" started from the warm pool");
+		return true;
+	}
+	
+	/**
+	 * Stops an idle worker, keeping its disk with the installed activities, so it can be started later
+	 * @param id
+	 * @return false if the worker isn't idle or it couldn't be stopped
+	 */
+	public boolean stopWorker(int id){
+		
+		WorkerRegistry registry = new WorkerRegistry();
+		Worker worker = registry.get(id);
+		if ( worker == null || worker.isManager() || worker.getInstanceId() == null )
+			return false;
+		
+		// Marked first, so no execution is sent to it meanwhile
+		if ( !registry.setStatusIfIdle( id, "stopped" ) )
+			return false;
+		
+		try {
+			getComputeProvider().stop( worker.getInstanceId() );
+		} catch (IOException e) {
+			log.e("Worker "+id+" couldn't be stopped: "+e.toString());
+			registry.setStatus( id, "ready" );
+			return false;
+		}
 		
+		// Executions that were assigned in advance go back to the waiting queue
+		new ExecutionHandler().reclaimExecutions(worker);
+		
+		log.i("Worker "+id+" stopped and kept in the warm pool");
 		return true;
 	}
 	
-	public void startWorker(int id){}
+	/**
+	 * Makes an image of the worker instance, without rebooting it
+	 * @param instanceId
+	 * @return the image id, or null if it couldn't be made
+	 */
+	public String createImage ( String instanceId ) {
+		return getComputeProvider().createImage(instanceId);
+	}
+	
+	/**
+	 * Returns true if the image can be used to launch instances
+	 * @param imageId
+	 * @return
+	 */
+	public boolean isImageAvailable ( String imageId ) {
+		return getComputeProvider().isImageAvailable(imageId);
+	}
 	
-	public void stopWorker(int id){}
+	/**
+	 * Deletes an image that isn't used anymore
+	 * @param imageId
+	 */
+	public void deleteImage ( String imageId ) {
+		getComputeProvider().deleteImage(imageId);
+	}
 
 	/**
 	 * Attends the status update from the worker
@@ -140,11 +230,9 @@ public class WorkerHandler {
 		
 		int workerId = json.get("workerId").asInt();
 		
+		// The time is recorded by the ManagerRequestHandler, as for any other message from a worker
 		log.i("Still Alive message received from worker "+workerId);
 		
-		WorkerDAO wdao = new WorkerDAO();
-		wdao.updateLastTimeAlive(workerId);
-		
 		return new JsonObject().add("action", Action.ACK.getId());
 		
 	}
@@ -160,9 +248,9 @@ public class WorkerHandler {
 		
 		List<String> instanceIds = new ArrayList<String>();
 
-		WorkerDAO wdao = new WorkerDAO();
+		WorkerRegistry registry = new WorkerRegistry();
 		
-		Worker[] workers = wdao.list();
+		Worker[] workers = registry.list();
 		
 		int flaggedWorkers = 0;
 		for ( Worker worker : workers ) {
@@ -171,8 +259,7 @@ public class WorkerHandler {
 				break;
 			
 			if ( !worker.isManager() && !worker.getStatus().equals("terminated") ) {
-				worker.setStatus("terminated");
-				wdao.update(worker);
+				registry.setStatus( worker.getId(), "terminated" );
 				instanceIds.add(worker.getInstanceId());
 				flaggedWorkers++;
 			}
@@ -191,76 +278,44 @@ public class WorkerHandler {
 		if ( instanceIds == null ||  instanceIds.size() == 0 )
 			return;
 		
-		// Try to create the client
-		AWSCredentialsProvider credentialsProvider = new ClasspathPropertiesFileCredentialsProvider("/main/resources/AwsCredentials.properties");
-		AmazonEC2 amazonEC2Client = new AmazonEC2Client(credentialsProvider);
-		
-		TerminateInstancesRequest tir = new TerminateInstancesRequest ( instanceIds );
-		amazonEC2Client.terminateInstances(tir);
+		getComputeProvider().terminate( instanceIds );
+	}
+	
+	/**
+	 * Returns the provider of the machines of the workers, given by the property computeProvider
+	 * @return
+	 */
+	public static ComputeProvider getComputeProvider () {
+		
+		if ( computeProvider == null ) {
+			synchronized (WorkerHandler.class) {
+				if ( computeProvider == null ) {
+					if ( "local".equals( ServerProperties.getComputeProvider() ) )
+						computeProvider = new LocalComputeProvider();
+					else
+						computeProvider = new Ec2ComputeProvider();
+				}
+			}
+		}
+		return computeProvider;
 	}
 
+	/**
+	 * Sets the provider of the machines of the workers, instead of the one given by the properties
+	 * @param provider
+	 */
+	static void setComputeProvider ( ComputeProvider provider ) {
+		computeProvider = provider;
+	}
 
 	private String deployWorkerAction( int workerId ) throws IOException {
 		
-		// Try to create the client
-		AWSCredentialsProvider credentialsProvider = new ClasspathPropertiesFileCredentialsProvider("/main/resources/AwsCredentials.properties");
-		AmazonEC2 amazonEC2Client = new AmazonEC2Client(credentialsProvider);
-		
-		// Attempt to create security group in case it isn't already created
-		if ( !securityGroupCreated ){
-			// This strange OR operation is to ensure that the boolean will stay true if set first one thread
-			securityGroupCreated = createSecurityGroup( amazonEC2Client , ServerProperties.getName()+"-wkr-grp" ) || securityGroupCreated;
-		}
+		// The number of execution slots of the worker can be set by the active policy
+		Policy activePolicy = new PolicyDAO().getActive();
+		String executionSlots = activePolicy != null ? activePolicy.getRule("executionSlots") : null;
 		
-		// Read user data file
-		// http://www.mkyong.com/java/how-to-read-file-from-java-bufferedreader-example/
-		String userData = "";
-		BufferedReader br = new BufferedReader(new InputStreamReader( getClass().getResourceAsStream("/main/resources/worker_setup.sh") ));
-
-		String sCurrentLine;
-		while ((sCurrentLine = br.readLine()) != null) {
-			userData += sCurrentLine +"\n";
-		}
-		br.close();
-
-		// Set variables for the worker setup script
-		userData = userData.replace("NAME=", "NAME="+ServerProperties.getName())
-						   .replace("MANAGER_LOCAL_IP=", "MANAGER_LOCAL_IP="+ServerProperties.getManagerLocalIp())
-						   .replace("WORKER_ID=", "WORKER_ID=" + workerId)
-		                   .replace("REPO_URL=", "REPO_URL="+ServerProperties.getRepoURL())
-		                   .replace("KEYPAIR=", "KEYPAIR="+ServerProperties.getKeypair())
-		                   .replace("SECURITY_GROUP=", "SECURITY_GROUP="+ServerProperties.getSecutiryGroup());
-		
-		
-		// Run instance
-		RunInstancesRequest runInstancesRequest = 
-				  new RunInstancesRequest();
-
-		runInstancesRequest.withImageId( ServerProperties.getAMI() )
-		                     .withInstanceType( ServerProperties.getInstanceType() )
-		                     .withMinCount(1)
-		                     .withMaxCount(1)
-		                     .withKeyName( ServerProperties.getKeypair() )
-		                     .withSecurityGroups( ServerProperties.getName()+"-wkr-grp" )
-		                     .withUserData(new String(Base64.encodeBase64(userData.getBytes("UTF-8"))));
-
-
-
-		 RunInstancesResult runInstancesResult = amazonEC2Client.runInstances(runInstancesRequest);
-		
-		 
-		 // Tag instance
-		 List<Instance> instances = runInstancesResult.getReservation().getInstances();
-		 String instanceId = "";
-		 for (Instance instance : instances) {
-			CreateTagsRequest createTagsRequest = new CreateTagsRequest();
-			instanceId = instance.getInstanceId();
-			createTagsRequest.withResources(instanceId)
-			   .withTags(new Tag("Name", ServerProperties.getName()+"-worker" ));
-			amazonEC2Client.createTags(createTagsRequest);
-		 }
-
-		 return instanceId;
+		// The image of a worker with the activities installed is used if there is one
+		return getComputeProvider().launch( workerId, new WarmPool().getImage(), executionSlots );
 	}
 
 	
@@ -274,92 +329,31 @@ public class WorkerHandler {
 		worker.setLocalIp( json.get("localIp").asString() );
 		worker.setPublicIp( json.get("publicIp").asString() );
 		worker.setInstanceId( json.get("instanceId").asString() );
+		if ( json.get("slots") != null ) worker.setSlots( json.get("slots").asInt() );
 		
-		WorkerDAO wdao = new WorkerDAO();
-		wdao.updateLastTimeWorked( worker.getId() );
-		wdao.update( worker );
+		WorkerRegistry registry = new WorkerRegistry();
+		registry.update( worker );
+		registry.updateLastTimeWorked( worker.getId() );
+		
+		// A worker that was running before has lost what it had in memory, like the executions assigned to it
+		// in a report answer that it never received. They go back to the waiting queue
+		new ExecutionHandler().reclaimExecutions(worker);
+		
+		// The activities uninstalled while it was stopped or being deployed are uninstalled now
+		ActivityInstallationNotifier.notifyDeferred(worker);
 		
 		// Now that the manager knows that the worker exists, we must notify the installations to the worker
 		// Right now, we send one message per activity to the worker
+		// A worker started from the warm pool already has the activities that were installed before it was stopped
+		Set<Integer> installed = new HashSet<Integer>();
+		for ( int activityId : registry.getInstalledActivityIds(workerId) )
+			installed.add(activityId);
 		ActivityDAO adao = new ActivityDAO();
 		for ( Activity activity : adao.list() )
-			new Thread ( new ActivityInstallationNotifier(activity, Action.INSTALL_ACTIVITY ).setSpecificWorker(worker) ).start();
+			if ( !installed.contains(activity.getId()) )
+				new Thread ( new ActivityInstallationNotifier(activity, Action.INSTALL_ACTIVITY ).setSpecificWorker(worker) ).start();
 		
 		return new JsonObject().add("action", Action.ACK.getId());
 	}
-	
-	/** 
-	 * This method attempts to create a security group with the specified name 
-	 * @param amazonEC2Client
-	 * @param securityGroupName
-	 * @return false in case there was a problem creating it, or true if success
-	 */
-	private synchronized boolean createSecurityGroup( AmazonEC2 amazonEC2Client, String securityGroupName ) {
-		
-		try {
-			// Try to create the security group
-			CreateSecurityGroupRequest createSecurityGroupRequest = 
-					new CreateSecurityGroupRequest();
-			createSecurityGroupRequest.withGroupName(securityGroupName)
-				.withDescription("Security group for workers in POD. Name is "+securityGroupName);
-
-			amazonEC2Client.createSecurityGroup(createSecurityGroupRequest);
-
-			// Authorize post 22
-			IpPermission ipPermission = 
-					new IpPermission();
-
-			ipPermission.withIpRanges("0.0.0.0/0")
-				            .withIpProtocol("tcp")
-				            .withFromPort(22)
-				            .withToPort(22);
-			AuthorizeSecurityGroupIngressRequest authorizeSecurityGroupIngressRequest =
-					new AuthorizeSecurityGroupIngressRequest();
-
-			authorizeSecurityGroupIngressRequest.withGroupName(securityGroupName)
-				                                    .withIpPermissions(ipPermission);
-
-			amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
-
-			// Authorize post 80
-			ipPermission = 
-					new IpPermission();
-
-			ipPermission.withIpRanges("0.0.0.0/0")
-				            .withIpProtocol("tcp")
-				            .withFromPort(80)
-				            .withToPort(80);
-			authorizeSecurityGroupIngressRequest =
-					new AuthorizeSecurityGroupIngressRequest();
-
-			authorizeSecurityGroupIngressRequest.withGroupName(securityGroupName)
-				                                    .withIpPermissions(ipPermission);
-
-			amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
-
-			// Authorize post 8080
-			ipPermission = 
-					new IpPermission();
-
-			ipPermission.withIpRanges("0.0.0.0/0")
-				            .withIpProtocol("tcp")
-				            .withFromPort(8080)
-				            .withToPort(8080);
-			authorizeSecurityGroupIngressRequest =
-					new AuthorizeSecurityGroupIngressRequest();
-
-			authorizeSecurityGroupIngressRequest.withGroupName(securityGroupName)
-				                                    .withIpPermissions(ipPermission);
-
-			amazonEC2Client.authorizeSecurityGroupIngress(authorizeSecurityGroupIngressRequest);
-			
-			return true;
-		}
-		// Exception if the group already existed
-		catch (Exception e) {
-			return false;
-		}
-		
-	}
 
 }
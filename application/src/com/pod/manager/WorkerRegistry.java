@@ -0,0 +1,596 @@
+package com.pod.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.resources.PodLogger;
+
+import com.pod.dao.InstallationDAO;
+import com.pod.dao.WorkerDAO;
+import com.pod.model.Worker;
+
+/**
+ * This class represents the workers of the system as the manager sees them, kept in memory
+ * The scheduling of executions reads and updates the workers here, without accessing the database
+ *
+ * Besides the map of workers, there are two indexes: the number of workers in each status,
+ * and the workers with status 'ready' that have each activity installed
+ * Every change of a worker is done holding the lock of that worker object, so the indexes stay in line with it
+ *
+ * The changes are written to the workers table in the background (write-behind): changed workers are marked
+ * and a timer writes all of them in a single batch every FLUSH_INTERVAL
+ * Signs of life of the workers arrive with every message, so they're written apart, only the last time alive
+ * of each worker in a single batch every ALIVE_FLUSH_INTERVAL
+ * The only exception is the insertion of a new worker, that must be done in the database first to get its id
+ *
+ * The methods returning workers return copies, so changes to them have no effect until they're given back with update
+ */
+public class WorkerRegistry {
+
+	public static PodLogger log = new PodLogger("WorkerRegistry");
+
+	private static final int FLUSH_INTERVAL = 500; // ms
+	private static final int ALIVE_FLUSH_INTERVAL = 30*1000; // every 30 secs
+
+	// Workers by id
+	private static ConcurrentHashMap<Integer, Worker> workers;
+
+	// Ids of the activities installed in each worker
+	private static ConcurrentHashMap<Integer, Set<Integer>> installedActivities;
+
+	// Ids of the workers with status 'ready' that have each activity installed
+	private static ConcurrentHashMap<Integer, Set<Integer>> readyWorkers;
+
+	// Number of workers in each status
+	private static ConcurrentHashMap<String, AtomicInteger> statusCounts;
+
+	// Workers changed since the last flush to the database
+	private static Set<Integer> dirtyWorkers;
+
+	// Workers that gave signs of life since the last flush of the last time alive
+	private static Set<Integer> aliveWorkers;
+
+	/**
+	 * Create a worker registry object and initialize internal static data structures
+	 * This method has the initialization synchronized, so no concurrent threads start the structures at the same time
+	 */
+	public WorkerRegistry () {
+
+		if ( workers == null ) {
+			synchronized (WorkerRegistry.class){
+				if ( workers == null ) {
+					installedActivities = new ConcurrentHashMap<Integer, Set<Integer>>();
+					readyWorkers = new ConcurrentHashMap<Integer, Set<Integer>>();
+					statusCounts = new ConcurrentHashMap<String, AtomicInteger>();
+					dirtyWorkers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+					aliveWorkers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+					workers = new ConcurrentHashMap<Integer, Worker>();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Loads the workers that aren't terminated and their installed activities from the database
+	 * and starts the timer that writes the changes back
+	 * Called once when the manager starts
+	 */
+	public static void load () {
+
+		WorkerRegistry registry = new WorkerRegistry();
+		InstallationDAO idao = new InstallationDAO();
+
+		int loaded = 0;
+		for ( Worker worker : new WorkerDAO().list() ) {
+			Set<Integer> activities = newSet();
+			for ( int activityId : idao.selectInstalledActivityIdsByWorker( worker.getId() ) )
+				activities.add(activityId);
+			installedActivities.put(worker.getId(), activities);
+			registry.put(worker);
+			loaded++;
+		}
+
+		Timer flushTimer = new Timer(true);
+		flushTimer.schedule(new TimerTask() {
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL);
+		flushTimer.schedule(new TimerTask() {
+			public void run() {
+				flushAlive();
+			}
+		}, ALIVE_FLUSH_INTERVAL, ALIVE_FLUSH_INTERVAL);
+
+		log.i("Worker registry loaded with "+loaded+" workers");
+	}
+
+	/**
+	 * Writes the workers changed since the last call to the database, all in one batch
+	 */
+	public static void flush () {
+
+		if ( dirtyWorkers == null || dirtyWorkers.isEmpty() )
+			return;
+
+		List<Worker> changed = new ArrayList<Worker>();
+		Iterator<Integer> iterator = dirtyWorkers.iterator();
+		while ( iterator.hasNext() ) {
+			Worker worker = workers.get( iterator.next() );
+			iterator.remove();
+			if ( worker != null ) {
+				synchronized (worker) {
+					changed.add(worker.clone());
+				}
+			}
+		}
+
+		WorkerDAO wdao = new WorkerDAO();
+		if ( !changed.isEmpty() && !wdao.updateAll( changed.toArray(new Worker[changed.size()]) ) ) {
+
+			// Try again in the next flush
+			log.e("Couldn't write "+changed.size()+" workers to the database: "+wdao.getError());
+			for ( Worker worker : changed )
+				dirtyWorkers.add(worker.getId());
+		}
+	}
+
+	/**
+	 * Writes the last time alive of the workers that gave signs of life since the last call, all in one batch
+	 */
+	public static void flushAlive () {
+
+		if ( aliveWorkers == null || aliveWorkers.isEmpty() )
+			return;
+
+		List<Worker> alive = new ArrayList<Worker>();
+		Iterator<Integer> iterator = aliveWorkers.iterator();
+		while ( iterator.hasNext() ) {
+			Worker worker = workers.get( iterator.next() );
+			iterator.remove();
+			if ( worker != null ) {
+				synchronized (worker) {
+					if ( worker.getLastTimeAlive() != null )
+						alive.add(worker.clone());
+				}
+			}
+		}
+
+		WorkerDAO wdao = new WorkerDAO();
+		if ( !alive.isEmpty() && !wdao.updateLastTimeAliveAll( alive.toArray(new Worker[alive.size()]) ) ) {
+
+			// Try again in the next flush
+			log.e("Couldn't write the last time alive of "+alive.size()+" workers to the database: "+wdao.getError());
+			for ( Worker worker : alive )
+				aliveWorkers.add(worker.getId());
+		}
+	}
+
+	/**
+	 * Adds a worker that was just inserted in the database, so it already has an id
+	 * @param worker
+	 */
+	public void add ( Worker worker ) {
+		installedActivities.putIfAbsent(worker.getId(), WorkerRegistry.<Integer>newSet());
+		put( worker.clone() );
+	}
+
+	/**
+	 * Updates the worker with the same id with the information of the given worker
+	 * If the registry didn't have it, it's added
+	 * @param worker
+	 */
+	public void update ( Worker worker ) {
+
+		Worker current = workers.get(worker.getId());
+		if ( current == null ) {
+			add(worker);
+			dirtyWorkers.add(worker.getId());
+			return;
+		}
+
+		synchronized (current) {
+			String previousStatus = current.getStatus();
+			current.setStatus( worker.getStatus() );
+			current.setLocalIp( worker.getLocalIp() );
+			current.setPublicIp( worker.getPublicIp() );
+			current.setInstanceId( worker.getInstanceId() );
+			current.setManager( worker.isManager() );
+			current.setSlots( worker.getSlots() );
+			current.setBusySlots( worker.getBusySlots() );
+			if ( worker.getLastTimeWorked() != null ) current.setLastTimeWorked( worker.getLastTimeWorked() );
+			if ( worker.getLastTimeAlive() != null ) current.setLastTimeAlive( worker.getLastTimeAlive() );
+			changed(current, previousStatus);
+		}
+	}
+
+	/**
+	 * Retrieves a copy of the worker
+	 * @param workerId
+	 * @return the worker or null if it isn't in the registry
+	 */
+	public Worker get ( int workerId ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return null;
+		synchronized (worker) {
+			return worker.clone();
+		}
+	}
+
+	/**
+	 * Returns copies of all the workers that aren't terminated
+	 * @return
+	 */
+	public Worker[] list () {
+		List<Worker> result = new ArrayList<Worker>( workers.size() );
+		for ( Worker worker : workers.values() ) {
+			synchronized (worker) {
+				if ( !"terminated".equals(worker.getStatus()) )
+					result.add(worker.clone());
+			}
+		}
+		return result.toArray( new Worker [result.size()] );
+	}
+
+	/**
+	 * Returns true if the given address belongs to a worker that isn't terminated, not counting the manager
+	 * The ports of the addresses of the workers aren't compared
+	 * @param address IP address, eg: the remote address of a request
+	 * @return
+	 */
+	public boolean isWorkerAddress ( String address ) {
+		if ( address == null )
+			return false;
+		for ( Worker worker : list() )
+			if ( !worker.isManager() && ( address.equals( host(worker.getLocalIp()) ) || address.equals( host(worker.getPublicIp()) ) ) )
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the number of workers with the given status
+	 * @param status
+	 * @return
+	 */
+	public int count ( String status ) {
+		AtomicInteger count = statusCounts.get(status);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * Returns the number of workers that aren't terminated nor in error status
+	 * @return
+	 */
+	public int countActive () {
+		return workers.size() - count("terminated") - count("error");
+	}
+
+	/**
+	 * Takes an execution slot of a worker with status 'ready' that has the given activity installed
+	 * The check and the update are done together holding only the lock of each candidate worker, so threads claiming workers
+	 * for different activities, or different workers for the same activity, don't wait for each other
+	 * @param activityId
+	 * @return a copy of the claimed worker, or null if there wasn't any available
+	 */
+	public Worker claim ( int activityId ) {
+
+		Set<Integer> candidates = readyWorkers.get(activityId);
+		if ( candidates == null )
+			return null;
+
+		for ( Integer workerId : candidates ) {
+			Worker worker = workers.get(workerId);
+			if ( worker == null ) continue;
+			synchronized (worker) {
+				// Another thread could have taken its last slot since it was read from the index
+				if ( !"ready".equals(worker.getStatus()) || worker.getBusySlots() >= worker.getSlots() )
+					continue;
+
+				worker.setBusySlots( worker.getBusySlots() + 1 );
+				worker.setStatus( worker.getBusySlots() >= worker.getSlots() ? "working" : "ready" );
+				Date now = new Date();
+				worker.setLastTimeWorked(now);
+				worker.setLastTimeAlive(now);
+				changed(worker, "ready");
+				return worker.clone();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the status of the worker
+	 * @param workerId
+	 * @param status
+	 * @return false if the worker isn't in the registry
+	 */
+	public boolean setStatus ( int workerId , String status ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return false;
+		synchronized (worker) {
+			String previousStatus = worker.getStatus();
+			worker.setStatus(status);
+			changed(worker, previousStatus);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the status of the worker only if it's ready and isn't running any execution
+	 * The check and the update are done holding the lock of the worker, so it can't be claimed meanwhile
+	 * @param workerId
+	 * @param status
+	 * @return false if the worker isn't in the registry or it isn't idle
+	 */
+	public boolean setStatusIfIdle ( int workerId , String status ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return false;
+		synchronized (worker) {
+			if ( !"ready".equals(worker.getStatus()) || worker.getBusySlots() > 0 )
+				return false;
+			worker.setStatus(status);
+			changed(worker, "ready");
+		}
+		return true;
+	}
+
+	/**
+	 * Marks one more execution slot of the worker as used
+	 * The status of the worker is set to working if all its slots are used, or ready otherwise
+	 * A worker in another status, eg: stopped, keeps it (see isAvailable)
+	 * @param workerId
+	 * @return false if the worker isn't in the registry
+	 */
+	public boolean acquireSlot ( int workerId ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return false;
+		synchronized (worker) {
+			String previousStatus = worker.getStatus();
+			worker.setBusySlots( worker.getBusySlots() + 1 );
+			if ( isAvailable(previousStatus) )
+				worker.setStatus( worker.getBusySlots() >= worker.getSlots() ? "working" : "ready" );
+			changed(worker, previousStatus);
+		}
+		return true;
+	}
+
+	/**
+	 * Marks one more execution slot of the worker as used, only if it has a free one
+	 * @param workerId
+	 * @return false if the worker isn't in the registry or all its slots are used
+	 */
+	public boolean tryAcquireSlot ( int workerId ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return false;
+		synchronized (worker) {
+			if ( worker.getBusySlots() >= worker.getSlots() )
+				return false;
+			String previousStatus = worker.getStatus();
+			worker.setBusySlots( worker.getBusySlots() + 1 );
+			if ( isAvailable(previousStatus) )
+				worker.setStatus( worker.getBusySlots() >= worker.getSlots() ? "working" : "ready" );
+			changed(worker, previousStatus);
+		}
+		return true;
+	}
+
+	/**
+	 * Frees one execution slot of the worker and sets its status
+	 * The status is only changed if the worker is ready or working, so a late answer doesn't revive a stopped or terminated worker
+	 * @param workerId
+	 * @param status
+	 * @return false if the worker isn't in the registry
+	 */
+	public boolean releaseSlot ( int workerId , String status ) {
+		return releaseSlots(workerId, 1, status);
+	}
+
+	/**
+	 * Releases several execution slots of the worker at once and sets its status
+	 * The status is only changed if the worker is ready or working
+	 * @param workerId
+	 * @param slots number of slots released
+	 * @param status
+	 * @return false if the worker isn't registered
+	 */
+	public boolean releaseSlots ( int workerId , int slots , String status ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return false;
+		synchronized (worker) {
+			String previousStatus = worker.getStatus();
+			worker.setBusySlots( Math.max( worker.getBusySlots() - slots, 0 ) );
+			if ( isAvailable(previousStatus) )
+				worker.setStatus(status);
+			changed(worker, previousStatus);
+		}
+		return true;
+	}
+
+	/**
+	 * Updates the last time that the worker worked, which is also the last time that it was alive
+	 * @param workerId
+	 */
+	public void updateLastTimeWorked ( int workerId ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return;
+		synchronized (worker) {
+			Date now = new Date();
+			worker.setLastTimeWorked(now);
+			worker.setLastTimeAlive(now);
+			dirtyWorkers.add(workerId);
+		}
+	}
+
+	/**
+	 * Updates the last time that the worker was alive
+	 * @param workerId
+	 */
+	public void updateLastTimeAlive ( int workerId ) {
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return;
+		synchronized (worker) {
+			worker.setLastTimeAlive( new Date() );
+			aliveWorkers.add(workerId);
+		}
+	}
+
+	/**
+	 * Returns the ids of the activities installed in the worker
+	 * @param workerId
+	 * @return
+	 */
+	public int[] getInstalledActivityIds ( int workerId ) {
+		Set<Integer> activities = installedActivities.get(workerId);
+		if ( activities == null )
+			return new int [0];
+		List<Integer> ids = new ArrayList<Integer>(activities);
+		int [] result = new int [ids.size()];
+		for ( int i = 0; i<ids.size(); i++ )
+			result[i] = ids.get(i);
+		return result;
+	}
+
+	/**
+	 * Updates the installation status of an activity in a worker. Only the status 'installed' makes the activity available in the worker
+	 * The installations table must be updated by the caller
+	 * @param workerId
+	 * @param activityId
+	 * @param status
+	 */
+	public void setInstallationStatus ( int workerId , int activityId , String status ) {
+
+		Worker worker = workers.get(workerId);
+		if ( worker == null )
+			return;
+
+		synchronized (worker) {
+			Set<Integer> activities = installedActivities.get(workerId);
+			if ( activities == null ) {
+				activities = newSet();
+				installedActivities.put(workerId, activities);
+			}
+
+			if ( "installed".equals(status) ) {
+				activities.add(activityId);
+				if ( "ready".equals(worker.getStatus()) )
+					readyWorkersOf(activityId).add(workerId);
+			}
+			else {
+				activities.remove(activityId);
+				readyWorkersOf(activityId).remove(workerId);
+			}
+		}
+	}
+
+	/**
+	 * Removes an activity from all workers, after it's been deleted
+	 * @param activityId
+	 */
+	public void removeActivity ( int activityId ) {
+		for ( Integer workerId : workers.keySet() )
+			setInstallationStatus(workerId, activityId, "deleted");
+		readyWorkers.remove(activityId);
+	}
+
+	/**
+	 * Returns true for the statuses of a worker that runs executions, whose changes follow the use of its slots
+	 * @param status
+	 * @return
+	 */
+	private static boolean isAvailable ( String status ) {
+		return "ready".equals(status) || "working".equals(status);
+	}
+
+	private static String host ( String ip ) {
+		if ( ip == null )
+			return null;
+		int colon = ip.indexOf(':');
+		return colon < 0 ? ip : ip.substring(0, colon);
+	}
+
+	/**
+	 * Puts the worker in the map and in the indexes
+	 */
+	private void put ( Worker worker ) {
+		Worker previous = workers.put(worker.getId(), worker);
+		if ( previous != null ) {
+			synchronized (previous) {
+				updateIndexes(previous.getId(), previous.getStatus(), null);
+			}
+		}
+		synchronized (worker) {
+			updateIndexes(worker.getId(), null, worker.getStatus());
+		}
+	}
+
+	/**
+	 * Updates the indexes after a change of the worker and marks it to be written to the database
+	 * Must be called holding the lock of the worker
+	 */
+	private void changed ( Worker worker , String previousStatus ) {
+		updateIndexes(worker.getId(), previousStatus, worker.getStatus());
+		dirtyWorkers.add(worker.getId());
+	}
+
+	private void updateIndexes ( int workerId , String previousStatus , String status ) {
+
+		if ( previousStatus == null ? status == null : previousStatus.equals(status) )
+			return;
+
+		if ( previousStatus != null ) counter(previousStatus).decrementAndGet();
+		if ( status != null ) counter(status).incrementAndGet();
+
+		// Ready workers by activity
+		boolean wasReady = "ready".equals(previousStatus);
+		boolean isReady = "ready".equals(status);
+		if ( wasReady != isReady ) {
+			Set<Integer> activities = installedActivities.get(workerId);
+			if ( activities != null ) {
+				for ( Integer activityId : activities ) {
+					if ( isReady ) readyWorkersOf(activityId).add(workerId);
+					else readyWorkersOf(activityId).remove(workerId);
+				}
+			}
+		}
+	}
+
+	private AtomicInteger counter ( String status ) {
+		AtomicInteger count = statusCounts.get(status);
+		if ( count == null ) {
+			AtomicInteger newCount = new AtomicInteger();
+			count = statusCounts.putIfAbsent(status, newCount);
+			if ( count == null ) count = newCount;
+		}
+		return count;
+	}
+
+	private Set<Integer> readyWorkersOf ( int activityId ) {
+		Set<Integer> set = readyWorkers.get(activityId);
+		if ( set == null ) {
+			Set<Integer> newSet = newSet();
+			set = readyWorkers.putIfAbsent(activityId, newSet);
+			if ( set == null ) set = newSet;
+		}
+		return set;
+	}
+
+	private static <T> Set<T> newSet () {
+		return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+	}
+}
@@ -6,10 +6,12 @@ public class Execution implements java.io.Serializable , Cloneable {
 	
 	private static final long serialVersionUID = 8850777939592004595L;
 	
-	private int id;
+	private long id;
 	private String stdin;
 	private String stdout;
 	private String stderr;
+	private boolean stdoutTruncated;
+	private boolean stderrTruncated;
 	private int activityId;
 	private String activityName;
 	private String status;
@@ -21,10 +23,12 @@ public class Execution implements java.io.Serializable , Cloneable {
 	public Execution () {}
 	
 	public Execution (JsonObject json) {
-		if (json.get("id") != null) id = json.get("id").asInt();
+		if (json.get("id") != null) id = json.get("id").asLong();
 		if (json.get("stdin") != null) stdin = json.get("stdin").asString();
 		if (json.get("stdout") != null) stdout = json.get("stdout").asString();
 		if (json.get("stderr") != null) stderr = json.get("stderr").asString();
+		if (json.get("stdoutTruncated") != null) stdoutTruncated = json.get("stdoutTruncated").asBoolean();
+		if (json.get("stderrTruncated") != null) stderrTruncated = json.get("stderrTruncated").asBoolean();
 		if (json.get("status") != null) status = json.get("status").asString();
 		if (json.get("workerIP") != null) workerIP = json.get("workerIP").asString();
 		if (json.get("error") != null) error = json.get("error").asString();
@@ -41,6 +45,8 @@ public class Execution implements java.io.Serializable , Cloneable {
 		if ( stdin != null ) json.add("stdin", stdin);
 		if ( stdout != null ) json.add("stdout", stdout);
 		if ( stderr != null ) json.add("stderr", stderr);
+		if ( stdoutTruncated ) json.add("stdoutTruncated", true);
+		if ( stderrTruncated ) json.add("stderrTruncated", true);
 		if ( status != null ) json.add("status", status);
 		if ( error != null ) json.add("error", error);
 		//if ( workerIP != null ) json.add("workerIP", workerIP);    We don't send this in the json messages so the client doesn't receive this private IPs
@@ -61,10 +67,10 @@ public class Execution implements java.io.Serializable , Cloneable {
          }
      }
 	
-	public int getId() {
+	public long getId() {
 		return id;
 	}
-	public void setId(int id) {
+	public void setId(long id) {
 		this.id = id;
 	}
 	public String getError() {
@@ -110,6 +116,30 @@ public class Execution implements java.io.Serializable , Cloneable {
 		this.stderr = stderr;
 	}
 
+	/**
+	 * True if the standard output is only the beginning of what the execution wrote
+	 * @return
+	 */
+	public boolean isStdoutTruncated() {
+		return stdoutTruncated;
+	}
+
+	public void setStdoutTruncated(boolean stdoutTruncated) {
+		this.stdoutTruncated = stdoutTruncated;
+	}
+
+	/**
+	 * True if the standard error is only the beginning of what the execution wrote
+	 * @return
+	 */
+	public boolean isStderrTruncated() {
+		return stderrTruncated;
+	}
+
+	public void setStderrTruncated(boolean stderrTruncated) {
+		this.stderrTruncated = stderrTruncated;
+	}
+
 	public String getStatus() {
 		return status;
 	}
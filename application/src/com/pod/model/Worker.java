@@ -7,7 +7,7 @@ import com.eclipsesource.json.JsonObject;
 /**
  * Represents a worker object
  */
-public class Worker implements java.io.Serializable {
+public class Worker implements java.io.Serializable , Cloneable {
 	
 	private static final long serialVersionUID = -5174950454384771612L;
 	private int id;
@@ -18,6 +18,18 @@ public class Worker implements java.io.Serializable {
 	private boolean isManager;
 	private Date lastTimeWorked;
 	private Date lastTimeAlive;
+	private int slots = 1;       // number of executions that the worker can run at the same time
+	private int busySlots;       // number of executions that the worker is running
+	
+	@Override
+	public Worker clone(){
+		try {
+			return (Worker) super.clone();
+		} catch (CloneNotSupportedException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 	
 	public int getId() {
 		return id;
@@ -48,6 +60,8 @@ public class Worker implements java.io.Serializable {
 		if ( lastTimeWorked != null ) json.add("lastTimeWorked", lastTimeWorked.getTime());
 		if ( lastTimeAlive != null ) json.add("lastTimeAlive", lastTimeAlive.getTime());
 		json.add("isManager", isManager);
+		json.add("slots", slots);
+		json.add("busySlots", busySlots);
 		return json;
 	}
 	public String getInstanceId() {
@@ -80,4 +94,23 @@ public class Worker implements java.io.Serializable {
 	public void setLastTimeAlive(Date lastTimeAlive) {
 		this.lastTimeAlive = lastTimeAlive;
 	}
+	public int getSlots() {
+		return slots;
+	}
+	public void setSlots(int slots) {
+		this.slots = slots;
+	}
+	public int getBusySlots() {
+		return busySlots;
+	}
+	public void setBusySlots(int busySlots) {
+		this.busySlots = busySlots;
+	}
+	/**
+	 * Returns the number of executions that can still be sent to this worker
+	 * @return
+	 */
+	public int getFreeSlots() {
+		return Math.max( 0, slots - busySlots );
+	}
 }
@@ -0,0 +1,109 @@
+package com.pod.worker;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import main.resources.PodLogger;
+
+import com.pod.listeners.ServerProperties;
+
+/**
+ * Schedules the installations and uninstallations of activities in this worker
+ *
+ * They run in a bounded pool of threads, so independent activities are installed in parallel, and at the same time
+ * as the executions of the activities already installed. Each installer reports its activity to the manager when it ends,
+ * and the manager sends executions of an activity only to the workers that reported it installed
+ *
+ * The operations on the same activity run one after another, in the order they were requested
+ */
+public class ActivityInstallationScheduler {
+
+	public static PodLogger log = new PodLogger("ActivityInstallationScheduler");
+
+	private static volatile ExecutorService executor;
+
+	// Operations waiting for the one running on the same activity, by activity id
+	// An activity is in the map while it has an operation running
+	private static Map<Integer, LinkedList<ActivityInstaller>> activities = new HashMap<Integer, LinkedList<ActivityInstaller>>();
+
+	/**
+	 * Schedules the (un)installation. It starts as soon as there is a free thread and no other operation on the activity is running
+	 * @param installer
+	 */
+	public static void submit ( ActivityInstaller installer ) {
+
+		int activityId = installer.getActivity().getId();
+		synchronized (activities) {
+			LinkedList<ActivityInstaller> pending = activities.get(activityId);
+			if ( pending != null ) {
+				pending.add(installer);
+				return;
+			}
+			activities.put(activityId, new LinkedList<ActivityInstaller>());
+		}
+		start(installer);
+	}
+
+	private static void start ( final ActivityInstaller installer ) {
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				try {
+					installer.run();
+				} catch (RuntimeException e) {
+					log.e("Error (un)installing activity "+installer.getActivity().getName()+": "+e.toString());
+				} finally {
+					next( installer.getActivity().getId() );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts the next operation waiting on the activity, if any
+	 * @param activityId
+	 */
+	private static void next ( int activityId ) {
+
+		ActivityInstaller installer;
+		synchronized (activities) {
+			LinkedList<ActivityInstaller> pending = activities.get(activityId);
+			installer = pending == null ? null : pending.poll();
+			if ( installer == null ) {
+				activities.remove(activityId);
+				return;
+			}
+		}
+		start(installer);
+	}
+
+	/**
+	 * Returns the pool of threads of the installers, creating it the first time
+	 * @return
+	 */
+	private static ExecutorService getExecutor () {
+
+		if ( executor == null ) {
+			synchronized (ActivityInstallationScheduler.class) {
+				if ( executor == null ) {
+					int threads = ServerProperties.INSTALLATION_THREADS;
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "ActivityInstaller");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+				}
+			}
+		}
+		return executor;
+	}
+}
@@ -1,7 +1,7 @@
 package com.pod.worker;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,6 +9,7 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.Charset;
 
 import main.resources.PodLogger;
 
@@ -23,6 +24,9 @@ import com.pod.model.Execution;
  * This class is a runnable that performs the (un)installation of activities
  * The activity to handle is given in the constructor
  * If the purpose of the runnable is performing an uninstallation, it must be specified through the uninstall flag
+ * The installers are run by the ActivityInstallationScheduler, at the same time as the executions
+ * 
+ * Installed activities are kept as bundles in the ArtifactStore, so they can be installed again without running the script
  * 
  * After the (un)installation, a message will be sent to the manager of this worker informing about the result
  */
@@ -30,6 +34,9 @@ public class ActivityInstaller implements Runnable {
 	
 	public static PodLogger log = new PodLogger("ActivityInstaller");
 	
+	// Time between checks of the executions running while the activity is uninstalled, in milliseconds
+	private static final long EXECUTIONS_WAIT_INTERVAL = 500;
+	
 	private Activity activity;
 	private boolean uninstall;
 	private String errorDescription;
@@ -46,13 +53,16 @@ public class ActivityInstaller implements Runnable {
 		this.errorDescription = "";
 	}
 	
+	public Activity getActivity() {
+		return activity;
+	}
+	
 	public void setUninstall (boolean uninstall) {
 		this.uninstall = uninstall;
 	}
 
 	@Override
 	public void run() {
-		ExecutionPerformer.setExecutionInProcess(true);
 		
 		// Logging
 			if ( ! uninstall ) log.i("Worker: installing activity "+activity.getName());
@@ -69,7 +79,7 @@ public class ActivityInstaller implements Runnable {
 		
 		// If the installation was unsuccessful, we delete every files that were possibly downloaded in order be as if it didn't happen
 		if ( !success && !uninstall ) {
-			delete( new File ("/home/pod/app/"+activity.getName()) );
+			delete( new File (ServerProperties.getAppDirectory()+"/"+activity.getName()) );
 		}
 		
 		// Logging
@@ -95,19 +105,6 @@ public class ActivityInstaller implements Runnable {
 			message.add("status", "uninstalled");
 		
 		
-		// Now we check if there are pending INSTALLATIONS
-		// In case there aren't, we do nothing
-		// In case there are, we start processing it and send the manager a flag indicating that we don't want a new execution right away
-		ActivityInstallationQueue aiqueue = new ActivityInstallationQueue();
-		if ( !aiqueue.isEmpty() ) {
-			
-			message.add("executionChaining", false);
-			
-			// Start installer execution in a new thread
-			Activity newActivity = aiqueue.pull();
-			new Thread ( new ActivityInstaller(newActivity, aiqueue.pullFlag(newActivity.getId())) ).start();
-		}
-		
 		sender.setMessage(message);
 		sender.setDestinationIP( ServerProperties.getManagerLocalIp() );
 		sender.setDestinationRole("manager");
@@ -116,37 +113,51 @@ public class ActivityInstaller implements Runnable {
 			response = sender.send();
 		} catch (IOException e) {
 			e.printStackTrace();
+			return;
 		}
 		
 		JsonObject jsonResponse = JsonObject.readFrom(response);
 		
 		// In case there is a new execution to perform
-		if ( jsonResponse.get("action").asInt() == Action.PERFORM_EXECUTION.getId() ) {
+		if ( jsonResponse.get("action") != null && jsonResponse.get("action").asInt() == Action.PERFORM_EXECUTION.getId() ) {
 			
 			Execution newExecution = new Execution (jsonResponse.get("execution").asObject());
 			
 			// Launch new thread to perform the execution, so this current thread will end
-			new Thread ( new ExecutionPerformer(newExecution) ).start();
-		}
-		
-		
-		// If there is no other execution to perform, we change the status of the worker
-		// This might happen because truly there are no pending executions, or because the executionChaining parameter was sent
-		else {
-			ExecutionPerformer.setExecutionInProcess(false);
+			ExecutionPerformer.start(newExecution);
 		}
 	}
 	
 	/**
 	 * Performs the installation using the activity information that must have been set previously
+	 * If there is a bundle of the activity in this worker or in the manager, it's extracted instead of running the installation script
 	 * @return true if the installation was completed, or false otherwise
 	 */
 	private boolean install () {
 		
+		File appDirectory = new File (ServerProperties.getAppDirectory()+"/"+activity.getName());
+		ArtifactStore store = new ArtifactStore();
+		
+		// Bundle installed before in this worker, or uploaded to the manager by another worker
+		String hash = store.getActivityArtifact( activity.getId() );
+		if ( store.getBundle(hash) == null )
+			hash = store.fetch( activity.getId() );
+		
+		if ( hash != null ) {
+			if ( store.unpack(hash, appDirectory) && checkExecutionScript(appDirectory) ) {
+				log.i("Worker: activity "+activity.getName()+" installed from bundle "+hash);
+				return true;
+			}
+			
+			// If the bundle doesn't work, the installation script is run
+			delete( appDirectory );
+			errorDescription = "";
+		}
+		
 		// Download the installation script
-		String commands = null;
+		byte[] script = null;
 		try {
-			commands = downloadTextFromUrl( activity.getInstallationScriptLocation() );
+			script = downloadFromUrl( activity.getInstallationScriptLocation() );
 		} catch (MalformedURLException e1) {
 			e1.printStackTrace();
 			errorDescription = "Unable to install, the given installation script URL is malformed";
@@ -157,11 +168,25 @@ public class ActivityInstaller implements Runnable {
 			return false;
 		}
 		
+		// Another activity with the same script may have been installed already
+		String scriptHash = ArtifactStore.hash(script);
+		hash = store.getScriptArtifact(scriptHash);
+		if ( store.unpack(hash, appDirectory) ) {
+			if ( checkExecutionScript(appDirectory) ) {
+				store.setActivityArtifact( activity.getId(), hash );
+				store.publish( activity.getId(), hash );
+				log.i("Worker: activity "+activity.getName()+" installed from bundle "+hash);
+				return true;
+			}
+			delete( appDirectory );
+			errorDescription = "";
+		}
+		
 		// Prepare commands
 		// This way, the process builder accepts all this file as an argument for the main command bash
 		
-		commands = commands.replace("\r", "")             // Remove carriage return
-						   .replaceAll("^null", "")       // Remove possible initial null
+		String commands = new String(script, Charset.forName("UTF-8"))
+						   .replace("\r", "")             // Remove carriage return
 						   .replace("\n", ";")            // Replace \n for ; 
 						   .replaceAll("#[^;]*", "")      // Remove comments
 						   .replaceAll(";{2,}", ";")      // Replace sequences of two or more semicolons for a single one
@@ -170,9 +195,7 @@ public class ActivityInstaller implements Runnable {
 		
 
 		// Create directory for app
-		File appDirectory = new File ("/home/pod/app/"+activity.getName());
-		
-		if ( !appDirectory.mkdirs() ) {
+		if ( !appDirectory.isDirectory() && !appDirectory.mkdirs() ) {
 			log.e("Directory for app couldn't be created: " + appDirectory.getPath());
 			errorDescription = "Unable to install, coudln't create space for the app in the file system";
 			return false;
@@ -232,8 +255,28 @@ public class ActivityInstaller implements Runnable {
 			return false;
 		}
 		
-		// Now we must verify if the code in the folder contains the execution script
-		// This script is called main.sh
+		if ( !checkExecutionScript(appDirectory) )
+			return false;
+		
+		// The app directory is kept in the store, and in the manager for the workers that install it later
+		hash = store.pack(appDirectory);
+		if ( hash != null ) {
+			store.setActivityArtifact( activity.getId(), hash );
+			store.setScriptArtifact( scriptHash, hash );
+			store.publish( activity.getId(), hash );
+		}
+		
+		// At this point, everything went well!
+		return true;
+	}
+	
+	/**
+	 * Verifies that the installed app contains the execution script, and prepares it to be run
+	 * This script is called main.sh
+	 * @param appDirectory
+	 * @return true if the execution script is ready, or false otherwise, with the error description set
+	 */
+	private boolean checkExecutionScript ( File appDirectory ) {
 		
 		File executionScript = new File( appDirectory.getPath() + "/main.sh");
 		
@@ -256,15 +299,17 @@ public class ActivityInstaller implements Runnable {
 		// In that case, the newlines are represented by \r\n instead of \n
 		// This is a problem for executing scripts in the system
 		// So we must change that for main.sh in case it comes from Windows
+		// It's waited for, so the bundle has the converted script
 		try {
-			new ProcessBuilder("dos2unix", appDirectory.getPath() + "/main.sh").start();
+			new ProcessBuilder("dos2unix", appDirectory.getPath() + "/main.sh").start().waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (IOException e) {
 			errorDescription = "Unable to install, problem using dos2unix to modify encoding of main executable";
 			e.printStackTrace();
 			return false;
 		}
 		
-		// At this point, everything went well!
 		return true;
 	}
 	
@@ -275,51 +320,78 @@ public class ActivityInstaller implements Runnable {
 	 */
 	private boolean uninstall() {
 		
+		// The files can't be deleted while the activity is running
+		waitForExecutions();
+		
+		// The bundle isn't needed anymore
+		new ArtifactStore().remove( activity.getId() );
+		
 		// If the app isn't installed, we return true to the uninstallation request
-		if ( !new File ("/home/pod/app/"+activity.getName()).exists() )
+		if ( !new File (ServerProperties.getAppDirectory()+"/"+activity.getName()).exists() )
 			return true;
 		
-		boolean deleted = delete( new File ("/home/pod/app/"+activity.getName()) );
+		boolean deleted = delete( new File (ServerProperties.getAppDirectory()+"/"+activity.getName()) );
 		if ( !deleted )
 			errorDescription = "Unable to uninstall, error deleting project files";
 		return deleted;
 	}
 	
 	/**
-	 * Method to download a text file and place the contents into a string
-	 * http://stackoverflow.com/questions/5152450/downloading-a-text-file-from-a-website
+	 * Drops the executions of the activity assigned in advance and waits until the ones running end
+	 * The dropped executions are reported with an error, without releasing a slot, since they didn't have one
+	 */
+	private void waitForExecutions () {
+		
+		ExecutionPrefetchQueue prefetchQueue = new ExecutionPrefetchQueue();
+		while ( true ) {
+			
+			// Dropped every time, because a performer that ends could start one of them in its slot
+			for ( Execution execution : prefetchQueue.removeActivity( activity.getId() ) ) {
+				JsonObject executionJson = new JsonObject().add("id", execution.getId()).add("status", "error")
+						.add("errorDescription", "The activity was uninstalled before the execution started");
+				ExecutionReporter.report( executionJson, true, true );
+			}
+			
+			boolean running = false;
+			for ( ExecutionPerformer performer : ExecutionPerformer.getPerformers() )
+				if ( performer.getExecution().getActivityId() == activity.getId() )
+					running = true;
+			if ( !running )
+				return;
+			
+			try {
+				Thread.sleep(EXECUTIONS_WAIT_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Downloads a file and returns its contents
 	 * @param url
 	 * @return
 	 * @throws MalformedURLException
 	 * @throws IOException
 	 */
-	private String downloadTextFromUrl( String url ) throws MalformedURLException, IOException
-	{  
-	    String strFileContents = null;
-
-        String webURL = url;
-        URL urlObject = new URL(webURL);
-
-        /* Open a connection to that URL. */
-        URLConnection ucon = urlObject.openConnection();
-
-        /*
-         * Define InputStreams to read from the URLConnection.
-         */
-        InputStream is = ucon.getInputStream();
-        BufferedInputStream bis = new BufferedInputStream(is);
-
-        //create a byte array
-        byte[] contents = new byte[1024];
-
-        int bytesRead=0;
-
-        while( (bytesRead = bis.read(contents)) != -1){
-
-            strFileContents += new String(contents, 0, bytesRead);
-        }
-
-	    return strFileContents;        
+	private byte[] downloadFromUrl( String url ) throws MalformedURLException, IOException {
+		
+		URLConnection connection = new URL(url).openConnection();
+		connection.setConnectTimeout( ServerProperties.getHttpConnectTimeout() );
+		connection.setReadTimeout( ServerProperties.getHttpReadTimeout() );
+		
+		InputStream is = connection.getInputStream();
+		try {
+			ByteArrayOutputStream contents = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8*1024];
+			int bytesRead;
+			while ( (bytesRead = is.read(buffer)) != -1 )
+				contents.write(buffer, 0, bytesRead);
+			return contents.toByteArray();
+		} finally {
+			is.close();
+		}
 	}
 	
 	private boolean delete(File f) {
@@ -0,0 +1,447 @@
+package com.pod.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import main.resources.PodLogger;
+
+import com.pod.interaction.HttpSender;
+import com.pod.listeners.ServerProperties;
+
+/**
+ * Local store of installed activities, so an activity can be installed again without running its installation script
+ *
+ * Every bundle is a tar.gz of the app directory as the installation script left it, named after the SHA-256 hash of its own bytes
+ * The hash is checked every time a bundle comes from another server, so a bundle can't be replaced by other contents
+ * The store also records which bundle belongs to each activity, and which one was made from each installation script,
+ * so activities with the same script share the bundle
+ *
+ * The manager has its own store with the bundles that the workers upload after installing (see HttpArtifactServlet),
+ * so a new worker downloads the bundle in one request instead of running the script
+ * When the manager and the worker are the same machine, they share the store
+ */
+public class ArtifactStore {
+
+	public static PodLogger log = new PodLogger("ArtifactStore");
+
+	// Header of the bundle responses with the hash of the bundle
+	public static final String HASH_HEADER = "X-Artifact-Hash";
+
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	// Held while the bundle of an activity is checked and recorded, so the first one recorded is never replaced
+	private static final Object referencesLock = new Object();
+
+	private File directory;
+
+	public ArtifactStore () {
+		directory = new File(ServerProperties.getArtifactDirectory());
+		if ( !directory.exists() && !directory.mkdirs() )
+			log.e("Directory for artifacts couldn't be created: " + directory.getPath());
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the given content in hexadecimal
+	 * @param content
+	 * @return
+	 */
+	public static String hash ( byte[] content ) {
+		MessageDigest digest = newDigest();
+		digest.update(content);
+		return toHex(digest);
+	}
+
+	/**
+	 * Returns the SHA-256 hash of the contents of the given file in hexadecimal
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static String hash ( File file ) throws IOException {
+		MessageDigest digest = newDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64*1024];
+			int read;
+			while ( (read = in.read(buffer)) != -1 )
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return toHex(digest);
+	}
+
+	/**
+	 * Returns true if the given string can be the name of a bundle
+	 * @param hash
+	 * @return
+	 */
+	public static boolean isHash ( String hash ) {
+		return hash != null && HASH_PATTERN.matcher(hash).matches();
+	}
+
+	/**
+	 * Returns the bundle with the given hash
+	 * @param hash
+	 * @return the file, or null if it isn't in the store
+	 */
+	public File getBundle ( String hash ) {
+		if ( !isHash(hash) )
+			return null;
+		File bundle = new File(directory, hash+".tar.gz");
+		return bundle.isFile() ? bundle : null;
+	}
+
+	/**
+	 * Returns the hash of the bundle of the given activity
+	 * @param activityId
+	 * @return the hash, or null if the activity doesn't have a bundle in the store
+	 */
+	public String getActivityArtifact ( int activityId ) {
+		return getReference( "activity-"+activityId );
+	}
+
+	/**
+	 * Records the bundle of the given activity
+	 * @param activityId
+	 * @param hash
+	 */
+	public void setActivityArtifact ( int activityId , String hash ) {
+		setReference( "activity-"+activityId, hash );
+	}
+
+	/**
+	 * Records the bundle of the given activity, only if it doesn't have one already
+	 * @param activityId
+	 * @param hash
+	 * @return true if the activity has this bundle now
+	 */
+	public boolean setActivityArtifactIfAbsent ( int activityId , String hash ) {
+		synchronized (referencesLock) {
+			String current = getActivityArtifact(activityId);
+			if ( current != null )
+				return current.equals(hash);
+			setActivityArtifact(activityId, hash);
+			return hash.equals( getActivityArtifact(activityId) );
+		}
+	}
+
+	/**
+	 * Returns the hash of the bundle made by the installation script with the given hash
+	 * @param scriptHash
+	 * @return the hash, or null if there isn't such a bundle in the store
+	 */
+	public String getScriptArtifact ( String scriptHash ) {
+		return isHash(scriptHash) ? getReference( "script-"+scriptHash ) : null;
+	}
+
+	/**
+	 * Records the bundle made by the installation script with the given hash
+	 * @param scriptHash
+	 * @param hash
+	 */
+	public void setScriptArtifact ( String scriptHash , String hash ) {
+		if ( isHash(scriptHash) )
+			setReference( "script-"+scriptHash, hash );
+	}
+
+	/**
+	 * Removes the bundle of the given activity, unless another activity uses it
+	 * The installation scripts that made the bundle are forgotten with it
+	 * @param activityId
+	 */
+	public void remove ( int activityId ) {
+
+		String hash = getActivityArtifact(activityId);
+		new File(directory, "activity-"+activityId).delete();
+		if ( hash == null )
+			return;
+
+		File[] references = directory.listFiles();
+		if ( references == null )
+			return;
+
+		for ( File reference : references )
+			if ( reference.getName().startsWith("activity-") && !reference.getName().endsWith(".tmp")
+					&& hash.equals( getReference(reference.getName()) ) )
+				return;
+
+		for ( File reference : references )
+			if ( reference.getName().startsWith("script-") && !reference.getName().endsWith(".tmp")
+					&& hash.equals( getReference(reference.getName()) ) )
+				reference.delete();
+
+		new File(directory, hash+".tar.gz").delete();
+	}
+
+	/**
+	 * Creates a bundle with the contents of the given app directory
+	 * @param appDirectory
+	 * @return the hash of the bundle, or null if it couldn't be made
+	 */
+	public String pack ( File appDirectory ) {
+
+		// The bundle is written apart and moved when it's complete, so nobody reads it half written
+		File temporary = null;
+		try {
+			temporary = File.createTempFile("bundle", ".tmp", directory);
+			if ( run(new ProcessBuilder("tar", "-czf", temporary.getPath(), "-C", appDirectory.getPath(), ".")) ) {
+				String hash = hash(temporary);
+				if ( store(hash, temporary) )
+					return hash;
+			}
+		} catch (IOException e) {
+			log.e("Error creating the bundle of "+appDirectory.getPath()+": "+e.toString());
+		}
+		if ( temporary != null )
+			temporary.delete();
+		return null;
+	}
+
+	/**
+	 * Extracts the bundle in the given app directory
+	 * @param hash
+	 * @param appDirectory
+	 * @return true if the bundle was extracted
+	 */
+	public boolean unpack ( String hash , File appDirectory ) {
+
+		File bundle = getBundle(hash);
+		if ( bundle == null )
+			return false;
+
+		if ( !appDirectory.exists() && !appDirectory.mkdirs() ) {
+			log.e("Directory for app couldn't be created: " + appDirectory.getPath());
+			return false;
+		}
+
+		try {
+			return run(new ProcessBuilder("tar", "-xzf", bundle.getPath(), "-C", appDirectory.getPath()));
+		} catch (IOException e) {
+			log.e("Error extracting the bundle "+hash+": "+e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Writes a bundle received from another server into the store
+	 * The contents must have the given hash and can't be bigger than the given size, otherwise they're discarded
+	 * @param hash
+	 * @param in contents of the bundle
+	 * @param maxSize in bytes
+	 * @return true if the bundle is in the store
+	 * @throws IOException
+	 */
+	public boolean write ( String hash , InputStream in , long maxSize ) throws IOException {
+
+		if ( !isHash(hash) )
+			return false;
+
+		MessageDigest digest = newDigest();
+		long size = 0;
+		File temporary = File.createTempFile("bundle", ".tmp", directory);
+		try {
+			OutputStream out = new FileOutputStream(temporary);
+			try {
+				byte[] buffer = new byte[64*1024];
+				int read;
+				while ( (read = in.read(buffer)) != -1 ) {
+					size += read;
+					if ( size > maxSize ) {
+						log.e("Bundle "+hash+" discarded, it's bigger than "+maxSize+" bytes");
+						temporary.delete();
+						return false;
+					}
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		}
+
+		if ( !hash.equals( toHex(digest) ) ) {
+			log.e("Bundle "+hash+" discarded, its contents have another hash");
+			temporary.delete();
+			return false;
+		}
+		return store(hash, temporary);
+	}
+
+	/**
+	 * Downloads the bundle of the given activity from the manager
+	 * @param activityId
+	 * @return the hash of the bundle, or null if the manager doesn't have it
+	 */
+	public String fetch ( int activityId ) {
+
+		// The manager in this same machine uses this store
+		if ( isManagerStore() )
+			return null;
+
+		File temporary = null;
+		try {
+			temporary = File.createTempFile("download", ".tmp", directory);
+			Map<String, String> headers = HttpSender.download( ServerProperties.getManagerLocalIp(), "artifacts?activity="+activityId, temporary );
+			String hash = headers == null ? null : headers.get(HASH_HEADER);
+			if ( isHash(hash) && !hash.equals( hash(temporary) ) )
+				log.e("Bundle of activity "+activityId+" discarded, its contents don't have the hash "+hash);
+			else if ( isHash(hash) && store(hash, temporary) ) {
+				setActivityArtifact(activityId, hash);
+				log.i("Bundle "+hash+" of activity "+activityId+" downloaded from the manager");
+				return hash;
+			}
+		} catch (IOException e) {
+			log.e("Error downloading the bundle of activity "+activityId+": "+e.toString());
+		}
+		if ( temporary != null )
+			temporary.delete();
+		return null;
+	}
+
+	/**
+	 * Uploads the bundle of the given activity to the manager in another thread, so other workers can download it
+	 * @param activityId
+	 * @param hash
+	 */
+	public void publish ( final int activityId , final String hash ) {
+
+		final File bundle = getBundle(hash);
+		if ( bundle == null || isManagerStore() )
+			return;
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					HttpSender.upload( ServerProperties.getManagerLocalIp(), "artifacts?activity="+activityId+"&hash="+hash, bundle );
+				} catch (IOException e) {
+					log.e("Error uploading the bundle of activity "+activityId+": "+e.toString());
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Moves a complete bundle to its place in the store
+	 * @param hash
+	 * @param temporary
+	 * @return true if the bundle is in the store
+	 */
+	private boolean store ( String hash , File temporary ) {
+
+		File bundle = new File(directory, hash+".tar.gz");
+		if ( temporary.renameTo(bundle) )
+			return true;
+
+		// Someone else stored it meanwhile
+		temporary.delete();
+		return bundle.isFile();
+	}
+
+	/**
+	 * Reads a reference file of the store
+	 * @param name
+	 * @return the hash of the bundle that it references, or null if there isn't such reference
+	 */
+	private String getReference ( String name ) {
+
+		File reference = new File(directory, name);
+		if ( !reference.isFile() )
+			return null;
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(reference), "UTF-8"));
+			try {
+				String hash = reader.readLine();
+				return isHash(hash) ? hash : null;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.e("Error reading the reference "+name+": "+e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a reference file of the store, replacing it if it existed
+	 * @param name
+	 * @param hash
+	 */
+	private void setReference ( String name , String hash ) {
+		try {
+			File temporary = File.createTempFile(name, ".tmp", directory);
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+			try {
+				writer.write(hash);
+			} finally {
+				writer.close();
+			}
+			if ( !temporary.renameTo(new File(directory, name)) ) {
+				temporary.delete();
+				log.e("The reference "+name+" couldn't be recorded");
+			}
+		} catch (IOException e) {
+			log.e("Error recording the reference "+name+": "+e.toString());
+		}
+	}
+
+	private static MessageDigest newDigest () {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex ( MessageDigest digest ) {
+		StringBuilder hex = new StringBuilder();
+		for ( byte b : digest.digest() )
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	private static boolean isManagerStore () {
+		return ServerProperties.getManagerLocalIp().equals( ServerProperties.getLocalIp() );
+	}
+
+	/**
+	 * Runs the given command and waits for it
+	 * @param processBuilder
+	 * @return true if the command ended successfully
+	 * @throws IOException
+	 */
+	private static boolean run ( ProcessBuilder processBuilder ) throws IOException {
+
+		processBuilder.redirectErrorStream(true);
+		Process process = processBuilder.start();
+
+		// The output is read so the process doesn't block
+		InputStream is = process.getInputStream();
+		byte[] buffer = new byte[1024];
+		while ( is.read(buffer) != -1 );
+		is.close();
+
+		try {
+			return process.waitFor() == 0;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -1,17 +1,15 @@
 package com.pod.worker;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import main.resources.PodLogger;
 
 import com.eclipsesource.json.JsonObject;
-import com.pod.interaction.Action;
-import com.pod.interaction.HttpSender;
 import com.pod.listeners.ServerProperties;
 import com.pod.model.Execution;
 
@@ -19,229 +17,342 @@ import com.pod.model.Execution;
  * This class is a runnable that performs the executions
  * The execution to handle is given in the constructor
  *
+ * A worker can run as many performers at the same time as execution slots it has (see ServerProperties.getExecutionSlots)
+ * Every performer keeps its own process and output, and the running ones are registered by execution id
+ * so progress and termination requests can address a specific execution
+ * Performers are started through start(Execution), so an execution the manager sends again while it's running,
+ * or shortly after it ended, isn't performed twice
+ *
  * After starting the process, a message will be sent to the manager of this worker informing about it
  * When the execution is done, the worker will send a message to the manager with both standard output and standard error
+ * If the manager assigned executions ahead (see ExecutionPrefetchQueue), the next one starts in the slot before sending that message
+ * While it's running, the output is sent to the manager in chunks by the OutputPushTask
  */
 public class ExecutionPerformer implements Runnable {
-	
+
 	public static PodLogger log = new PodLogger("ExecutionPerformer");
-	
+
+	// Performers currently running in this worker, by execution id
+	private static ConcurrentHashMap<Long, ExecutionPerformer> performers = new ConcurrentHashMap<Long, ExecutionPerformer>();
+
+	// Executions that ended recently, with the time they ended. A late resend of one of them is ignored
+	private static Map<Long, Long> completed = new ConcurrentHashMap<Long, Long>();
+
+	// Milliseconds an ended execution is remembered
+	private static final long COMPLETED_RETENTION = 10*60*1000;
+
 	// This variable has the process object, useful to be able to destroy it from another thread
-	private static Process process;
-	
-	// This is a flag to indicate if the ExecutionPerformer is performing now an execution
-	private static boolean executionInProcess;
-	
+	private volatile Process process;
+
 	// Terminated flag. Used to give the final result
-	private static boolean terminated;
-	
-	// Current execution being handled
-	private static Execution execution;
-	
-	// stdout and stderr of the current execution being handled
+	// Set and checked holding the lock of this performer, so a process isn't started after it's terminated
+	private volatile boolean terminated;
+
+	// Execution being handled
+	private Execution execution;
+
+	// stdout and stderr of the execution being handled
 	// Useful to retrieve the progress of the execution before it's finished
-	private static String stdout;
-	private static String stderr;
-	
-	public ExecutionPerformer ( Execution newExecution ) {
+	private volatile OutputCapture stdout;
+	private volatile OutputCapture stderr;
+
+	// Bytes of each output already sent to the manager by the OutputPushTask
+	private volatile long pushedStdoutOffset;
+	private volatile long pushedStderrOffset;
+
+	private ExecutionPerformer ( Execution newExecution ) {
 		execution = newExecution;
-		stdout = "";
-		stderr = "";
 	}
-	
+
+	/**
+	 * Performs the given execution in a new thread
+	 * The performer is registered from the beginning, so progress requests arriving before the thread starts can find it
+	 * @param execution
+	 * @return false if the execution is already running or ended recently in this worker, so it isn't performed again
+	 */
+	public static boolean start ( Execution execution ) {
+
+		if ( completed.containsKey(execution.getId()) ) {
+			log.i("Worker: execution "+execution.getId()+" already performed, ignored");
+			return false;
+		}
+
+		if ( performers.size() >= ServerProperties.getExecutionSlots() )
+			log.e("Worker: execution "+execution.getId()+" received with all "+ServerProperties.getExecutionSlots()+" execution slots in use");
+
+		ExecutionPerformer performer = new ExecutionPerformer(execution);
+		if ( performers.putIfAbsent(execution.getId(), performer) != null )
+			return false;
+
+		new Thread(performer).start();
+		return true;
+	}
+
 	public void run () {
-		
-		executionInProcess = true;
-		
+
 		// Logging
 			log.i("Worker: starting execution "+execution.getId()+" of activity '"+execution.getActivityName() +"'");
 		// End logging
-		
+
 		// Prepare message in case of error
 		JsonObject message = null;
-		
-		File executableFile = new File ("/home/pod/app/"+execution.getActivityName()+"/main.sh");
-		
+
+		File executableFile = new File (ServerProperties.getAppDirectory()+"/"+execution.getActivityName()+"/main.sh");
+
 		// If the executable file isn't located, it might be because it was deleted or because the activity isn't installed
 		if ( !executableFile.exists() ) {
-			
+
 			message = new JsonObject();
-			
+
 			// We add the execution id to the error response so the manager can identify it
 			JsonObject executionJson = new JsonObject().add("id", execution.getId()).add("status", "error");
-			
-			if ( new File ("/home/pod/app/"+execution.getActivityName() ).exists() )
+
+			if ( new File (ServerProperties.getAppDirectory()+"/"+execution.getActivityName() ).exists() )
 				executionJson.add("errorDescription", "The executable file is missing"); // Add error description to the response
 			else
 				executionJson.add("errorDescription", "The specified activity isn't installed"); // Add error description to the response
-			
+
 			message.add("execution", executionJson);
-			
+
 		}
 		// If the executable file is located
 		else
 			message = execute();
-		
-		
+
+
 		// Logging
 			log.i("Worker: finished execution "+execution.getId()+" of activity '"+execution.getActivityName() +"'");
 		// End logging
-				
-		// Set message action
-		message.add("action", Action.REPORT_EXECUTION.getId());
-		
-		// Now we check if there are pending INSTALLATIONS
-		// In case there aren't, we do nothing
-		// In case there are, we start processing it and send the manager a flag indicating that we don't want a new execution right away
-		ActivityInstallationQueue aiqueue = new ActivityInstallationQueue();
-		if ( !aiqueue.isEmpty() ) {
-			
-			message.add("executionChaining", false);
-			
-			// Start installer execution in a new thread
-			new Thread ( new ActivityInstaller(aiqueue.pull()) ).start();
-		}
-		
-		// Set the public DNS of the worker. If empty, it will mean this same machine
-		HttpSender sender = new HttpSender();
-		sender.setDestinationIP( ServerProperties.getManagerLocalIp() );
-		sender.setDestinationRole("manager");
-		sender.setMessage(message);
-		
-		String response = null;
-		try {
-			response = sender.send();
-		} catch (IOException e) {
-			e.printStackTrace();
-			return;
-		}
-		
-		JsonObject jsonResponse = JsonObject.readFrom(response);
-		
-		// In case there is a new execution to perform
-		if ( jsonResponse.get("action").asInt() == Action.PERFORM_EXECUTION.getId() ) {
-			
-			Execution newExecution = new Execution (jsonResponse.get("execution").asObject());
-			
-			// Launch new thread to perform the execution, so this current thread will end
-			new Thread ( new ExecutionPerformer(newExecution) ).start();
-		}
-		
-		
-		// If there is no other execution to perform, we change the status of the worker
-		// This might happen because truly there are no pending executions, or because the executionChaining parameter was sent
-		else {
-			executionInProcess = false;
-		}
+
+		// The slot is free from now on
+		unregister();
+
+		// The next execution assigned in advance takes the slot right away
+		ExecutionPrefetchQueue prefetchQueue = new ExecutionPrefetchQueue();
+		boolean slotInUse = false;
+		Execution next = prefetchQueue.pull();
+		if ( next != null )
+			slotInUse = start(next);
+
+		// If the slot is free, the manager must know now to give it a new execution
+		// Otherwise the report is sent together with others
+		ExecutionReporter.report( message.get("execution").asObject(), slotInUse, !slotInUse );
 	}
-	
+
 	private JsonObject execute () {
-		
+
+		String appDirectory = ServerProperties.getAppDirectory()+"/"+execution.getActivityName();
+
 		ProcessBuilder processBuilder;
 		if ( execution.getStdin() != null )
-			processBuilder = new ProcessBuilder("/home/pod/app/"+execution.getActivityName()+"/main.sh", execution.getStdin());
+			processBuilder = new ProcessBuilder(appDirectory+"/main.sh", execution.getStdin());
 		else
-			processBuilder = new ProcessBuilder("/home/pod/app/"+execution.getActivityName()+"/main.sh");
-
-		processBuilder.directory(new File ("/home/pod/app/"+execution.getActivityName()));
-
-		InputStream is = null;
-		InputStreamReader isr = null;
-		BufferedReader br = null;
-		String line = null;
-		
-		// Moved to the manager
-		// This info would be useful if we charge for usage to the client
-		//execution.setStartTime(new Date().getTime());
-		
+			processBuilder = new ProcessBuilder(appDirectory+"/main.sh");
+
+		processBuilder.directory(new File (appDirectory));
+
+		// The time is taken here and not when the manager assigns the execution, because an execution assigned in advance
+		// can wait in this worker before it starts
+		execution.setStartTime(new Date().getTime());
+
+		// Prepare message to send to manager
+		JsonObject message = new JsonObject();
+
 		// try catch for IO errors in the process
+		// If the execution was terminated before this point, it isn't run at all
 		try {
-			process = processBuilder.start();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		// Get the output of the process
-		is = process.getInputStream();
-		isr = new InputStreamReader(is);
-		br = new BufferedReader(isr);
-		
-		// try catch for IO output in the process
-		try {
-			while ((line = br.readLine()) != null) {
-				// Every line of standard output
-				//log.i(line);
-				stdout += line + "\n";
+			synchronized (this) {
+				if ( terminated ) {
+					execution.setFinishTime(execution.getStartTime());
+					execution.setStatus("terminated");
+					message.add("execution", execution.toJsonObject());
+					return message;
+				}
+				process = processBuilder.start();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			execution.setStatus("error");
+			message.add("execution", execution.toJsonObject().add("errorDescription", "The execution couldn't be started"));
+			return message;
 		}
-		
-		// Get the error output of the process
-		is = process.getErrorStream();
-		isr = new InputStreamReader(is);
-		br = new BufferedReader(isr);
-		
-		// try catch for IO errors in the process
+
+		// Both outputs are drained at the same time, each one in its own thread
+		// The output that doesn't fit in memory goes to a file in the app directory, if spilling is enabled
+		int bufferSize = ServerProperties.getOutputBufferSize();
+		boolean spill = ServerProperties.isOutputSpill();
+		stdout = new OutputCapture( process.getInputStream(), bufferSize, spill ? new File(appDirectory+"/.execution-"+execution.getId()+".stdout") : null );
+		stderr = new OutputCapture( process.getErrorStream(), bufferSize, spill ? new File(appDirectory+"/.execution-"+execution.getId()+".stderr") : null );
+		new Thread(stdout).start();
+		new Thread(stderr).start();
+
 		try {
-			while ((line = br.readLine()) != null) {
-				// Every line of standard error
-				//log.i(line);
-				stderr += line + "\n";
-			}
-		} catch (IOException e) {
+			stdout.waitFor();
+			stderr.waitFor();
+			process.waitFor();
+		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
-		
-		// Moved to the manager
-		// This info would be useful if we charge for usage to the client
-		//execution.setFinishTime(new Date().getTime());
-		
-		// Prepare message to send to manager
-		JsonObject message = new JsonObject();
-		
-		execution.setStdout(stdout);
-		if ( !stderr.equals("") )
-			execution.setStderr(stderr);
-		
-		if ( terminated ) {
-			execution.setStatus("terminated");
-			terminated = false;
+
+		execution.setFinishTime(new Date().getTime());
+
+		// The report carries at most the size of the buffer of each output. The rest was already pushed to the manager
+		OutputCapture.Chunk stdoutChunk = stdout.read(0);
+		execution.setStdout( stdoutChunk.getText() );
+		execution.setStdoutTruncated( stdoutChunk.getNextOffset() < stdout.getLength() || stdout.isTruncated() );
+		if ( stderr.getLength() > 0 ) {
+			OutputCapture.Chunk stderrChunk = stderr.read(0);
+			execution.setStderr( stderrChunk.getText() );
+			execution.setStderrTruncated( stderrChunk.getNextOffset() < stderr.getLength() || stderr.isTruncated() );
 		}
+
+		// The manager gets the rest of the output before the report, so the clients streaming it have all of it
+		OutputPushTask.pushRest(this);
+
+		// Nobody reads the output after this, so the spill files can be deleted
+		unregister();
+		stdout.close();
+		stderr.close();
+
+		if ( terminated )
+			execution.setStatus("terminated");
 		else
 			execution.setStatus("finished");
-		
+
 		message.add("execution", execution.toJsonObject());
-		
+
 		return message;
 	}
-	
-	public static void terminate () {
-		terminated = true;
-		process.destroy();
+
+	/**
+	 * Terminates the process of this execution, or prevents it from starting
+	 */
+	public void terminate () {
+		Process running;
+		synchronized (this) {
+			terminated = true;
+			running = process;
+		}
+		if ( running != null )
+			running.destroy();
+	}
+
+	/**
+	 * Removes this performer from the running ones, and remembers the execution as ended
+	 * The ones that ended before the retention time are forgotten
+	 */
+	private void unregister () {
+		long now = new Date().getTime();
+		completed.put(execution.getId(), now);
+		performers.remove(execution.getId());
+
+		for ( Map.Entry<Long, Long> entry : completed.entrySet() )
+			if ( now - entry.getValue() > COMPLETED_RETENTION )
+				completed.remove(entry.getKey());
+	}
+
+	/**
+	 * Terminates the running execution with the given id
+	 * @param executionId
+	 * @return false if there wasn't any execution running with that id
+	 */
+	public static boolean terminate ( long executionId ) {
+		ExecutionPerformer performer = performers.get(executionId);
+		if ( performer == null )
+			return false;
+		performer.terminate();
+		return true;
+	}
+
+	/**
+	 * Retrieves the performer of the running execution with the given id
+	 * @param executionId
+	 * @return the performer or null if there isn't any execution running with that id
+	 */
+	public static ExecutionPerformer get ( long executionId ) {
+		return performers.get(executionId);
+	}
+
+	/**
+	 * Returns the performers running at the moment in this worker
+	 * @return
+	 */
+	public static Collection<ExecutionPerformer> getPerformers () {
+		return performers.values();
+	}
+
+	/**
+	 * Returns the number of executions running at the moment in this worker
+	 * @return
+	 */
+	public static int getRunningExecutions () {
+		return performers.size();
+	}
+
+	/**
+	 * Returns the number of execution slots that aren't being used
+	 * @return
+	 */
+	public static int getFreeSlots () {
+		return Math.max( 0, ServerProperties.getExecutionSlots() - performers.size() );
 	}
 
 	public Execution getExecution() {
 		return execution;
 	}
 
-	public static void setExecution(Execution newExecution) {
-		execution = newExecution;
+	public long getPushedStdoutOffset() {
+		return pushedStdoutOffset;
 	}
 
-	public static boolean isExecutionInProcess() {
-		return executionInProcess;
+	public long getPushedStderrOffset() {
+		return pushedStderrOffset;
 	}
 
-	public static void setExecutionInProcess(boolean executionInProcess) {
-		ExecutionPerformer.executionInProcess = executionInProcess;
+	/**
+	 * Records how much output the manager has already received
+	 * @param stdoutOffset in bytes
+	 * @param stderrOffset in bytes
+	 */
+	public synchronized void setPushedOffsets( long stdoutOffset , long stderrOffset ) {
+		// The timer and the final push can both be sending, the offsets never go back
+		pushedStdoutOffset = Math.max( pushedStdoutOffset, stdoutOffset );
+		pushedStderrOffset = Math.max( pushedStderrOffset, stderrOffset );
 	}
-	
-	public static String getStdout(){
-		return stdout;
+
+	/**
+	 * Returns the whole standard output produced so far
+	 * @return
+	 */
+	public String getStdout(){
+		return getStdout(0).getText();
 	}
-	
-	public static String getStderr () {
-		return stderr;
+
+	/**
+	 * Returns the whole standard error produced so far
+	 * @return
+	 */
+	public String getStderr () {
+		return getStderr(0).getText();
+	}
+
+	/**
+	 * Returns the standard output produced after the given offset
+	 * @param offset in bytes
+	 * @return
+	 */
+	public OutputCapture.Chunk getStdout( long offset ){
+		OutputCapture capture = stdout;
+		return capture == null ? new OutputCapture.Chunk(0, new byte[0]) : capture.read(offset);
+	}
+
+	/**
+	 * Returns the standard error produced after the given offset
+	 * @param offset in bytes
+	 * @return
+	 */
+	public OutputCapture.Chunk getStderr( long offset ){
+		OutputCapture capture = stderr;
+		return capture == null ? new OutputCapture.Chunk(0, new byte[0]) : capture.read(offset);
 	}
 }
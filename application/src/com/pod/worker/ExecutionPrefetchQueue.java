@@ -0,0 +1,75 @@
+package com.pod.worker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.pod.model.Execution;
+
+/**
+ * Executions assigned to this worker by the manager that haven't started yet
+ *
+ * The manager sends a few executions ahead with its answer to a REPORT_EXECUTION. When an execution finishes,
+ * the next one is taken from here and started right away in the same slot, without waiting for the manager
+ * In the manager these executions are already 'in progress' in this worker, so they are reclaimed if the worker dies
+ */
+public class ExecutionPrefetchQueue {
+
+	private static Queue<Execution> queue = new ConcurrentLinkedQueue<Execution>();
+
+	public int size() {
+		return queue.size();
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	public void put (Execution execution){
+		queue.add(execution);
+	}
+
+	/**
+	 * Takes the next execution to start
+	 * @return the execution or null if there isn't any
+	 */
+	public Execution pull() {
+		return queue.poll();
+	}
+
+	/**
+	 * Removes the executions of the given activity, so they aren't started
+	 * @param activityId
+	 * @return the executions removed
+	 */
+	public List<Execution> removeActivity ( int activityId ) {
+		List<Execution> removed = new ArrayList<Execution>();
+		Iterator<Execution> iterator = queue.iterator();
+		while ( iterator.hasNext() ) {
+			Execution execution = iterator.next();
+			if ( execution.getActivityId() == activityId ) {
+				iterator.remove();
+				removed.add(execution);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the execution with the given id, so it isn't started
+	 * @param executionId
+	 * @return false if the execution wasn't in the queue
+	 */
+	public boolean remove ( long executionId ) {
+		Iterator<Execution> iterator = queue.iterator();
+		while ( iterator.hasNext() ) {
+			if ( iterator.next().getId() == executionId ) {
+				iterator.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,200 @@
+package com.pod.worker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.resources.PodLogger;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.pod.interaction.Action;
+import com.pod.interaction.HttpSender;
+import com.pod.listeners.ServerProperties;
+import com.pod.model.Execution;
+
+/**
+ * Sends the results of the finished executions to the manager, several of them in one REPORT_EXECUTION message
+ *
+ * A report waits until there are REPORT_BATCH_SIZE of them or REPORT_FLUSH_DELAY has passed, as long as its slot
+ * is busy with an execution assigned in advance. When the slot was left free, or the worker is going to install something,
+ * the reports are sent right away, because the manager has to give the slot new work
+ *
+ * The answer of the manager can contain executions to start in the free slots and executions assigned in advance
+ * The ones assigned in advance start right away if there is a free slot, and the manager is told the slots they took
+ *
+ * Every message has its own reportId. If it can't be sent, the same message is sent again before any other,
+ * so the manager can recognize a message that it already applied and answer it again with the same executions
+ */
+public class ExecutionReporter {
+
+	public static PodLogger log = new PodLogger("ExecutionReporter");
+
+	private static List<JsonObject> pending = new ArrayList<JsonObject>();
+	private static boolean flushScheduled;
+	private static Timer timer = new Timer(true);
+
+	// Message that couldn't be sent, sent again as it is
+	private static JsonObject unsent;
+
+	// Ids of the messages, different after a restart of the worker
+	private static AtomicLong reportIds = new AtomicLong( System.currentTimeMillis() );
+
+	// Held while a message is sent, so only one is sent at a time
+	private static final Object sendLock = new Object();
+
+	// Executions assigned in advance that were started in free slots, not told to the manager yet
+	private static int claimedSlots;
+
+	/**
+	 * Adds the report of a finished execution
+	 * @param execution execution in json format, with its final status and output
+	 * @param slotInUse true if the slot of the execution was taken by an execution assigned in advance
+	 * @param urgent true if the report must be sent now
+	 */
+	public static void report ( JsonObject execution , boolean slotInUse , boolean urgent ) {
+
+		synchronized (ExecutionReporter.class) {
+			pending.add( new JsonObject().add("execution", execution).add("slotInUse", slotInUse) );
+
+			if ( !urgent && pending.size() < ServerProperties.REPORT_BATCH_SIZE ) {
+				if ( !flushScheduled ) {
+					flushScheduled = true;
+					timer.schedule(new TimerTask() {
+						public void run() {
+							flush();
+						}
+					}, ServerProperties.REPORT_FLUSH_DELAY);
+				}
+				return;
+			}
+		}
+
+		flush();
+	}
+
+	/**
+	 * Sends all the pending reports in one message
+	 * If the message can't be sent, it's kept and sent again later
+	 */
+	public static void flush () {
+
+		// Only one message at a time, so the reports arrive in order
+		synchronized (sendLock) {
+
+			while ( true ) {
+
+				JsonObject message;
+				int reports;
+				synchronized (ExecutionReporter.class) {
+					flushScheduled = false;
+					if ( unsent != null )
+						message = unsent;
+					else if ( !pending.isEmpty() || claimedSlots > 0 )
+						message = newMessage();
+					else
+						return;
+					unsent = null;
+					reports = message.get("executions").asArray().size();
+				}
+
+				HttpSender sender = new HttpSender();
+				sender.setDestinationIP( ServerProperties.getManagerLocalIp() );
+				sender.setDestinationRole("manager");
+				sender.setMessage(message);
+
+				String response = null;
+				try {
+					response = sender.send();
+				} catch (IOException e) {
+					log.e("Couldn't send "+reports+" execution reports: "+e.toString());
+					synchronized (ExecutionReporter.class) {
+						unsent = message;
+						if ( !flushScheduled ) {
+							flushScheduled = true;
+							timer.schedule(new TimerTask() {
+								public void run() {
+									flush();
+								}
+							}, ServerProperties.REPORT_RETRY_DELAY);
+						}
+					}
+					return;
+				}
+
+				JsonObject jsonResponse = JsonObject.readFrom(response);
+
+				// New executions for the slots that were released
+				if ( jsonResponse.get("perform") != null ) {
+					for ( JsonValue value : jsonResponse.get("perform").asArray() )
+						ExecutionPerformer.start( new Execution(value.asObject()) );
+				}
+
+				// Executions assigned in advance, started when a slot is released
+				if ( jsonResponse.get("prefetch") != null ) {
+					ExecutionPrefetchQueue prefetchQueue = new ExecutionPrefetchQueue();
+					for ( JsonValue value : jsonResponse.get("prefetch").asArray() )
+						prefetchQueue.put( new Execution(value.asObject()) );
+				}
+
+				// If a slot is free already, they don't wait for an execution to finish
+				startPrefetched();
+
+				// The reports added while this message was retried are sent now, as long as the retry wasn't the only one waiting
+				// The slots taken by executions assigned in advance are told to the manager now, so it doesn't give them other work
+				synchronized (ExecutionReporter.class) {
+					if ( ( pending.isEmpty() || flushScheduled ) && claimedSlots == 0 )
+						return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts executions assigned in advance in the slots that are free
+	 */
+	private static void startPrefetched () {
+
+		ExecutionPrefetchQueue prefetchQueue = new ExecutionPrefetchQueue();
+		while ( ExecutionPerformer.getFreeSlots() > 0 ) {
+			Execution next = prefetchQueue.pull();
+			if ( next == null )
+				return;
+			if ( !ExecutionPerformer.start(next) )
+				continue;
+			synchronized (ExecutionReporter.class) {
+				claimedSlots++;
+			}
+		}
+	}
+
+	/**
+	 * Builds the message with all the pending reports, and empties the list
+	 * Must be called holding the lock of the class
+	 * @return
+	 */
+	private static JsonObject newMessage () {
+
+		JsonArray executions = new JsonArray();
+		for ( JsonObject report : pending )
+			executions.add(report);
+		pending = new ArrayList<JsonObject>();
+
+		JsonObject message = new JsonObject();
+		message.add("action", Action.REPORT_EXECUTION.getId());
+		message.add("reportId", reportIds.incrementAndGet());
+		message.add("executions", executions);
+		if ( claimedSlots > 0 ) {
+			message.add("claimed", claimedSlots);
+			claimedSlots = 0;
+		}
+
+		// Let the manager know how many executions are still waiting here, so it can send more
+		message.add("prefetched", new ExecutionPrefetchQueue().size());
+		return message;
+	}
+}
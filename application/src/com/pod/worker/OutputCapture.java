@@ -0,0 +1,258 @@
+package com.pod.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+import main.resources.PodLogger;
+
+/**
+ * This class is a runnable that drains an output stream of a process (stdout or stderr) into a byte buffer
+ * Each stream of a process has its own capture running in its own thread, so a process filling one pipe never blocks on the other
+ *
+ * The buffer grows as needed up to a maximum size. When it's full, the rest of the output is written to a spill file, if one was given,
+ * or discarded otherwise, marking the capture as truncated
+ *
+ * The captured output can be read incrementally: read(offset) only copies the bytes produced after the given offset,
+ * and never more than the maximum size of the buffer at once, so reading the spill file doesn't load all of it in memory
+ */
+public class OutputCapture implements Runnable {
+
+	public static PodLogger log = new PodLogger("OutputCapture");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int READ_SIZE = 8*1024;
+	private static final int INITIAL_SIZE = 1024;
+
+	private InputStream is;
+	private int maxBufferSize;
+	private File spillFile;
+
+	private byte[] buffer;
+	private int count;            // bytes in the buffer
+	private long length;          // bytes captured in total, buffer plus spill file
+	private boolean truncated;
+	private boolean done;
+
+	private RandomAccessFile spill;
+
+	/**
+	 * @param is stream to capture
+	 * @param maxBufferSize maximum number of bytes kept in memory
+	 * @param spillFile file where the output that doesn't fit in memory is written. If null, that output is discarded
+	 */
+	public OutputCapture ( InputStream is , int maxBufferSize , File spillFile ) {
+		this.is = is;
+		this.maxBufferSize = maxBufferSize;
+		this.spillFile = spillFile;
+		this.buffer = new byte [ Math.min(INITIAL_SIZE, maxBufferSize) ];
+	}
+
+	@Override
+	public void run() {
+
+		byte [] chunk = new byte [READ_SIZE];
+		int read;
+
+		try {
+			while ( (read = is.read(chunk)) != -1 )
+				append(chunk, read);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { is.close(); } catch (IOException e) { log.e(e.toString()); }
+			synchronized (this) {
+				done = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Adds the given bytes at the end of the captured output
+	 * @param bytes
+	 * @param n
+	 */
+	private synchronized void append ( byte [] bytes , int n ) {
+
+		// Part that fits in memory
+		int inMemory = Math.min( n, maxBufferSize - count );
+		if ( inMemory > 0 ) {
+			if ( count + inMemory > buffer.length ) {
+				byte [] newBuffer = new byte [ Math.min( maxBufferSize, Math.max(buffer.length * 2, count + inMemory) ) ];
+				System.arraycopy(buffer, 0, newBuffer, 0, count);
+				buffer = newBuffer;
+			}
+			System.arraycopy(bytes, 0, buffer, count, inMemory);
+			count += inMemory;
+			length += inMemory;
+		}
+
+		// The rest goes to the spill file
+		int rest = n - inMemory;
+		if ( rest > 0 ) {
+			if ( spillFile != null && !truncated ) {
+				try {
+					if ( spill == null )
+						spill = new RandomAccessFile(spillFile, "rw");
+					spill.seek( length - count );
+					spill.write(bytes, inMemory, rest);
+					length += rest;
+				} catch (IOException e) {
+					log.e("Couldn't write output to "+spillFile.getPath()+": "+e.toString());
+					truncated = true;
+				}
+			}
+			else
+				truncated = true;
+		}
+	}
+
+	/**
+	 * Returns the output produced after the given offset, up to the maximum size of the buffer
+	 * Only the new bytes are copied. The end of the chunk is adjusted so it doesn't split a UTF-8 character
+	 * Once the capture is closed, the output in the spill file can't be read anymore
+	 * @param offset number of bytes already read by the caller
+	 * @return
+	 */
+	public synchronized Chunk read ( long offset ) {
+
+		if ( offset < 0 ) offset = 0;
+		if ( offset >= length )
+			return new Chunk(length, new byte [0]);
+
+		byte [] data = new byte [ (int) Math.min( length - offset, Math.max(maxBufferSize, 1) ) ];
+		int copied = 0;
+
+		// Bytes from memory
+		if ( offset < count ) {
+			copied = (int) Math.min( count - offset, data.length );
+			System.arraycopy(buffer, (int) offset, data, 0, copied);
+		}
+
+		// The spill file is gone after close
+		if ( copied < data.length && spill == null ) {
+			byte [] partial = new byte [copied];
+			System.arraycopy(data, 0, partial, 0, copied);
+			data = partial;
+		}
+
+		// Bytes from the spill file
+		if ( copied < data.length ) {
+			try {
+				spill.seek( offset + copied - count );
+				spill.readFully(data, copied, data.length - copied);
+			} catch (IOException e) {
+				log.e("Couldn't read output from "+spillFile.getPath()+": "+e.toString());
+				byte [] partial = new byte [copied];
+				System.arraycopy(data, 0, partial, 0, copied);
+				data = partial;
+			}
+		}
+
+		return new Chunk(offset, trimToCharacter(data));
+	}
+
+	/**
+	 * Waits until the stream is completely read
+	 * @throws InterruptedException
+	 */
+	public synchronized void waitFor () throws InterruptedException {
+		while ( !done )
+			wait();
+	}
+
+	/**
+	 * Returns the output captured as a string, up to the maximum size of the buffer
+	 */
+	public String toString () {
+		return read(0).getText();
+	}
+
+	/**
+	 * Returns the number of bytes captured so far
+	 * @return
+	 */
+	public synchronized long getLength () {
+		return length;
+	}
+
+	/**
+	 * Returns true if part of the output was discarded because it didn't fit
+	 * @return
+	 */
+	public synchronized boolean isTruncated () {
+		return truncated;
+	}
+
+	/**
+	 * Releases the spill file, deleting it
+	 */
+	public synchronized void close () {
+		if ( spill != null ) {
+			try { spill.close(); } catch (IOException e) { log.e(e.toString()); }
+			spill = null;
+			spillFile.delete();
+		}
+	}
+
+	/**
+	 * Removes from the end of the data the bytes of an incomplete UTF-8 character, if there is one
+	 * @param data
+	 * @return
+	 */
+	private static byte [] trimToCharacter ( byte [] data ) {
+
+		// Look for the first byte of the last character (not a continuation byte 10xxxxxx)
+		int i = data.length - 1;
+		while ( i >= 0 && i > data.length - 4 && (data[i] & 0xC0) == 0x80 )
+			i--;
+		if ( i < 0 )
+			return data;
+
+		int lead = data[i] & 0xFF;
+		int expected = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+		if ( data.length - i >= expected )
+			return data;
+
+		byte [] trimmed = new byte [i];
+		System.arraycopy(data, 0, trimmed, 0, i);
+		return trimmed;
+	}
+
+	/**
+	 * A part of the captured output, starting at the given offset
+	 */
+	public static class Chunk {
+
+		private long offset;
+		private byte [] data;
+
+		public Chunk ( long offset , byte [] data ) {
+			this.offset = offset;
+			this.data = data;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Offset to use in the next read to get only the output produced after this chunk
+		 * @return
+		 */
+		public long getNextOffset() {
+			return offset + data.length;
+		}
+
+		public byte [] getData() {
+			return data;
+		}
+
+		public String getText() {
+			return new String(data, UTF8);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.pod.worker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+import main.resources.PodLogger;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.pod.interaction.Action;
+import com.pod.interaction.HttpSender;
+import com.pod.listeners.ServerProperties;
+
+/**
+ * This scheduler sends to the manager the output produced by the running executions since the last time
+ * The output of all of them goes in a single REPORT_EXECUTION_OUTPUT message, and nothing is sent if there isn't new output
+ *
+ * Each chunk includes the offsets where it starts and ends, so the manager can skip the part that it already has
+ * The offsets of a performer only advance when the manager has received the message, so a failed push is sent again the next time
+ * When an execution ends, the output that wasn't pushed yet is sent before its report (see pushRest)
+ */
+public class OutputPushTask extends TimerTask {
+
+	public static PodLogger log = new PodLogger("OutputPushTask");
+
+	@Override
+	public void run() {
+		
+		// An exception would cancel the timer, and the output wouldn't be pushed anymore
+		try {
+			push();
+		} catch (RuntimeException e) {
+			log.e("Error pushing the output of the executions: "+e.toString());
+		}
+	}
+	
+	private void push() {
+		
+		JsonArray executions = new JsonArray();
+		List<ExecutionPerformer> pushed = new ArrayList<ExecutionPerformer>();
+		List<long[]> offsets = new ArrayList<long[]>();
+		
+		for ( ExecutionPerformer performer : ExecutionPerformer.getPerformers() ) {
+			
+			OutputCapture.Chunk stdout = performer.getStdout( performer.getPushedStdoutOffset() );
+			OutputCapture.Chunk stderr = performer.getStderr( performer.getPushedStderrOffset() );
+			if ( stdout.getData().length == 0 && stderr.getData().length == 0 )
+				continue;
+			
+			executions.add( toJson(performer, stdout, stderr) );
+			pushed.add(performer);
+			offsets.add(new long [] { stdout.getNextOffset(), stderr.getNextOffset() });
+		}
+		
+		if ( pushed.isEmpty() || !send(executions) )
+			return;
+		
+		for ( int i = 0; i < pushed.size(); i++ )
+			pushed.get(i).setPushedOffsets( offsets.get(i)[0], offsets.get(i)[1] );
+	}
+	
+	/**
+	 * Sends to the manager all the output of the execution that it doesn't have yet, in chunks of the size of the buffer
+	 * Called when the execution ends, before its report, so the manager has the whole output when the execution completes
+	 * @param performer
+	 * @return false if some output couldn't be sent
+	 */
+	public static boolean pushRest ( ExecutionPerformer performer ) {
+		
+		while ( true ) {
+			OutputCapture.Chunk stdout = performer.getStdout( performer.getPushedStdoutOffset() );
+			OutputCapture.Chunk stderr = performer.getStderr( performer.getPushedStderrOffset() );
+			if ( stdout.getData().length == 0 && stderr.getData().length == 0 )
+				return true;
+			
+			if ( !send( new JsonArray().add( toJson(performer, stdout, stderr) ) ) )
+				return false;
+			performer.setPushedOffsets( stdout.getNextOffset(), stderr.getNextOffset() );
+		}
+	}
+	
+	private static JsonObject toJson ( ExecutionPerformer performer , OutputCapture.Chunk stdout , OutputCapture.Chunk stderr ) {
+		JsonObject executionJson = new JsonObject().add("id", performer.getExecution().getId());
+		executionJson.add("stdout", stdout.getText()).add("stdoutStart", stdout.getOffset()).add("stdoutOffset", stdout.getNextOffset());
+		executionJson.add("stderr", stderr.getText()).add("stderrStart", stderr.getOffset()).add("stderrOffset", stderr.getNextOffset());
+		return executionJson;
+	}
+	
+	/**
+	 * Sends the output of the executions in one REPORT_EXECUTION_OUTPUT message
+	 * @param executions
+	 * @return false if the message couldn't be sent
+	 */
+	private static boolean send ( JsonArray executions ) {
+		
+		JsonObject message = new JsonObject();
+		message.add("action", Action.REPORT_EXECUTION_OUTPUT.getId());
+		message.add("executions", executions);
+		
+		HttpSender sender = new HttpSender();
+		sender.setDestinationIP( ServerProperties.getManagerLocalIp() );
+		sender.setDestinationRole("manager");
+		sender.setMessage(message);
+		
+		try {
+			sender.send();
+			return true;
+		} catch (IOException e) {
+			log.e("Couldn't send the output of the executions: "+e.toString());
+			return false;
+		}
+	}
+
+}
@@ -1,6 +1,8 @@
 package com.pod.worker;
 
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
 import com.pod.interaction.Action;
 import com.pod.model.Activity;
 import com.pod.model.Execution;
@@ -36,7 +38,8 @@ public class WorkerRequestHandler {
 			Execution execution = new Execution (executionJson);
 			
 			// Start execution in a new thread
-			new Thread ( new ExecutionPerformer(execution) ).start();
+			// If the manager sends it again because it didn't get the answer, it isn't started twice
+			ExecutionPerformer.start(execution);
 			
 			// Compose response
 			JsonObject jsonResponse = new JsonObject();
@@ -48,13 +51,57 @@ public class WorkerRequestHandler {
 		// Request to install a new activity, retrieving its code
 		else if ( action == Action.GET_EXECUTION_PROGRESS ) {
 			
+			// Several executions can be asked for at once, each one with the offsets of the output that the manager already has
+			if ( json.get("executions") != null ) {
+				
+				JsonArray executionsResponse = new JsonArray();
+				for ( JsonValue value : json.get("executions").asArray() ) {
+					
+					JsonObject executionJson = value.asObject();
+					long executionId = executionJson.get("id").asLong();
+					ExecutionPerformer performer = ExecutionPerformer.get( executionId );
+					if ( performer == null ) {
+						executionsResponse.add( new JsonObject().add("id", executionId).add("error", "The execution "+executionId+" isn't running in this worker") );
+						continue;
+					}
+					
+					OutputCapture.Chunk stdout = performer.getStdout( executionJson.get("stdoutOffset") != null ? executionJson.get("stdoutOffset").asLong() : 0 );
+					OutputCapture.Chunk stderr = performer.getStderr( executionJson.get("stderrOffset") != null ? executionJson.get("stderrOffset").asLong() : 0 );
+					
+					JsonObject executionJsonResponse = new JsonObject().add("id", executionId).add("status", "in progress");
+					executionJsonResponse.add("stdout", stdout.getText()).add("stdoutOffset", stdout.getNextOffset());
+					executionJsonResponse.add("stderr", stderr.getText()).add("stderrOffset", stderr.getNextOffset());
+					executionsResponse.add(executionJsonResponse);
+				}
+				return new JsonObject().add("executions", executionsResponse);
+			}
+			
 			// Get message information
 			JsonObject executionJson = json.get("execution").asObject();
 			Execution execution = new Execution (executionJson);
 			
-			// Start execution in a new thread
-			execution.setStdout(ExecutionPerformer.getStdout());
-			execution.setStderr(ExecutionPerformer.getStderr());
+			// Look for the performer that is running this execution
+			ExecutionPerformer performer = ExecutionPerformer.get( execution.getId() );
+			if ( performer == null )
+				return new JsonObject().add("error", "The execution "+execution.getId()+" isn't running in this worker");
+			
+			// If the manager sends the offsets of the output it already has, only the new output is returned
+			// together with the offsets to use in the next request
+			if ( executionJson.get("stdoutOffset") != null || executionJson.get("stderrOffset") != null ) {
+				
+				long stdoutOffset = executionJson.get("stdoutOffset") != null ? executionJson.get("stdoutOffset").asLong() : 0;
+				long stderrOffset = executionJson.get("stderrOffset") != null ? executionJson.get("stderrOffset").asLong() : 0;
+				OutputCapture.Chunk stdout = performer.getStdout(stdoutOffset);
+				OutputCapture.Chunk stderr = performer.getStderr(stderrOffset);
+				
+				JsonObject executionJsonResponse = new JsonObject().add("id", execution.getId()).add("status", "in progress");
+				executionJsonResponse.add("stdout", stdout.getText()).add("stdoutOffset", stdout.getNextOffset());
+				executionJsonResponse.add("stderr", stderr.getText()).add("stderrOffset", stderr.getNextOffset());
+				return new JsonObject().add("execution", executionJsonResponse);
+			}
+			
+			execution.setStdout(performer.getStdout());
+			execution.setStderr(performer.getStderr());
 			
 			// Compose response
 			JsonObject jsonResponse = new JsonObject();
@@ -80,16 +127,8 @@ public class WorkerRequestHandler {
 			activity.setInstallationScriptLocation(installationScriptLocation);
 			activity.setStatus(status);
 			
-			// If the worker is busy processing something, we add the installation request to the queue
-			if ( ExecutionPerformer.isExecutionInProcess() ) {
-				ActivityInstallationQueue aiqueue = new ActivityInstallationQueue();
-				aiqueue.put(activity);
-			}
-			
-			// Start installer execution in a new thread
-			else {
-				new Thread ( new ActivityInstaller(activity) ).start();
-			}
+			// The installation runs in parallel with the executions and other installations
+			ActivityInstallationScheduler.submit( new ActivityInstaller(activity) );
 			
 			// Compose response. In any case, we want the manager to know that it is in process of being installed
 			JsonObject jsonResponse = new JsonObject();
@@ -112,15 +151,9 @@ public class WorkerRequestHandler {
 			activity.setName(name);
 			activity.setInstallationScriptLocation(installationScriptLocation);
 			
-			// If the worker is busy processing something, we add the installation request to the queue
-			if ( ExecutionPerformer.isExecutionInProcess() ) {
-				ActivityInstallationQueue aiqueue = new ActivityInstallationQueue();
-				aiqueue.put(activity);
-				aiqueue.putFlag(activity.getId(), true);
-			}
-			
-			// Start installer execution in a new thread. parameter true means that this is uninstallation
-			new Thread ( new ActivityInstaller(activity , true) ).start();
+			// Schedule the uninstallation. parameter true means that this is uninstallation
+			// It waits for the installation of the same activity, if there is one running
+			ActivityInstallationScheduler.submit( new ActivityInstaller(activity , true) );
 			
 			// Compose response
 			JsonObject jsonResponse = new JsonObject();
@@ -136,14 +169,11 @@ public class WorkerRequestHandler {
 			JsonObject executionJson = json.get("execution").asObject();
 			Execution execution = new Execution (executionJson);
 			
-			// Check if there is one execution in process
-			if ( !ExecutionPerformer.isExecutionInProcess() ) {
-				return new JsonObject().add("error", "There isn't any execution working at the moment");
+			// Stop the execution in case it's running in this worker, or drop it if it was assigned in advance
+			if ( !ExecutionPerformer.terminate( execution.getId() ) && !new ExecutionPrefetchQueue().remove( execution.getId() ) ) {
+				return new JsonObject().add("error", "The execution "+execution.getId()+" isn't running in this worker");
 			}
 			
-			// In case there is, stop it
-			ExecutionPerformer.terminate();
-			
 			// Compose response
 			JsonObject jsonResponse = new JsonObject();
 			JsonObject executionJsonResponse = new JsonObject().add("id", execution.getId()).add("status", "terminated");
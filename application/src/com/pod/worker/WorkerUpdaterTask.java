@@ -10,14 +10,29 @@ import com.pod.listeners.ServerProperties;
 
 /**
  * This scheduler is in charge of updating the manager periodically, and letting it know that the worker is alive
+ * Any message to the manager counts as a sign of life, so the STILL_ALIVE message is only sent when the worker
+ * hasn't sent anything else since the last period
  * @author will
  *
  */
 public class WorkerUpdaterTask extends TimerTask {
 
+	private long interval;
+	
+	/**
+	 * @param interval time between runs of the task, in milliseconds
+	 */
+	public WorkerUpdaterTask ( long interval ) {
+		this.interval = interval;
+	}
+	
 	@Override
 	public void run() {
 		
+		// The manager already knows that we're alive
+		if ( System.currentTimeMillis() - HttpSender.getLastTimeSentToManager() < interval )
+			return;
+		
 		JsonObject message = new JsonObject().add("action", Action.STILL_ALIVE.getId());
 		
 		HttpSender sender = new HttpSender();
@@ -0,0 +1,31 @@
+#!/bin/bash
+
+# Starts a worker of the LocalComputeProvider in this machine (property localWorkerCommand)
+# Arguments: path of the properties file of the worker, and the port where it listens
+# Each worker runs the same war as the manager in its own Tomcat base, next to its properties file
+# The process stays in the foreground, so the manager can stop it
+
+PROPERTIES=$1
+PORT=$2
+
+CATALINA_HOME=${CATALINA_HOME:-/usr/share/tomcat7}
+TOMCAT_CONF=${TOMCAT_CONF:-/etc/tomcat7}
+WAR=${POD_WAR:-/var/lib/tomcat7/webapps/ROOT.war}
+
+BASE=$(dirname $PROPERTIES)/tomcat
+
+if [ ! -d $BASE ]; then
+	mkdir -p $BASE/conf $BASE/logs $BASE/temp $BASE/work $BASE/webapps
+	cp -r $TOMCAT_CONF/* $BASE/conf/
+
+	# Listen in the port of the worker, without shutdown nor AJP ports that would collide with the other workers
+	sed -i "s/port=\"[0-9]*\" protocol=\"HTTP\/1.1\"/port=\"$PORT\" protocol=\"HTTP\/1.1\"/g" $BASE/conf/server.xml
+	sed -i "s/<Server port=\"[0-9]*\"/<Server port=\"-1\"/g" $BASE/conf/server.xml
+	sed -i "/protocol=\"AJP\/1.3\"/d" $BASE/conf/server.xml
+fi
+
+cp $WAR $BASE/webapps/ROOT.war
+
+export CATALINA_BASE=$BASE
+export JAVA_OPTS="$JAVA_OPTS -Dpod.properties=$PROPERTIES"
+exec $CATALINA_HOME/bin/catalina.sh run
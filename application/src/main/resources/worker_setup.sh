@@ -21,6 +21,9 @@ NAME=
 
 TERMINATION_TIME=
 
+# Number of executions that the worker can run at the same time. A number or "cores"
+EXECUTION_SLOTS=
+
 # The repository URL
 REPO_URL=
 REPO_NAME=`echo $REPO_URL | cut -d'/' -f 5`
@@ -35,7 +38,8 @@ PUBLIC_IP=$(ec2metadata --public-ipv4)
 
 ##########################################################
 
-echo "name=$NAME" >> $HOME/server.properties
+# A worker launched from the image of another worker has the properties of that one, they are written again
+echo "name=$NAME" > $HOME/server.properties
 echo "managerLocalIp=$MANAGER_LOCAL_IP" >> $HOME/server.properties
 echo "workerId=$WORKER_ID" >> $HOME/server.properties
 echo "role=worker" >> $HOME/server.properties
@@ -46,9 +50,18 @@ echo "localIp=$LOCAL_IP" >> $HOME/server.properties
 echo "publicIp=$PUBLIC_IP" >> $HOME/server.properties
 echo "repoURL=$REPO_URL" >> $HOME/server.properties
 echo "terminationTime=$TERMINATION_TIME" >> $HOME/server.properties
+echo "executionSlots=$EXECUTION_SLOTS" >> $HOME/server.properties
 
 ##########################################################
 
+# The image of another worker has everything installed already. Only the server is restarted to read the new properties
+if [ -f /var/lib/tomcat7/webapps/ROOT.war ]; then
+	echo `date` " - Launched from a worker image, restarting the server" >> $LOG
+	sudo service tomcat7 restart
+	echo `date` " - Worker deployed" >> $LOG
+	exit 0
+fi
+
 echo `date` " - Updating dependencies" >> $LOG
 
 sudo apt-get -y update
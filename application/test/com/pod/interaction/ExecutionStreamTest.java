@@ -0,0 +1,101 @@
+package com.pod.interaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import com.pod.manager.ExecutionOutput;
+import com.pod.worker.OutputCapture;
+
+/**
+ * Output sent by a stream when the output of the execution doesn't fit in the buffers of the worker and the manager
+ */
+public class ExecutionStreamTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int WORKER_BUFFER = 64;
+	private static final int MANAGER_BUFFER = 100;
+
+	private File spillFile;
+
+	protected void setUp () throws IOException {
+		spillFile = File.createTempFile("stream", ".out");
+	}
+
+	protected void tearDown () {
+		spillFile.delete();
+	}
+
+	public void testStreamFollowingTheExecutionGetsTheWholeOutput () throws InterruptedException {
+
+		String text = output(1000);
+		OutputCapture capture = capture(text);
+		ExecutionOutput output = new ExecutionOutput(MANAGER_BUFFER);
+
+		// The stream reads after every push, as it does when it's told that output was appended
+		StringBuilder streamed = new StringBuilder();
+		long pushed = 0;
+		while ( true ) {
+			OutputCapture.Chunk chunk = capture.read(pushed);
+			if ( chunk.getData().length == 0 )
+				break;
+			output.push(chunk.getText(), chunk.getOffset(), chunk.getNextOffset(), "", 0, 0);
+			pushed = chunk.getNextOffset();
+			streamed.append( ExecutionStream.next(output, false, null, streamed.length()) );
+		}
+
+		// Last event, with the final report holding only the head of the output
+		streamed.append( ExecutionStream.next(output, false, capture.toString(), streamed.length()) );
+		capture.close();
+
+		assertEquals( text, streamed.toString() );
+	}
+
+	public void testStreamOpenedAfterTheEndGetsTheFinalReport () throws InterruptedException {
+
+		String text = output(1000);
+		OutputCapture capture = capture(text);
+		String head = capture.toString();
+		capture.close();
+
+		String streamed = ExecutionStream.next(new ExecutionOutput(MANAGER_BUFFER), false, head, 0);
+
+		assertEquals( head, streamed );
+		assertTrue( text.startsWith(streamed) );
+		assertEquals( "", ExecutionStream.next(new ExecutionOutput(MANAGER_BUFFER), false, head, streamed.length()) );
+	}
+
+	public void testOutputDroppedBeforeItWasSentIsSkipped () {
+
+		ExecutionOutput output = new ExecutionOutput(MANAGER_BUFFER);
+		String text = output(300);
+		output.push(text, 0, text.getBytes(UTF8).length, "", 0, 0);
+
+		int offset = output.getStdoutStart();
+		String streamed = ExecutionStream.next(output, false, null, offset);
+
+		assertEquals( text.substring(text.length() - MANAGER_BUFFER), streamed );
+		assertEquals( "", ExecutionStream.next(output, false, text, offset + streamed.length()) );
+	}
+
+	/**
+	 * Lines with multibyte characters, so the chunks of the worker end at character boundaries
+	 */
+	private static String output ( int lines ) {
+		StringBuilder text = new StringBuilder();
+		for ( int i = 0; i < lines; i++ )
+			text.append("l\u00ednea ").append(i).append(" \u2713\n");
+		return text.toString();
+	}
+
+	private OutputCapture capture ( String text ) throws InterruptedException {
+		OutputCapture capture = new OutputCapture(new ByteArrayInputStream(text.getBytes(UTF8)), WORKER_BUFFER, spillFile);
+		capture.run();
+		capture.waitFor();
+		return capture;
+	}
+}
@@ -0,0 +1,85 @@
+package com.pod.manager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import com.pod.model.Execution;
+
+/**
+ * Retrieval and expiration of the executions kept by the manager
+ * The map is in memory, so every test uses executions with new ids and starts without executions in a final status
+ */
+public class ExecutionMapTest extends TestCase {
+
+	private static AtomicLong ids = new AtomicLong(9000);
+
+	private ExecutionMap map;
+
+	protected void setUp () {
+		map = new ExecutionMap();
+		map.expire(-60*1000, Integer.MAX_VALUE);
+	}
+
+	public void testPullRemovesTheExecutionOnlyOnce () {
+
+		Execution execution = put("finished");
+
+		assertSame( execution, map.pull(execution.getId()) );
+		assertNull( map.pull(execution.getId()) );
+		assertNull( map.get(execution.getId()) );
+	}
+
+	public void testCompletionListenerIsCalledOnce () {
+
+		final AtomicInteger calls = new AtomicInteger();
+		Execution execution = put("in progress");
+		map.addCompletionListener(execution.getId(), new ExecutionMap.CompletionListener() {
+			public void executionCompleted ( long executionId ) {
+				calls.incrementAndGet();
+			}
+		});
+
+		execution.setStatus("finished");
+		map.put(execution);
+		map.pull(execution.getId());
+
+		assertEquals( 1, calls.get() );
+	}
+
+	public void testExpireRemovesOnlyOldFinishedExecutions () throws InterruptedException {
+
+		Execution finished = put("finished");
+		Execution inProgress = put("in progress");
+		Thread.sleep(20);
+		Execution recent = put("error");
+
+		assertEquals( 1, map.expire(10, Integer.MAX_VALUE) );
+		assertNull( map.get(finished.getId()) );
+		assertNotNull( map.get(inProgress.getId()) );
+		assertNotNull( map.get(recent.getId()) );
+	}
+
+	public void testExpireKeepsTheNewestWhenThereAreTooMany () throws InterruptedException {
+
+		Execution first = put("finished");
+		Thread.sleep(5);
+		Execution second = put("terminated");
+		Thread.sleep(5);
+		Execution third = put("finished");
+
+		assertEquals( 2, map.expire(60*60*1000, 1) );
+		assertNull( map.get(first.getId()) );
+		assertNull( map.get(second.getId()) );
+		assertSame( third, map.get(third.getId()) );
+	}
+
+	private Execution put ( String status ) {
+		Execution execution = new Execution();
+		execution.setId( ids.incrementAndGet() );
+		execution.setStatus(status);
+		map.put(execution);
+		return execution;
+	}
+}
@@ -0,0 +1,69 @@
+package com.pod.manager;
+
+import junit.framework.TestCase;
+
+/**
+ * Window of the output of an execution kept by the manager, with offsets counted from the beginning of the output
+ */
+public class ExecutionOutputTest extends TestCase {
+
+	public void testOffsetsCountTheDroppedOutput () {
+
+		ExecutionOutput output = new ExecutionOutput(10);
+		output.append("0123456789abcdef", 16, "", 0);
+
+		assertEquals( 16, output.getStdoutLength() );
+		assertEquals( 6, output.getStdoutStart() );
+		assertEquals( "6789abcdef", output.getStdout(0) );
+		assertEquals( "cdef", output.getStdout(12) );
+		assertEquals( "", output.getStdout(16) );
+	}
+
+	public void testStreamsAreWindowedApart () {
+
+		ExecutionOutput output = new ExecutionOutput(4);
+		output.append("abcdef", 6, "xy", 2);
+
+		assertEquals( "cdef", output.getStdout(0) );
+		assertEquals( 0, output.getStderrStart() );
+		assertEquals( "xy", output.getStderr(0) );
+	}
+
+	public void testPushSkipsTheOutputAlreadyReceived () {
+
+		ExecutionOutput output = new ExecutionOutput(100);
+		output.push("hello", 0, 5, "", 0, 0);
+
+		// Sent again by the worker, partly overlapping
+		output.push("lo world", 3, 11, "", 0, 0);
+		output.push("hello world", 0, 11, "", 0, 0);
+
+		assertEquals( "hello world", output.getStdout(0) );
+		assertEquals( 11, output.getStdoutLength() );
+	}
+
+	public void testPushSkipsBytesOfMultibyteCharacters () {
+
+		ExecutionOutput output = new ExecutionOutput(100);
+		// The accented e takes 2 bytes, so the chunk ends at byte 3
+		output.push("a\u00e9", 0, 3, "", 0, 0);
+		output.push("\u00e9b", 1, 4, "", 0, 0);
+
+		assertEquals( "a\u00e9b", output.getStdout(0) );
+	}
+
+	public void testOnlyOneThreadRefreshesAtATime () {
+
+		ExecutionOutput output = new ExecutionOutput(100);
+
+		assertTrue( output.startRefresh(1000) );
+		assertFalse( output.startRefresh(1000) );
+		output.endRefresh();
+
+		// It was never refreshed, so it's still stale
+		assertTrue( output.startRefresh(1000) );
+		output.setRefreshed();
+		output.endRefresh();
+		assertFalse( output.startRefresh(1000) );
+	}
+}
@@ -0,0 +1,95 @@
+package com.pod.manager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.pod.model.Execution;
+
+/**
+ * Order in which the executions leave the waiting queue
+ * The queue is in memory, so every test uses activities and executions with new ids
+ */
+public class ExecutionWaitingQueueTest extends TestCase {
+
+	private static AtomicInteger ids = new AtomicInteger(7000);
+
+	private ExecutionWaitingQueue queue;
+
+	protected void setUp () {
+		queue = new ExecutionWaitingQueue();
+	}
+
+	public void testPullReturnsTheOldestExecutionOfTheGivenActivities () {
+
+		int a = ids.incrementAndGet();
+		int b = ids.incrementAndGet();
+		int c = ids.incrementAndGet();
+		Execution first = put(b);
+		Execution second = put(c);
+		Execution third = put(a);
+		Execution fourth = put(b);
+
+		int [] activities = { a, b };
+		assertSame( first, queue.pull(activities) );
+		assertSame( third, queue.pull(activities) );
+		assertSame( fourth, queue.pull(activities) );
+		assertNull( queue.pull(activities) );
+		assertSame( second, queue.pull(new int [] { c }) );
+	}
+
+	public void testPullSeveralKeepsTheOrderOfArrival () {
+
+		int a = ids.incrementAndGet();
+		int b = ids.incrementAndGet();
+		Execution first = put(a);
+		Execution second = put(b);
+		Execution third = put(a);
+
+		List<Execution> pulled = queue.pull(new int [] { a, b }, 2);
+
+		assertEquals( 2, pulled.size() );
+		assertSame( first, pulled.get(0) );
+		assertSame( second, pulled.get(1) );
+		assertSame( third, queue.pull(new int [] { a, b }) );
+	}
+
+	public void testRemovedExecutionIsNeverPulled () {
+
+		int a = ids.incrementAndGet();
+		Execution first = put(a);
+		Execution second = put(a);
+		int size = queue.size();
+
+		assertSame( first, queue.remove(a, first.getId()) );
+		assertNull( queue.remove(a, first.getId()) );
+		assertEquals( size - 1, queue.size() );
+		assertSame( second, queue.pull(new int [] { a }) );
+		assertNull( queue.pull(new int [] { a }) );
+	}
+
+	public void testCountByActivity () {
+
+		int a = ids.incrementAndGet();
+		int b = ids.incrementAndGet();
+		put(a);
+		put(b);
+		put(a);
+
+		assertEquals( Integer.valueOf(2), queue.countByActivity().get(a) );
+		assertEquals( Integer.valueOf(1), queue.countByActivity().get(b) );
+
+		queue.deleteAll(a);
+		assertNull( queue.countByActivity().get(a) );
+	}
+
+	private Execution put ( int activityId ) {
+		Execution execution = new Execution();
+		execution.setId( ids.incrementAndGet() );
+		execution.setActivityId(activityId);
+		execution.setStatus("waiting");
+		queue.put(execution);
+		return execution;
+	}
+}
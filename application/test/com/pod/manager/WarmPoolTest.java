@@ -0,0 +1,288 @@
+package com.pod.manager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.pod.model.Worker;
+
+/**
+ * State transitions of the workers of the warm pool, against a provider that only records the calls
+ * The registry is in memory, so every test uses workers with new ids
+ */
+public class WarmPoolTest extends TestCase {
+
+	private static AtomicInteger ids = new AtomicInteger(1000);
+
+	private StubProvider provider;
+	private WorkerRegistry registry;
+
+	protected void setUp () {
+		provider = new StubProvider();
+		WorkerHandler.setComputeProvider(provider);
+		registry = new WorkerRegistry();
+	}
+
+	public void testAbsorbStopsIdleWorkerWhilePoolIsNotFull () {
+
+		Worker worker = addWorker("ready", 0);
+		setSettings( registry.count("stopped") + 1, false );
+
+		assertTrue( new WarmPool().absorb(worker) );
+		assertEquals( "stopped", registry.get(worker.getId()).getStatus() );
+		assertEquals( Arrays.asList(worker.getInstanceId()), provider.stopped );
+	}
+
+	public void testAbsorbKeepsWorkerWhenPoolIsFull () {
+
+		Worker worker = addWorker("ready", 0);
+		setSettings( registry.count("stopped"), false );
+
+		assertFalse( new WarmPool().absorb(worker) );
+		assertEquals( "ready", registry.get(worker.getId()).getStatus() );
+		assertTrue( provider.stopped.isEmpty() );
+	}
+
+	public void testAbsorbKeepsBusyWorker () {
+
+		Worker worker = addWorker("ready", 1);
+		setSettings( registry.count("stopped") + 1, false );
+
+		assertFalse( new WarmPool().absorb(worker) );
+		assertEquals( "ready", registry.get(worker.getId()).getStatus() );
+		assertTrue( provider.stopped.isEmpty() );
+	}
+
+	public void testFailedStopLeavesWorkerReady () {
+
+		Worker worker = addWorker("ready", 0);
+		setSettings( registry.count("stopped") + 1, false );
+		provider.fail = true;
+
+		assertFalse( new WarmPool().absorb(worker) );
+		assertEquals( "ready", registry.get(worker.getId()).getStatus() );
+	}
+
+	public void testStartedWorkerIsPending () {
+
+		Worker worker = addWorker("stopped", 0);
+
+		assertTrue( new WorkerHandler().startWorker(worker.getId()) );
+		assertEquals( "pending", registry.get(worker.getId()).getStatus() );
+		assertEquals( Arrays.asList(worker.getInstanceId()), provider.started );
+	}
+
+	public void testFailedStartLeavesWorkerInError () {
+
+		Worker worker = addWorker("stopped", 0);
+		provider.fail = true;
+
+		assertFalse( new WorkerHandler().startWorker(worker.getId()) );
+		assertEquals( "error", registry.get(worker.getId()).getStatus() );
+	}
+
+	public void testOnlyStoppedWorkersAreStarted () {
+
+		Worker worker = addWorker("ready", 0);
+
+		assertFalse( new WorkerHandler().startWorker(worker.getId()) );
+		assertEquals( "ready", registry.get(worker.getId()).getStatus() );
+		assertTrue( provider.started.isEmpty() );
+	}
+
+	/**
+	 * A worker that is stopped while an execution claims it must end either stopped and idle, or working and not stopped
+	 */
+	public void testStopAndClaimDontOverlap () throws InterruptedException {
+
+		for ( int i = 0; i < 200; i++ ) {
+
+			final int activityId = ids.incrementAndGet();
+			final Worker worker = addWorker("ready", 0);
+			registry.setInstallationStatus( worker.getId(), activityId, "installed" );
+			provider.stopped.clear();
+
+			final CountDownLatch start = new CountDownLatch(1);
+			final Worker[] claimed = new Worker[1];
+			final boolean[] stopped = new boolean[1];
+			Thread claimer = new Thread() {
+				public void run() {
+					await(start);
+					claimed[0] = registry.claim(activityId);
+				}
+			};
+			Thread stopper = new Thread() {
+				public void run() {
+					await(start);
+					stopped[0] = new WorkerHandler().stopWorker( worker.getId() );
+				}
+			};
+			claimer.start();
+			stopper.start();
+			start.countDown();
+			claimer.join();
+			stopper.join();
+
+			Worker result = registry.get(worker.getId());
+			assertTrue( "claimed and stopped at once", claimed[0] == null || !stopped[0] );
+			if ( stopped[0] ) {
+				assertEquals( "stopped", result.getStatus() );
+				assertEquals( 0, result.getBusySlots() );
+				assertEquals( 1, provider.stopped.size() );
+			}
+			else {
+				assertNotNull( claimed[0] );
+				assertEquals( "working", result.getStatus() );
+				assertTrue( provider.stopped.isEmpty() );
+			}
+		}
+	}
+
+	public void testImageIsMadeFromWorkerWithAllActivities () throws InterruptedException {
+
+		Worker worker = addWorker("ready", 0);
+		int activityId = ids.incrementAndGet();
+		registry.setInstallationStatus( worker.getId(), activityId, "installed" );
+		setSettings( 0, true, activityId );
+
+		new WarmPool().activityInstalled( worker.getId() );
+		String image = provider.awaitImage();
+
+		assertEquals( "image-"+worker.getInstanceId(), image );
+		assertEquals( image, new WarmPool().getImage() );
+	}
+
+	public void testImageIsNotMadeFromWorkerMissingActivities () throws InterruptedException {
+
+		Worker worker = addWorker("ready", 0);
+		int activityId = ids.incrementAndGet();
+		registry.setInstallationStatus( worker.getId(), activityId, "installed" );
+		setSettings( 0, true, activityId, ids.incrementAndGet() );
+
+		new WarmPool().activityInstalled( worker.getId() );
+		Thread.sleep(100);
+
+		assertTrue( provider.images.isEmpty() );
+	}
+
+	public void testUnavailableImageFallsBackToDefault () throws InterruptedException {
+
+		Worker worker = addWorker("ready", 0);
+		int activityId = ids.incrementAndGet();
+		registry.setInstallationStatus( worker.getId(), activityId, "installed" );
+		setSettings( 0, true, activityId );
+
+		new WarmPool().activityInstalled( worker.getId() );
+		provider.awaitImage();
+		provider.imageAvailable = false;
+
+		assertNull( new WarmPool().getImage() );
+	}
+
+	public void testImageIsNotUsedWhenDisabled () throws InterruptedException {
+
+		Worker worker = addWorker("ready", 0);
+		int activityId = ids.incrementAndGet();
+		registry.setInstallationStatus( worker.getId(), activityId, "installed" );
+		setSettings( 0, true, activityId );
+
+		new WarmPool().activityInstalled( worker.getId() );
+		provider.awaitImage();
+		setSettings( 0, false, activityId );
+
+		assertNull( new WarmPool().getImage() );
+	}
+
+	private Worker addWorker ( String status , int busySlots ) {
+		Worker worker = new Worker();
+		worker.setId( ids.incrementAndGet() );
+		worker.setInstanceId( "instance-"+worker.getId() );
+		worker.setStatus(status);
+		worker.setBusySlots(busySlots);
+		registry.add(worker);
+		return worker;
+	}
+
+	private static void setSettings ( int size , boolean imageEnabled , Integer... activityIds ) {
+		Set<Integer> activities = new HashSet<Integer>( Arrays.asList(activityIds) );
+		WarmPool.setSettings( new WarmPool.Settings( size, imageEnabled, Integer.MAX_VALUE, Collections.unmodifiableSet(activities) ) );
+	}
+
+	private static void await ( CountDownLatch latch ) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Provider that records the calls, and fails them when asked to
+	 */
+	private static class StubProvider implements ComputeProvider {
+
+		List<String> started = Collections.synchronizedList( new ArrayList<String>() );
+		List<String> stopped = Collections.synchronizedList( new ArrayList<String>() );
+		List<String> images = Collections.synchronizedList( new ArrayList<String>() );
+		volatile boolean fail;
+		volatile boolean imageAvailable = true;
+
+		public String launch ( int workerId , String imageId , String executionSlots ) throws IOException {
+			throw new IOException("Not supported");
+		}
+
+		public void start ( String instanceId ) throws IOException {
+			if ( fail ) throw new IOException("Start failed");
+			started.add(instanceId);
+		}
+
+		public void stop ( String instanceId ) throws IOException {
+			if ( fail ) throw new IOException("Stop failed");
+			stopped.add(instanceId);
+		}
+
+		public void terminate ( List<String> instanceIds ) {}
+
+		public String createImage ( String instanceId ) {
+			String image = "image-"+instanceId;
+			synchronized (images) {
+				images.add(image);
+				images.notifyAll();
+			}
+			return image;
+		}
+
+		public boolean isImageAvailable ( String imageId ) {
+			return imageAvailable;
+		}
+
+		public void deleteImage ( String imageId ) {}
+
+		public boolean isCopyOf ( String instanceId ) {
+			return false;
+		}
+
+		/**
+		 * Waits until an image is made, and until the pool has taken it
+		 */
+		String awaitImage () throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			synchronized (images) {
+				while ( images.isEmpty() && System.currentTimeMillis() < deadline )
+					images.wait(100);
+			}
+			assertFalse( "No image was made", images.isEmpty() );
+			// The pool keeps the image after the provider returns it
+			Thread.sleep(100);
+			return images.get( images.size() - 1 );
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.pod.manager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.pod.model.Worker;
+
+/**
+ * Use of the execution slots of the workers in the registry
+ * The registry is in memory, so every test uses workers and activities with new ids
+ */
+public class WorkerRegistryTest extends TestCase {
+
+	private static AtomicInteger ids = new AtomicInteger(5000);
+
+	private WorkerRegistry registry;
+
+	protected void setUp () {
+		registry = new WorkerRegistry();
+	}
+
+	public void testClaimTakesSlotsUntilTheWorkerIsFull () {
+
+		int activityId = ids.incrementAndGet();
+		Worker worker = addWorker("ready", 2, activityId);
+
+		Worker claimed = registry.claim(activityId);
+		assertEquals( worker.getId(), claimed.getId() );
+		assertEquals( "ready", registry.get(worker.getId()).getStatus() );
+
+		registry.claim(activityId);
+		assertEquals( 2, registry.get(worker.getId()).getBusySlots() );
+		assertEquals( "working", registry.get(worker.getId()).getStatus() );
+
+		assertNull( registry.claim(activityId) );
+	}
+
+	public void testClaimSkipsWorkersWithoutTheActivity () {
+
+		addWorker("ready", 1, ids.incrementAndGet());
+
+		assertNull( registry.claim( ids.incrementAndGet() ) );
+	}
+
+	public void testReleaseMakesTheWorkerAvailableAgain () {
+
+		int activityId = ids.incrementAndGet();
+		Worker worker = addWorker("ready", 1, activityId);
+		registry.claim(activityId);
+
+		assertTrue( registry.releaseSlot(worker.getId(), "ready") );
+		assertEquals( 0, registry.get(worker.getId()).getBusySlots() );
+		assertEquals( worker.getId(), registry.claim(activityId).getId() );
+	}
+
+	public void testTryAcquireSlotFailsWhenTheWorkerIsFull () {
+
+		Worker worker = addWorker("ready", 1, ids.incrementAndGet());
+
+		assertTrue( registry.tryAcquireSlot(worker.getId()) );
+		assertEquals( "working", registry.get(worker.getId()).getStatus() );
+		assertFalse( registry.tryAcquireSlot(worker.getId()) );
+	}
+
+	public void testAcquireSlotIsCountedEvenIfTheWorkerIsFull () {
+
+		Worker worker = addWorker("ready", 1, ids.incrementAndGet());
+
+		registry.acquireSlot(worker.getId());
+		registry.acquireSlot(worker.getId());
+		assertEquals( 2, registry.get(worker.getId()).getBusySlots() );
+
+		registry.releaseSlots(worker.getId(), 2, "ready");
+		assertEquals( 0, registry.get(worker.getId()).getBusySlots() );
+		assertEquals( "ready", registry.get(worker.getId()).getStatus() );
+	}
+
+	public void testLateReleaseDoesntReviveStoppedWorker () {
+
+		int activityId = ids.incrementAndGet();
+		Worker worker = addWorker("ready", 1, activityId);
+		registry.claim(activityId);
+		registry.setStatus(worker.getId(), "stopped");
+
+		registry.releaseSlot(worker.getId(), "ready");
+
+		assertEquals( "stopped", registry.get(worker.getId()).getStatus() );
+		assertEquals( 0, registry.get(worker.getId()).getBusySlots() );
+		assertNull( registry.claim(activityId) );
+	}
+
+	public void testLateReleaseDoesntReviveTerminatedWorker () {
+
+		Worker worker = addWorker("ready", 1, ids.incrementAndGet());
+		registry.acquireSlot(worker.getId());
+		registry.setStatus(worker.getId(), "terminated");
+
+		registry.releaseSlots(worker.getId(), 1, "working");
+		registry.acquireSlot(worker.getId());
+
+		assertEquals( "terminated", registry.get(worker.getId()).getStatus() );
+	}
+
+	private Worker addWorker ( String status , int slots , int activityId ) {
+		Worker worker = new Worker();
+		worker.setId( ids.incrementAndGet() );
+		worker.setStatus(status);
+		worker.setSlots(slots);
+		registry.add(worker);
+		registry.setInstallationStatus(worker.getId(), activityId, "installed");
+		return worker;
+	}
+}
@@ -0,0 +1,96 @@
+package com.pod.worker;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Bounded capture of the output of an execution, in memory and in the spill file
+ */
+public class OutputCaptureTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// 3 bytes in UTF-8
+	private static final String EURO = "\u20ac";
+
+	private File spillFile;
+
+	protected void setUp () throws IOException {
+		spillFile = File.createTempFile("capture", ".out");
+		spillFile.delete();
+	}
+
+	protected void tearDown () {
+		spillFile.delete();
+	}
+
+	public void testOutputThatFitsIsKeptWhole () throws InterruptedException {
+
+		OutputCapture capture = capture("hello " + EURO, 64, null);
+
+		assertEquals( "hello " + EURO, capture.toString() );
+		assertEquals( 9, capture.getLength() );
+		assertFalse( capture.isTruncated() );
+	}
+
+	public void testTruncatedOutputEndsAtACharacterBoundary () throws InterruptedException {
+
+		OutputCapture capture = capture(EURO + EURO + EURO + EURO, 10, null);
+
+		assertTrue( capture.isTruncated() );
+		assertEquals( 10, capture.getLength() );
+
+		OutputCapture.Chunk chunk = capture.read(0);
+		assertEquals( EURO + EURO + EURO, chunk.getText() );
+		assertEquals( 9, chunk.getNextOffset() );
+
+		// The last byte is half a character, so nothing is returned after it
+		assertEquals( 0, capture.read(chunk.getNextOffset()).getData().length );
+	}
+
+	public void testReadsFromTheSpillFileDontSplitCharacters () throws InterruptedException {
+
+		StringBuilder text = new StringBuilder();
+		for ( int i = 0; i < 50; i++ )
+			text.append("a").append(EURO);
+		OutputCapture capture = capture(text.toString(), 16, spillFile);
+
+		assertFalse( capture.isTruncated() );
+		assertEquals( text.toString().getBytes(UTF8).length, capture.getLength() );
+
+		StringBuilder read = new StringBuilder();
+		long offset = 0;
+		while ( true ) {
+			OutputCapture.Chunk chunk = capture.read(offset);
+			if ( chunk.getData().length == 0 )
+				break;
+			assertTrue( chunk.getData().length <= 16 );
+			assertFalse( chunk.getText().contains("\ufffd") );
+			read.append( chunk.getText() );
+			offset = chunk.getNextOffset();
+		}
+		assertEquals( text.toString(), read.toString() );
+		capture.close();
+	}
+
+	public void testOnlyTheBufferIsReadAfterClose () throws InterruptedException {
+
+		OutputCapture capture = capture("0123456789abcdefghij", 10, spillFile);
+		capture.close();
+
+		assertFalse( spillFile.exists() );
+		assertEquals( "0123456789", capture.read(0).getText() );
+		assertEquals( 0, capture.read(10).getData().length );
+	}
+
+	private static OutputCapture capture ( String text , int maxBufferSize , File spillFile ) throws InterruptedException {
+		OutputCapture capture = new OutputCapture(new ByteArrayInputStream(text.getBytes(UTF8)), maxBufferSize, spillFile);
+		capture.run();
+		capture.waitFor();
+		return capture;
+	}
+}